@@ -0,0 +1,31 @@
+package com.zhangyx.hw.support;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 按多个线程数依次运行基准测试
+ * <p>
+ * 参数: [benchmark正则] [线程数列表，逗号分隔，默认1,4,16]
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        String threads = args.length > 1 ? args[1] : "1,4,16";
+        for (String thread : threads.split(",")) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(Integer.parseInt(thread.trim()))
+                    .forks(1)
+                    .warmupIterations(3)
+                    .measurementIterations(5)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.zhangyx.hw.support;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * 基准测试的公共工具
+ */
+final class BenchmarkSupport {
+    /**
+     * 预先写入的key数量
+     */
+    static final int KEYS = 1000;
+    /**
+     * MGET和显式管道每次操作的key数量
+     */
+    static final int BATCH = 10;
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * 写一个临时配置文件，返回绝对路径
+     *
+     * @param lines
+     * @return
+     * @throws IOException
+     */
+    static String props(String... lines) throws IOException {
+        File file = File.createTempFile("redis-benchmark", ".properties");
+        file.deleteOnExit();
+        try (FileWriter writer = new FileWriter(file)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        return file.getAbsolutePath();
+    }
+
+    static String key(int i) {
+        return "key:" + i;
+    }
+
+    /**
+     * 从i开始的连续BATCH个key
+     *
+     * @param start
+     * @return
+     */
+    static String[] keys(int start) {
+        String[] keys = new String[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            keys[i] = key((start + i) % KEYS);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,111 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.collect.ImmutableSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.zhangyx.hw.support.BenchmarkSupport.BATCH;
+import static com.zhangyx.hw.support.BenchmarkSupport.KEYS;
+import static com.zhangyx.hw.support.BenchmarkSupport.key;
+import static com.zhangyx.hw.support.BenchmarkSupport.keys;
+
+/**
+ * 集群：JedisClusterFactoryBean代理与直接使用JedisCluster的对比
+ * <p>
+ * 3个{@link RespServer}实例组成假集群，slot平均分配。JedisCluster不支持跨slot的MGET，
+ * 作为对照的rawMget逐个GET，代理的proxyMget按节点拆分后并行管道执行
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ClusterBenchmark {
+
+    private List<RespServer> servers;
+    private JedisCluster cluster;
+    private JedisClusterFactoryBean factory;
+    private MergeJedisCmd proxy;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        servers = RespServer.cluster(3);
+        RespServer seed = servers.get(0);
+
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(100);
+        cluster = new JedisCluster(ImmutableSet.of(new HostAndPort(seed.getHost(), seed.getPort())), poolConfig);
+
+        factory = new JedisClusterFactoryBean();
+        factory.setConfigFileName(BenchmarkSupport.props("cluster_enable=true",
+                "redis.servers=" + seed.getHost() + ":" + seed.getPort()));
+        factory.afterPropertiesSet();
+        proxy = factory.getObject();
+
+        for (int i = 0; i < KEYS; i++) {
+            cluster.set(key(i), "value:" + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        factory.destroy();
+        cluster.close();
+        for (RespServer server : servers) {
+            server.close();
+        }
+    }
+
+    private static int next() {
+        return ThreadLocalRandom.current().nextInt(KEYS);
+    }
+
+    @Benchmark
+    public String rawGet() {
+        return cluster.get(key(next()));
+    }
+
+    @Benchmark
+    public String rawSet() {
+        int i = next();
+        return cluster.set(key(i), "value:" + i);
+    }
+
+    @Benchmark
+    public List<String> rawMget() {
+        List<String> values = new ArrayList<>(BATCH);
+        for (String key : keys(next())) {
+            values.add(cluster.get(key));
+        }
+        return values;
+    }
+
+    @Benchmark
+    public String proxyGet() {
+        return proxy.get(key(next()));
+    }
+
+    @Benchmark
+    public String proxySet() {
+        int i = next();
+        return proxy.set(key(i), "value:" + i);
+    }
+
+    @Benchmark
+    public List<String> proxyMget() {
+        return proxy.mget(keys(next()));
+    }
+}
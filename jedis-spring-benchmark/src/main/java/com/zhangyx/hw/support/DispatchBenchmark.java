@@ -0,0 +1,123 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.reflect.Reflection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import redis.clients.jedis.Jedis;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比代理层的分发开销：反射Method.invoke与预编译分发表(生成的调用器)
+ * <p>
+ * 使用不走网络的Jedis，只测量代理本身的成本
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+
+    /**
+     * 不连接网络的Jedis
+     */
+    public static class StubJedis extends Jedis {
+        @Override
+        public String get(String key) {
+            return key;
+        }
+
+        @Override
+        public String set(String key, String value) {
+            return "OK";
+        }
+
+        @Override
+        public Long expire(String key, int seconds) {
+            return 1L;
+        }
+    }
+
+    private final Set<String> names = ImmutableSet.of("hashCode", "toString", "equals");
+
+    private StubJedis jedis;
+    private Method get;
+    private Object[] args;
+    private CommandDispatcher dispatcher;
+    private MergeJedisCmd reflectiveProxy;
+    private MergeJedisCmd dispatchProxy;
+
+    @Setup
+    public void setup() throws Exception {
+        jedis = new StubJedis();
+        get = MergeJedisCmd.class.getMethod("get", String.class);
+        args = new Object[]{"bench-key"};
+        dispatcher = CommandDispatcher.of(MergeJedisCmd.class, Jedis.class);
+
+        // 原有实现：名称集合判断 + Method.invoke
+        reflectiveProxy = Reflection.newProxy(MergeJedisCmd.class, (proxy, method, args) -> {
+            if (names.contains(method.getName())) {
+                return null;
+            }
+            return method.invoke(jedis, args);
+        });
+        // 现有实现：声明类判断 + 分发表
+        dispatchProxy = Reflection.newProxy(MergeJedisCmd.class, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return null;
+            }
+            return dispatcher.invoke(jedis, method, args);
+        });
+    }
+
+    @Benchmark
+    public Object direct() {
+        return jedis.get("bench-key");
+    }
+
+    @Benchmark
+    public Object reflectiveInvoke() throws Exception {
+        return get.invoke(jedis, args);
+    }
+
+    @Benchmark
+    public Object dispatchInvoke() throws Throwable {
+        return dispatcher.invoke(jedis, get, args);
+    }
+
+    @Benchmark
+    public Object reflectiveProxy() {
+        return reflectiveProxy.get("bench-key");
+    }
+
+    @Benchmark
+    public Object dispatchProxy() {
+        return dispatchProxy.get("bench-key");
+    }
+
+    /**
+     * 多个命令交替调用，调用点不再是单态，接近实际使用
+     */
+    @Benchmark
+    public Object reflectiveProxyMixed() {
+        return mixed(reflectiveProxy);
+    }
+
+    @Benchmark
+    public Object dispatchProxyMixed() {
+        return mixed(dispatchProxy);
+    }
+
+    private static Object mixed(MergeJedisCmd redis) {
+        redis.get("bench-key");
+        redis.set("bench-key", "v");
+        return redis.expire("bench-key", 60);
+    }
+}
@@ -0,0 +1,57 @@
+package com.zhangyx.hw.support;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 热点key探测在每次命令上的开销，对比不同的hotKey.sampleRate
+ * <p>
+ * 下游调用直接返回，不走网络，只测量采样、哈希和sketch更新的成本
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HotKeyDetectorBenchmark {
+
+    @Param({"1", "16", "64"})
+    public int sampleRate;
+
+    private HotKeyDetector detector;
+    private Method get;
+    private String[] keys;
+
+    @Setup
+    public void setup() throws Exception {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty("hotKey.sampleRate", sampleRate);
+        detector = new HotKeyDetector(config, "bench", key -> "node");
+        get = MergeJedisCmd.class.getMethod("get", String.class);
+        keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "bench-key:" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        detector.close();
+    }
+
+    @Benchmark
+    public Object execute() throws Throwable {
+        String key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        return detector.execute(get, new Object[]{key}, (m, a) -> a[0]);
+    }
+}
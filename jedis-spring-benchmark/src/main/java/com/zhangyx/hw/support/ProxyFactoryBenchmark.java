@@ -0,0 +1,56 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.reflect.Reflection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测量每次注入(getObject)的成本，配合 -prof gc 查看分配量
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProxyFactoryBenchmark {
+
+    private JedisPoolFactoryBean poolFactory;
+    private JedisClusterFactoryBean clusterFactory;
+
+    @Setup
+    public void setup() {
+        // 不加载配置，只测量代理本身
+        poolFactory = new JedisPoolFactoryBean();
+        clusterFactory = new JedisClusterFactoryBean();
+    }
+
+    /**
+     * 原有实现：每次getObject都创建新的代理和InvocationHandler
+     */
+    @Benchmark
+    public Object newProxyPerCall() {
+        return Reflection.newProxy(MergeJedisCmd.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                return null;
+            }
+        });
+    }
+
+    @Benchmark
+    public Object poolGetObject() throws Exception {
+        return poolFactory.getObject();
+    }
+
+    @Benchmark
+    public Object clusterGetObject() throws Exception {
+        return clusterFactory.getObject();
+    }
+}
@@ -0,0 +1,155 @@
+package com.zhangyx.hw.support;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.zhangyx.hw.support.BenchmarkSupport.BATCH;
+import static com.zhangyx.hw.support.BenchmarkSupport.KEYS;
+import static com.zhangyx.hw.support.BenchmarkSupport.key;
+import static com.zhangyx.hw.support.BenchmarkSupport.keys;
+
+/**
+ * 单节点：JedisPoolFactoryBean代理与直接使用JedisPool的对比
+ * <p>
+ * 连接进程内的{@link RespServer}，不需要真实的redis。线程数由 -t 或 {@link BenchmarkRunner} 指定
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SingleNodeBenchmark {
+
+    private RespServer server;
+    private JedisPool pool;
+    private JedisPoolFactoryBean factory;
+    private JedisPoolFactoryBean pipelinedFactory;
+    private MergeJedisCmd proxy;
+    private MergeJedisCmd pipelinedProxy;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = new RespServer();
+        String servers = "redis.servers=" + server.getHost() + ":" + server.getPort();
+
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(100);
+        pool = new JedisPool(poolConfig, server.getHost(), server.getPort());
+
+        factory = new JedisPoolFactoryBean();
+        factory.setConfigFileName(BenchmarkSupport.props(servers));
+        factory.afterPropertiesSet();
+        proxy = factory.getObject();
+
+        pipelinedFactory = new JedisPoolFactoryBean();
+        pipelinedFactory.setConfigFileName(BenchmarkSupport.props(servers, "pipeline.enable=true"));
+        pipelinedFactory.afterPropertiesSet();
+        pipelinedProxy = pipelinedFactory.getObject();
+
+        try (Jedis jedis = pool.getResource()) {
+            for (int i = 0; i < KEYS; i++) {
+                jedis.set(key(i), "value:" + i);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pipelinedFactory.destroy();
+        factory.destroy();
+        pool.close();
+        server.close();
+    }
+
+    private static int next() {
+        return ThreadLocalRandom.current().nextInt(KEYS);
+    }
+
+    @Benchmark
+    public String rawGet() {
+        try (Jedis jedis = pool.getResource()) {
+            return jedis.get(key(next()));
+        }
+    }
+
+    @Benchmark
+    public String rawSet() {
+        int i = next();
+        try (Jedis jedis = pool.getResource()) {
+            return jedis.set(key(i), "value:" + i);
+        }
+    }
+
+    @Benchmark
+    public List<String> rawMget() {
+        try (Jedis jedis = pool.getResource()) {
+            return jedis.mget(keys(next()));
+        }
+    }
+
+    /**
+     * 显式管道一次发送BATCH个GET
+     */
+    @Benchmark
+    public List<String> rawPipelinedGet() {
+        String[] keys = keys(next());
+        List<Response<String>> responses = new ArrayList<>(BATCH);
+        try (Jedis jedis = pool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (String key : keys) {
+                responses.add(pipeline.get(key));
+            }
+            pipeline.sync();
+        }
+        List<String> values = new ArrayList<>(BATCH);
+        for (Response<String> response : responses) {
+            values.add(response.get());
+        }
+        return values;
+    }
+
+    @Benchmark
+    public String proxyGet() {
+        return proxy.get(key(next()));
+    }
+
+    @Benchmark
+    public String proxySet() {
+        int i = next();
+        return proxy.set(key(i), "value:" + i);
+    }
+
+    @Benchmark
+    public List<String> proxyMget() {
+        return proxy.mget(keys(next()));
+    }
+
+    /**
+     * pipeline.enable=true，并发线程的命令由代理自动合并
+     */
+    @Benchmark
+    public String autoPipelinedGet() {
+        return pipelinedProxy.get(key(next()));
+    }
+
+    @Benchmark
+    public String autoPipelinedSet() {
+        int i = next();
+        return pipelinedProxy.set(key(i), "value:" + i);
+    }
+}
@@ -0,0 +1,155 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.collect.ImmutableMap;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * 异步接口的调用处理：把异步方法映射到同步代理上同名同参数的方法
+ * <p>
+ * 单节点且开启了自动管道、没有开启其他中间层时，命令经过熔断器后直接进入管道队列，不占用线程；
+ * 其他情况提交到有界线程池执行同步代理。
+ * 线程池满时按没有可用后端处理，返回默认值。
+ */
+@Slf4j
+final class AsyncCommandProxy implements InvocationHandler {
+    private final Class<?> asyncType;
+    private final Object syncProxy;
+    private final InvocationHandler syncHandler;
+    private final ConfigruableProvider provider;
+    private final Executor executor;
+    /**
+     * 异步方法 -> 同步方法，submit不在其中
+     */
+    private final Map<Method, Method> targets;
+
+    AsyncCommandProxy(Class<?> asyncType, Class<?> syncType, Object syncProxy, ConfigruableProvider provider,
+                      Executor executor) {
+        this.asyncType = asyncType;
+        this.syncProxy = syncProxy;
+        this.syncHandler = Proxy.getInvocationHandler(syncProxy);
+        this.provider = provider;
+        this.executor = executor;
+        this.targets = resolve(asyncType, syncType);
+    }
+
+    /**
+     * 启动时检查每个异步方法都能找到对应的同步方法
+     *
+     * @param asyncType
+     * @param syncType
+     * @return
+     */
+    private static Map<Method, Method> resolve(Class<?> asyncType, Class<?> syncType) {
+        ImmutableMap.Builder<Method, Method> targets = ImmutableMap.builder();
+        for (Method method : asyncType.getMethods()) {
+            if (method.isDefault() || isSubmit(method)) {
+                continue;
+            }
+            if (method.getReturnType() != CompletableFuture.class) {
+                throw new IllegalArgumentException(method + " must return CompletableFuture");
+            }
+            try {
+                targets.put(method, syncType.getMethod(method.getName(), method.getParameterTypes()));
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(method + " has no counterpart in " + syncType.getName(), e);
+            }
+        }
+        return targets.build();
+    }
+
+    private static boolean isSubmit(Method method) {
+        return method.getParameterCount() == 1 && method.getParameterTypes()[0] == Function.class;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return asyncType.getSimpleName() + "(" + provider.getConfigFileName() + ")";
+            }
+        }
+        if (isSubmit(method)) {
+            Function<Object, Object> command = (Function<Object, Object>) args[0];
+            return supply(method, () -> command.apply(syncProxy));
+        }
+        Method target = targets.get(method);
+        RedisBackend backend = provider.getBackend();
+        PipelineBatcher batcher = backend.getPipelineBatcher();
+        if (batcher != null && backend.getNearCache() == null && backend.getHotKeyDetector() == null
+                && backend.getSingleFlight() == null && backend.getWriteBehind() == null && batcher.supports(target)) {
+            return pipelined(backend, batcher, target, args);
+        }
+        return supply(target, () -> syncHandler.invoke(syncProxy, target, args));
+    }
+
+    /**
+     * 命令直接进入管道队列，完成后切换到线程池回调，避免调用方的回调占用刷新线程；
+     * 与同步代理一样经过节点的熔断器，熔断期间直接返回默认值
+     */
+    private CompletableFuture<Object> pipelined(RedisBackend backend, PipelineBatcher batcher, Method method,
+                                                Object[] args) {
+        String node = backend.nodeName(backend.getPool());
+        CircuitBreaker breaker = provider.breaker(node);
+        if (breaker != null && !breaker.tryAcquire()) {
+            provider.getMetrics().recordFallback(method.getName());
+            return CompletableFuture.completedFuture(provider.findDefault(method));
+        }
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        long start = System.nanoTime();
+        batcher.submit(method, args).whenComplete((value, e) -> {
+            long elapsed = System.nanoTime() - start;
+            provider.getMetrics().recordCommand(method.getName(), node, elapsed, e == null);
+            if (breaker != null) {
+                breaker.onResult(elapsed, e == null || !CircuitBreaker.isFailure(e));
+            }
+            if (e != null) {
+                log.error("cannot exchange Redis: " + provider.getConfigFileName(), e);
+            }
+            Object ret = e == null ? value : null;
+            try {
+                executor.execute(() -> result.complete(ret));
+            } catch (RejectedExecutionException rejected) {
+                result.complete(ret);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<Object> supply(Method method, Call call) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(call.call());
+                } catch (Throwable e) {
+                    log.error("cannot exchange Redis: " + provider.getConfigFileName(), e);
+                    result.complete(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            provider.getMetrics().recordFallback(method.getName());
+            result.complete(isSubmit(method) ? null : provider.findDefault(method));
+        }
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface Call {
+        Object call() throws Throwable;
+    }
+}
@@ -0,0 +1,10 @@
+package com.zhangyx.hw.support;
+
+/**
+ * 集群的异步代理
+ */
+public class AsyncJedisClusterFactoryBean extends AsyncJedisFactory<AsyncMergeJedisCmd> {
+    public AsyncJedisClusterFactoryBean() {
+        super(new JedisClusterFactoryBean());
+    }
+}
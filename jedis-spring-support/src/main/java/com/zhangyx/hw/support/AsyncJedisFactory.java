@@ -0,0 +1,102 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.reflect.Reflection;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.lang.reflect.ParameterizedType;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步代理，内部持有一个同步代理工厂，命令在有界线程池或自动管道上执行
+ * <p>
+ * 配置项(与同步代理共用同一个配置文件):
+ * <pre>
+ * async.threads=32         线程数，默认取pool.maxActive与32的较小值
+ * async.queueSize=10000    等待队列长度，队列满时返回默认值
+ * </pre>
+ *
+ * @param <A> 异步接口
+ */
+public abstract class AsyncJedisFactory<A> implements FactoryBean<A>, InitializingBean, DisposableBean {
+    private final Class<A> clazz;
+    private final ConfigruableProvider provider;
+    private final FactoryBean<?> syncFactory;
+    private ThreadPoolExecutor executor;
+    private volatile A proxy;
+
+    @SuppressWarnings("unchecked")
+    protected <P extends ConfigruableProvider & FactoryBean<?>> AsyncJedisFactory(P syncFactory) {
+        this.clazz = (Class<A>) ((ParameterizedType) getClass().getGenericSuperclass()).getActualTypeArguments()[0];
+        this.provider = syncFactory;
+        this.syncFactory = syncFactory;
+    }
+
+    public String getConfigFileName() {
+        return provider.getConfigFileName();
+    }
+
+    public void setConfigFileName(String configFileName) {
+        provider.setConfigFileName(configFileName);
+    }
+
+    /**
+     * 底层的同步代理工厂，可用于读取监控和缓存统计
+     *
+     * @return
+     */
+    public ConfigruableProvider getProvider() {
+        return provider;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        provider.afterPropertiesSet();
+        Configuration config = new PropertiesConfiguration(provider.getConfigFileName());
+        int threads = config.getInt("async.threads", Math.min(config.getInt("pool.maxActive", 100), 32));
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(config.getInt("async.queueSize", 10000)),
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("redis-async-" + provider.getConfigFileName() + "-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public A getObject() throws Exception {
+        A result = proxy;
+        if (result == null) {
+            synchronized (this) {
+                result = proxy;
+                if (result == null) {
+                    proxy = result = Reflection.newProxy(clazz, new AsyncCommandProxy(clazz,
+                            syncFactory.getObjectType(), syncFactory.getObject(), provider, executor));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Class<?> getObjectType() {
+        return clazz;
+    }
+
+    @Override
+    public boolean isSingleton() {
+        return true;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        provider.destroy();
+    }
+}
@@ -0,0 +1,10 @@
+package com.zhangyx.hw.support;
+
+/**
+ * 单节点或分片的异步代理
+ */
+public class AsyncJedisPoolFactoryBean extends AsyncJedisFactory<AsyncMergeJedisCmd> {
+    public AsyncJedisPoolFactoryBean() {
+        super(new JedisPoolFactoryBean());
+    }
+}
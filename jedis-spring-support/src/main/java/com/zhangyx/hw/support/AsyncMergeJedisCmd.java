@@ -0,0 +1,131 @@
+package com.zhangyx.hw.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * 异步版本的常用命令，方法与{@link MergeJedisCmd}中同名同参数的方法一一对应
+ * <p>
+ * 与同步接口的降级规则一致：没有可用后端时返回默认值，命令失败时结果为null，future本身不会异常完成。
+ * 未列出的命令通过{@link #submit(Function)}执行。
+ */
+public interface AsyncMergeJedisCmd {
+
+    /**
+     * 在异步线程上执行任意同步命令，可以包含多条命令
+     *
+     * @param command
+     * @param <R>
+     * @return
+     */
+    <R> CompletableFuture<R> submit(Function<? super MergeJedisCmd, ? extends R> command);
+
+    CompletableFuture<String> get(String key);
+
+    CompletableFuture<String> set(String key, String value);
+
+    CompletableFuture<String> set(String key, String value, String nxxx, String expx, long time);
+
+    CompletableFuture<String> setex(String key, int seconds, String value);
+
+    CompletableFuture<Long> setnx(String key, String value);
+
+    CompletableFuture<String> getSet(String key, String value);
+
+    CompletableFuture<Long> del(String key);
+
+    CompletableFuture<Long> del(String... keys);
+
+    CompletableFuture<Boolean> exists(String key);
+
+    CompletableFuture<Long> exists(String... keys);
+
+    CompletableFuture<Long> expire(String key, int seconds);
+
+    CompletableFuture<Long> pexpire(String key, long milliseconds);
+
+    CompletableFuture<Long> ttl(String key);
+
+    CompletableFuture<Long> incr(String key);
+
+    CompletableFuture<Long> incrBy(String key, long integer);
+
+    CompletableFuture<Long> decr(String key);
+
+    CompletableFuture<Long> decrBy(String key, long integer);
+
+    CompletableFuture<List<String>> mget(String... keys);
+
+    CompletableFuture<String> mset(String... keysvalues);
+
+    CompletableFuture<String> hget(String key, String field);
+
+    CompletableFuture<Long> hset(String key, String field, String value);
+
+    CompletableFuture<Long> hsetnx(String key, String field, String value);
+
+    CompletableFuture<String> hmset(String key, Map<String, String> hash);
+
+    CompletableFuture<List<String>> hmget(String key, String... fields);
+
+    CompletableFuture<Map<String, String>> hgetAll(String key);
+
+    CompletableFuture<Long> hdel(String key, String... field);
+
+    CompletableFuture<Boolean> hexists(String key, String field);
+
+    CompletableFuture<Long> hincrBy(String key, String field, long value);
+
+    CompletableFuture<Long> sadd(String key, String... member);
+
+    CompletableFuture<Long> srem(String key, String... member);
+
+    CompletableFuture<Set<String>> smembers(String key);
+
+    CompletableFuture<Boolean> sismember(String key, String member);
+
+    CompletableFuture<Long> zadd(String key, double score, String member);
+
+    CompletableFuture<Long> zrem(String key, String... member);
+
+    CompletableFuture<Double> zscore(String key, String member);
+
+    CompletableFuture<Double> zincrby(String key, double score, String member);
+
+    CompletableFuture<Set<String>> zrange(String key, long start, long end);
+
+    CompletableFuture<Set<String>> zrevrange(String key, long start, long end);
+
+    CompletableFuture<Long> lpush(String key, String... string);
+
+    CompletableFuture<Long> rpush(String key, String... string);
+
+    CompletableFuture<String> lpop(String key);
+
+    CompletableFuture<String> rpop(String key);
+
+    CompletableFuture<List<String>> lrange(String key, long start, long end);
+
+    CompletableFuture<Long> llen(String key);
+
+    CompletableFuture<byte[]> get(byte[] key);
+
+    CompletableFuture<String> set(byte[] key, byte[] value);
+
+    CompletableFuture<Long> del(byte[] key);
+
+    CompletableFuture<Boolean> exists(byte[] key);
+
+    CompletableFuture<Long> expire(byte[] key, int seconds);
+
+    CompletableFuture<List<byte[]>> mget(byte[]... keys);
+
+    CompletableFuture<byte[]> hget(byte[] key, byte[] field);
+
+    CompletableFuture<Long> hset(byte[] key, byte[] field, byte[] value);
+
+    CompletableFuture<Map<byte[], byte[]>> hgetAll(byte[] key);
+}
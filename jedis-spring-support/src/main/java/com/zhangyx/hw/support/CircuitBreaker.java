@@ -0,0 +1,207 @@
+package com.zhangyx.hw.support;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.configuration.Configuration;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个节点的熔断器
+ * <p>
+ * 按时间分桶统计最近一段时间的调用数、失败数和慢调用数，失败率或慢调用率超过阈值时打开，
+ * 打开期间直接拒绝调用；冷却时间过后进入半开，放行少量探测调用，全部成功则关闭，任一失败重新打开。
+ * <p>
+ * 配置项:
+ * <pre>
+ * breaker.enable=false
+ * breaker.windowMillis=10000     统计窗口
+ * breaker.minCalls=20            窗口内调用数达到该值才判断
+ * breaker.errorRate=0.5          失败率阈值
+ * breaker.slowCallMillis=1000    超过该耗时算慢调用
+ * breaker.slowCallRate=0.8       慢调用率阈值
+ * breaker.openMillis=5000        打开后多久进入半开
+ * breaker.halfOpenCalls=3        半开时放行的探测调用数
+ * </pre>
+ */
+@Slf4j
+final class CircuitBreaker {
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final int BUCKETS = 10;
+
+    private final String node;
+    private final Settings settings;
+    private final RedisMetrics metrics;
+    private final Bucket[] buckets = new Bucket[BUCKETS];
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private volatile long openUntil;
+    private final AtomicInteger probes = new AtomicInteger();
+    private final AtomicInteger probeSuccesses = new AtomicInteger();
+
+    CircuitBreaker(String node, Settings settings, RedisMetrics metrics) {
+        this.node = node;
+        this.settings = settings;
+        this.metrics = metrics;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    /**
+     * 是否算作节点故障，命令本身的错误(WRONGTYPE、MOVED等)不算
+     *
+     * @param e
+     * @return
+     */
+    static boolean isFailure(Throwable e) {
+        return !(e instanceof JedisDataException);
+    }
+
+    State getState() {
+        return state.get();
+    }
+
+    /**
+     * 是否放行本次调用，放行后必须调用{@link #onResult(long, boolean)}
+     *
+     * @return
+     */
+    boolean tryAcquire() {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil || !state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+                    return false;
+                }
+                probeSuccesses.set(0);
+                probes.set(1);
+                changed(State.OPEN, State.HALF_OPEN);
+                return true;
+            default:
+                if (probes.incrementAndGet() <= settings.halfOpenCalls) {
+                    return true;
+                }
+                probes.decrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * 记录调用结果
+     *
+     * @param nanos   耗时
+     * @param success 是否成功，数据类错误(如WRONGTYPE)应算作成功
+     */
+    void onResult(long nanos, boolean success) {
+        boolean slow = nanos >= settings.slowCallNanos;
+        State current = state.get();
+        if (current == State.HALF_OPEN) {
+            if (!success || slow) {
+                trip(State.HALF_OPEN);
+            } else if (probeSuccesses.incrementAndGet() >= settings.halfOpenCalls
+                    && state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+                for (Bucket bucket : buckets) {
+                    bucket.reset(-1);
+                }
+                changed(State.HALF_OPEN, State.CLOSED);
+            }
+            return;
+        }
+
+        long epoch = System.currentTimeMillis() / settings.bucketMillis;
+        Bucket bucket = buckets[(int) (epoch % BUCKETS)];
+        if (bucket.epoch.get() != epoch) {
+            synchronized (bucket) {
+                if (bucket.epoch.get() != epoch) {
+                    bucket.reset(epoch);
+                }
+            }
+        }
+        bucket.calls.increment();
+        if (!success) {
+            bucket.failures.increment();
+        }
+        if (slow) {
+            bucket.slowCalls.increment();
+        }
+        if (current == State.CLOSED && (!success || slow) && exceeded(epoch)) {
+            trip(State.CLOSED);
+        }
+    }
+
+    private boolean exceeded(long epoch) {
+        long calls = 0;
+        long failures = 0;
+        long slowCalls = 0;
+        for (Bucket bucket : buckets) {
+            if (epoch - bucket.epoch.get() < BUCKETS) {
+                calls += bucket.calls.sum();
+                failures += bucket.failures.sum();
+                slowCalls += bucket.slowCalls.sum();
+            }
+        }
+        return calls >= settings.minCalls
+                && (failures >= settings.errorRate * calls || slowCalls >= settings.slowCallRate * calls);
+    }
+
+    private void trip(State from) {
+        openUntil = System.currentTimeMillis() + settings.openMillis;
+        if (state.compareAndSet(from, State.OPEN)) {
+            changed(from, State.OPEN);
+        }
+    }
+
+    private void changed(State from, State to) {
+        if (to == State.OPEN) {
+            log.warn("circuit breaker of redis node {} is open for {}ms", node, settings.openMillis);
+        } else {
+            log.info("circuit breaker of redis node {} is {}", node, to);
+        }
+        metrics.recordBreakerTransition(node, from.name(), to.name());
+    }
+
+    private static final class Bucket {
+        private final AtomicLong epoch = new AtomicLong(-1);
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder slowCalls = new LongAdder();
+
+        private void reset(long newEpoch) {
+            calls.reset();
+            failures.reset();
+            slowCalls.reset();
+            epoch.set(newEpoch);
+        }
+    }
+
+    /**
+     * 熔断参数，所有节点共用
+     */
+    static final class Settings {
+        final long bucketMillis;
+        final int minCalls;
+        final double errorRate;
+        final long slowCallNanos;
+        final double slowCallRate;
+        final long openMillis;
+        final int halfOpenCalls;
+
+        Settings(Configuration config) {
+            this.bucketMillis = Math.max(1, config.getLong("breaker.windowMillis", 10000) / BUCKETS);
+            this.minCalls = config.getInt("breaker.minCalls", 20);
+            this.errorRate = config.getDouble("breaker.errorRate", 0.5);
+            this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("breaker.slowCallMillis", 1000));
+            this.slowCallRate = config.getDouble("breaker.slowCallRate", 0.8);
+            this.openMillis = config.getLong("breaker.openMillis", 5000);
+            this.halfOpenCalls = Math.max(1, config.getInt("breaker.halfOpenCalls", 3));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.zhangyx.hw.support;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 按节点创建的熔断器，配置热加载后节点名不变时沿用原来的状态
+ */
+final class CircuitBreakers {
+    private final CircuitBreaker.Settings settings;
+    private final RedisMetrics metrics;
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    CircuitBreakers(CircuitBreaker.Settings settings, RedisMetrics metrics) {
+        this.settings = settings;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 节点的熔断器，节点未知或跨多个节点时返回null
+     *
+     * @param node
+     * @return
+     */
+    CircuitBreaker get(String node) {
+        if (RedisMetrics.UNKNOWN_NODE.equals(node) || RedisMetrics.MULTI_NODE.equals(node)) {
+            return null;
+        }
+        CircuitBreaker breaker = breakers.get(node);
+        if (breaker == null) {
+            breaker = breakers.computeIfAbsent(node, k -> new CircuitBreaker(k, settings, metrics));
+        }
+        return breaker;
+    }
+
+    Map<String, CircuitBreaker> getAll() {
+        return breakers;
+    }
+}
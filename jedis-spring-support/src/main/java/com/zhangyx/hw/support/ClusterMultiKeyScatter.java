@@ -0,0 +1,80 @@
+package com.zhangyx.hw.support;
+
+import lombok.extern.slf4j.Slf4j;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.JedisClusterCRC16;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 集群模式下的多key命令：按master分组，节点内按slot拆成多条命令放进同一个管道
+ * <p>
+ * 拓扑过期(MOVED/ASK)或slot未知时，安排后台刷新拓扑并退回JedisCluster逐slot执行还没有结果的批次
+ */
+@Slf4j
+class ClusterMultiKeyScatter extends MultiKeyScatter<JedisPool> {
+    private final JedisCluster cluster;
+    private final ClusterTopology topology;
+
+    ClusterMultiKeyScatter(JedisCluster cluster, ClusterTopology topology, ExecutorService executor, long timeoutMillis) {
+        super(executor, timeoutMillis);
+        this.cluster = cluster;
+        this.topology = topology;
+    }
+
+    @Override
+    Object execute(Method method, Object[] args) throws Throwable {
+        return scatter(key -> topology.getMaster(partition(key)), method, args, null);
+    }
+
+    @Override
+    protected int partition(Object key) {
+        return key instanceof byte[] ? JedisClusterCRC16.getSlot((byte[]) key) : JedisClusterCRC16.getSlot((String) key);
+    }
+
+    @Override
+    protected void execute(JedisPool node, Command command, List<Batch> batches) throws Exception {
+        if (node == null) {
+            direct(command, batches);
+            return;
+        }
+        try (Jedis jedis = node.getResource()) {
+            pipeline(jedis, command, batches);
+        } catch (JedisRedirectionException e) {
+            log.warn("cluster topology changed during {}, refresh slots: {}", command, e.getMessage());
+            topology.redirected(e);
+            direct(command, batches);
+        }
+    }
+
+    /**
+     * 每个批次都在同一个slot内，JedisCluster可以直接处理并跟随重定向；
+     * 管道中已经成功的批次不再执行，避免del/exists重复计数
+     */
+    private void direct(Command command, List<Batch> batches) {
+        for (Batch batch : batches) {
+            if (batch.result != null) {
+                continue;
+            }
+            boolean binary = batch.params instanceof byte[][];
+            switch (command) {
+                case MGET:
+                    batch.result = binary ? cluster.mget((byte[][]) batch.params) : cluster.mget((String[]) batch.params);
+                    break;
+                case MSET:
+                    batch.result = binary ? cluster.mset((byte[][]) batch.params) : cluster.mset((String[]) batch.params);
+                    break;
+                case DEL:
+                    batch.result = binary ? cluster.del((byte[][]) batch.params) : cluster.del((String[]) batch.params);
+                    break;
+                default:
+                    batch.result = binary ? cluster.exists((byte[][]) batch.params) : cluster.exists((String[]) batch.params);
+            }
+        }
+    }
+}
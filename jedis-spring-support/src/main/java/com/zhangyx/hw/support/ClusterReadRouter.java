@@ -0,0 +1,344 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.base.CaseFormat;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectFactory;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.Pool;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 集群读写分离：只读的单key命令按cluster.readFrom发往副本
+ * <p>
+ * 副本的slot分布来自{@link ClusterTopology}，每个副本单独建连接池，新连接先执行READONLY；
+ * JedisCluster仍然只访问master，写命令、多key命令和SCAN系列不受影响；拓扑刷新后关闭已经移除的副本的连接池
+ * <p>
+ * 配置项:
+ * <pre>
+ * cluster.readFrom=master   master|replica|replicaPreferred|nearest
+ * </pre>
+ * replica只读副本，slot没有副本时报错；replicaPreferred没有副本或副本不可用时读master；
+ * nearest在master和副本中选平均耗时最短的节点；平均耗时只由发往该节点的读更新，
+ * 因此每32次读随机选一个节点，变慢后恢复的节点能重新被选中
+ */
+@Slf4j
+class ClusterReadRouter implements Closeable {
+    enum ReadFrom {
+        MASTER, REPLICA, REPLICA_PREFERRED, NEAREST;
+
+        /**
+         * 按配置值解析，如replicaPreferred，忽略大小写
+         *
+         * @param value
+         * @return
+         */
+        static ReadFrom of(String value) {
+            if (Strings.isNullOrEmpty(value)) {
+                return MASTER;
+            }
+            String name = CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_UNDERSCORE, value.trim());
+            for (ReadFrom readFrom : values()) {
+                if (readFrom.name().equalsIgnoreCase(name) || readFrom.name().equalsIgnoreCase(value.trim())) {
+                    return readFrom;
+                }
+            }
+            throw new IllegalArgumentException("unknown cluster.readFrom: " + value);
+        }
+    }
+
+    /**
+     * nearest模式下平均耗时的衰减权重
+     */
+    private static final double EWMA_WEIGHT = 0.2;
+    /**
+     * nearest模式下每多少次读随机选一次节点，用于重新测量没有被选中的节点
+     */
+    private static final int EXPLORE_RATE = 32;
+    /**
+     * 游标只在返回它的节点上有效，每页随机选副本会跳过或重复数据
+     */
+    private static final Set<String> CURSOR_COMMANDS = ImmutableSet.of("scan", "hscan", "sscan", "zscan");
+
+    private final ReadFrom readFrom;
+    private final ClusterTopology topology;
+    private final GenericObjectPoolConfig poolConfig;
+    private final int connTimeout;
+    private final int soTimeout;
+    private final String password;
+    /**
+     * 副本 host:port 到READONLY连接池
+     */
+    private final ConcurrentMap<String, Pool<Jedis>> replicas = new ConcurrentHashMap<>();
+    /**
+     * 节点 host:port 到平均耗时(纳秒)，只在nearest模式下使用
+     */
+    private final ConcurrentMap<String, AtomicLong> latencies = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    ClusterReadRouter(ReadFrom readFrom, ClusterTopology topology, GenericObjectPoolConfig poolConfig,
+                      int connTimeout, int soTimeout, String password) {
+        this.readFrom = readFrom;
+        this.topology = topology;
+        this.poolConfig = poolConfig;
+        this.connTimeout = connTimeout;
+        this.soTimeout = soTimeout;
+        this.password = password;
+        // 启动时就为已知副本建好连接池，预热时一并建立连接
+        topology.getAllReplicaNames().forEach(this::replica);
+    }
+
+    ReadFrom getReadFrom() {
+        return readFrom;
+    }
+
+    /**
+     * 是否可以按key路由到副本，key由{@link CommandTypes#firstKey(Method, Object[])}确定
+     *
+     * @param method
+     * @return
+     */
+    boolean supports(Method method) {
+        return CommandTypes.isReadOnly(method) && !CURSOR_COMMANDS.contains(method.getName());
+    }
+
+    /**
+     * 选择执行读命令的节点
+     *
+     * @param key String或byte[]
+     * @return 返回null时按原来的方式由JedisCluster读master
+     */
+    Route select(Object key) {
+        int slot = key instanceof byte[] ? JedisClusterCRC16.getSlot((byte[]) key) : JedisClusterCRC16.getSlot((String) key);
+        String[] names = topology.getReplicaNames(slot);
+        switch (readFrom) {
+            case REPLICA:
+                if (names.length == 0) {
+                    throw new IllegalStateException("no replica for slot " + slot);
+                }
+                return replicaRoute(names[ThreadLocalRandom.current().nextInt(names.length)]);
+            case REPLICA_PREFERRED:
+                return names.length == 0 ? null : replicaRoute(names[ThreadLocalRandom.current().nextInt(names.length)]);
+            case NEAREST:
+                return nearest(slot, names);
+            default:
+                return null;
+        }
+    }
+
+    private Route nearest(int slot, String[] names) {
+        String master = topology.getMasterName(slot);
+        Pool<Jedis> masterPool = topology.getMaster(slot);
+        if (names.length > 0 && ThreadLocalRandom.current().nextInt(EXPLORE_RATE) == 0) {
+            int candidates = masterPool != null ? names.length + 1 : names.length;
+            int picked = ThreadLocalRandom.current().nextInt(candidates);
+            return picked < names.length ? replicaRoute(names[picked]) : new Route(master, masterPool, false);
+        }
+        String best = masterPool != null ? master : null;
+        long bestNanos = best != null ? latency(best).get() : Long.MAX_VALUE;
+        for (String name : names) {
+            long nanos = latency(name).get();
+            if (nanos < bestNanos) {
+                best = name;
+                bestNanos = nanos;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        return best.equals(master) ? new Route(master, masterPool, false) : replicaRoute(best);
+    }
+
+    private Route replicaRoute(String name) {
+        return new Route(name, replica(name), true);
+    }
+
+    /**
+     * 记录一次读命令的耗时，nearest据此选择节点
+     *
+     * @param node
+     * @param nanos
+     */
+    void record(String node, long nanos) {
+        if (readFrom != ReadFrom.NEAREST) {
+            return;
+        }
+        AtomicLong latency = latency(node);
+        long old = latency.get();
+        latency.compareAndSet(old, old == 0 ? nanos : (long) (old + EWMA_WEIGHT * (nanos - old)));
+    }
+
+    private AtomicLong latency(String node) {
+        AtomicLong latency = latencies.get(node);
+        return latency != null ? latency : latencies.computeIfAbsent(node, k -> new AtomicLong());
+    }
+
+    private Pool<Jedis> replica(String name) {
+        Pool<Jedis> pool = replicas.get(name);
+        if (pool != null) {
+            return pool;
+        }
+        if (closed) {
+            throw new IllegalStateException("cluster read router is closed");
+        }
+        return replicas.computeIfAbsent(name, k -> {
+            int colon = k.lastIndexOf(':');
+            return new ReadOnlyJedisPool(poolConfig, new ReadOnlyJedisFactory(k.substring(0, colon),
+                    Integer.parseInt(k.substring(colon + 1)), connTimeout, soTimeout, password));
+        });
+    }
+
+    /**
+     * 副本的连接池，预热和关闭时使用
+     *
+     * @return
+     */
+    Collection<Pool<Jedis>> getReplicaPools() {
+        return replicas.values();
+    }
+
+    /**
+     * 拓扑刷新后调用，关闭已经不在拓扑中的副本的连接池
+     * <p>
+     * 已经选中这些副本的读命令借连接失败，按副本不可用处理
+     */
+    void retainReplicas() {
+        Set<String> current = topology.getAllReplicaNames();
+        for (String name : replicas.keySet()) {
+            if (!current.contains(name)) {
+                latencies.remove(name);
+                Pool<Jedis> pool = replicas.remove(name);
+                if (pool != null) {
+                    log.info("replica {} removed from cluster topology, close its pool", name);
+                    close(pool);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Pool<Jedis> pool : replicas.values()) {
+            close(pool);
+        }
+        replicas.clear();
+    }
+
+    private static void close(Pool<Jedis> pool) {
+        try {
+            pool.close();
+        } catch (RuntimeException e) {
+            log.error("cannot close replica pool", e);
+        }
+    }
+
+    /**
+     * 一次读命令的目标节点
+     */
+    static final class Route {
+        final String node;
+        final Pool<Jedis> pool;
+        final boolean replica;
+
+        private Route(String node, Pool<Jedis> pool, boolean replica) {
+            this.node = node;
+            this.pool = pool;
+            this.replica = replica;
+        }
+    }
+
+    /**
+     * 借出的连接关联到本连接池，close时归还
+     */
+    private static final class ReadOnlyJedisPool extends Pool<Jedis> {
+        private ReadOnlyJedisPool(GenericObjectPoolConfig poolConfig, PooledObjectFactory<Jedis> factory) {
+            super(poolConfig, factory);
+        }
+
+        @Override
+        public Jedis getResource() {
+            Jedis jedis = super.getResource();
+            jedis.setDataSource(this);
+            return jedis;
+        }
+    }
+
+    /**
+     * 新建连接时认证并执行READONLY
+     */
+    private static final class ReadOnlyJedisFactory implements PooledObjectFactory<Jedis> {
+        private final String host;
+        private final int port;
+        private final int connTimeout;
+        private final int soTimeout;
+        private final String password;
+
+        private ReadOnlyJedisFactory(String host, int port, int connTimeout, int soTimeout, String password) {
+            this.host = host;
+            this.port = port;
+            this.connTimeout = connTimeout;
+            this.soTimeout = soTimeout;
+            this.password = password;
+        }
+
+        @Override
+        public PooledObject<Jedis> makeObject() {
+            Jedis jedis = new Jedis(host, port, connTimeout, soTimeout);
+            try {
+                jedis.connect();
+                if (!Strings.isNullOrEmpty(password)) {
+                    jedis.auth(password);
+                }
+                jedis.readonly();
+            } catch (RuntimeException e) {
+                jedis.close();
+                throw e;
+            }
+            return new DefaultPooledObject<>(jedis);
+        }
+
+        @Override
+        public void destroyObject(PooledObject<Jedis> p) {
+            Jedis jedis = p.getObject();
+            if (jedis.isConnected()) {
+                try {
+                    jedis.quit();
+                } catch (RuntimeException e) {
+                    // 连接已断开时忽略
+                }
+                jedis.disconnect();
+            }
+        }
+
+        @Override
+        public boolean validateObject(PooledObject<Jedis> p) {
+            try {
+                return p.getObject().isConnected() && "PONG".equals(p.getObject().ping());
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void activateObject(PooledObject<Jedis> p) {
+        }
+
+        @Override
+        public void passivateObject(PooledObject<Jedis> p) {
+        }
+    }
+}
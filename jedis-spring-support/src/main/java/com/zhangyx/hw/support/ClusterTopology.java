@@ -0,0 +1,395 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.SafeEncoder;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 集群slot到master连接池的映射
+ * <p>
+ * 由CLUSTER SLOTS构建，复用JedisCluster已经为各节点创建的连接池，供需要按节点分组的批量命令使用；
+ * 同时记录每个slot的副本，供读写分离使用
+ * <p>
+ * 拓扑由后台线程定期刷新，命令遇到MOVED时只更新对应的slot并安排一次后台刷新，调用线程不再等待整张表重建；
+ * JedisCluster还不知道的节点(如扩容后新加入的master)用同样的连接池配置单独建池，不再把slot映射为未知
+ * <p>
+ * 配置项:
+ * <pre>
+ * cluster.refreshMillis=60000   定期刷新间隔，0表示只在重定向和连接失败时刷新
+ * </pre>
+ */
+@Slf4j
+class ClusterTopology implements Closeable {
+    static final int SLOTS = 16384;
+    private static final String[] NO_REPLICAS = new String[0];
+
+    private final JedisCluster cluster;
+    private final GenericObjectPoolConfig poolConfig;
+    private final int connTimeout;
+    private final int soTimeout;
+    private final String password;
+    /**
+     * JedisCluster还不知道的节点 host:port 到自建的连接池
+     */
+    private final ConcurrentMap<String, JedisPool> extraPools = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+    private volatile JedisPool[] masters = new JedisPool[SLOTS];
+    /**
+     * slot所在master的 host:port，供监控使用
+     */
+    private volatile String[] masterNames = new String[SLOTS];
+    /**
+     * slot所有副本的 host:port，同一范围内的slot共用一个数组
+     */
+    private volatile String[][] replicaNames = new String[SLOTS][];
+
+    private final RedisMetrics metrics;
+    private final ScheduledExecutorService refresher;
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    /**
+     * 每次成功刷新后在刷新线程上执行，如向新节点加载脚本
+     */
+    private volatile Runnable refreshListener;
+
+    /**
+     * @param cluster
+     * @param metrics
+     * @param refreshMillis 定期刷新间隔，小于等于0时不定期刷新
+     * @param name          线程名后缀
+     * @param poolConfig    为JedisCluster还不知道的节点建连接池时使用，与JedisCluster相同
+     * @param connTimeout
+     * @param soTimeout
+     * @param password
+     */
+    ClusterTopology(JedisCluster cluster, RedisMetrics metrics, long refreshMillis, String name,
+                    GenericObjectPoolConfig poolConfig, int connTimeout, int soTimeout, String password) {
+        this.cluster = cluster;
+        this.poolConfig = poolConfig;
+        this.connTimeout = connTimeout;
+        this.soTimeout = soTimeout;
+        this.password = password;
+        this.metrics = metrics;
+        this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("redis-cluster-topology-" + name).build());
+        refresh();
+        if (refreshMillis > 0) {
+            refresher.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * slot所在master的连接池，拓扑未知时返回null
+     *
+     * @param slot
+     * @return
+     */
+    JedisPool getMaster(int slot) {
+        return masters[slot];
+    }
+
+    /**
+     * slot所在master的 host:port，拓扑未知时返回null
+     *
+     * @param slot
+     * @return
+     */
+    String getMasterName(int slot) {
+        return masterNames[slot];
+    }
+
+    /**
+     * slot所有副本的 host:port，没有副本或拓扑未知时返回空数组
+     *
+     * @param slot
+     * @return
+     */
+    String[] getReplicaNames(int slot) {
+        String[] names = replicaNames[slot];
+        return names != null ? names : NO_REPLICAS;
+    }
+
+    /**
+     * 所有副本的 host:port
+     *
+     * @return
+     */
+    Set<String> getAllReplicaNames() {
+        Set<String> all = new HashSet<>();
+        for (String[] names : replicaNames) {
+            if (names != null) {
+                Collections.addAll(all, names);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * 所有master的 host:port，按slot顺序
+     *
+     * @return
+     */
+    Set<String> getAllMasterNames() {
+        Set<String> all = new LinkedHashSet<>();
+        for (String name : masterNames) {
+            if (name != null) {
+                all.add(name);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * 节点 host:port 对应的连接池，JedisCluster还不知道该节点时使用自建的连接池
+     * <p>
+     * 自建的连接池一直用到节点离开拓扑，即使JedisCluster随后也为该节点建了连接池，
+     * 避免其他线程刚取到的连接池被关闭
+     *
+     * @param name
+     * @return
+     */
+    JedisPool getNode(String name) {
+        JedisPool pool = extraPools.get(name);
+        if (pool == null) {
+            pool = cluster.getClusterNodes().get(name);
+        }
+        if (pool != null || closed) {
+            return pool;
+        }
+        return extraPools.computeIfAbsent(name, k -> {
+            int colon = k.lastIndexOf(':');
+            log.info("cluster node {} is not known by JedisCluster yet, create its pool", k);
+            return new JedisPool(poolConfig, k.substring(0, colon), Integer.parseInt(k.substring(colon + 1)),
+                    connTimeout, soTimeout, password, Protocol.DEFAULT_DATABASE, null, false, null, null, null);
+        });
+    }
+
+    /**
+     * 为JedisCluster还不知道的节点自建的连接池，预热和关闭时使用
+     *
+     * @return
+     */
+    Collection<JedisPool> getExtraPools() {
+        return extraPools.values();
+    }
+
+    /**
+     * JedisCluster的各节点连接池加上自建的连接池
+     *
+     * @return
+     */
+    List<JedisPool> getAllNodes() {
+        List<JedisPool> all = new ArrayList<>(cluster.getClusterNodes().values());
+        all.addAll(extraPools.values());
+        return all;
+    }
+
+    /**
+     * 处理重定向并记录次数：MOVED把slot指向新的master，并在后台刷新整张表；ASK只是临时转发，不修改拓扑
+     *
+     * @param e
+     * @return 目标节点的连接池，已关闭时返回null
+     */
+    JedisPool redirected(JedisRedirectionException e) {
+        String name = e.getTargetNode().toString();
+        boolean ask = e instanceof JedisAskDataException;
+        metrics.recordRedirect(name, ask);
+        JedisPool pool = getNode(name);
+        if (ask) {
+            return pool;
+        }
+        if (pool != null) {
+            // 单个元素的写不保证立即可见，其他线程最多多经历一次MOVED
+            masters[e.getSlot()] = pool;
+            masterNames[e.getSlot()] = name;
+        }
+        scheduleRefresh();
+        return pool;
+    }
+
+    /**
+     * 安排一次后台刷新，已经有等待执行的刷新时忽略
+     */
+    void scheduleRefresh() {
+        if (refreshPending.compareAndSet(false, true)) {
+            try {
+                refresher.execute(() -> {
+                    refreshPending.set(false);
+                    refresh();
+                });
+            } catch (RejectedExecutionException e) {
+                // 已关闭
+                refreshPending.set(false);
+            }
+        }
+    }
+
+    /**
+     * 从任一可用节点重新读取CLUSTER SLOTS
+     */
+    synchronized void refresh() {
+        Map<String, JedisPool> nodes = cluster.getClusterNodes();
+        for (JedisPool pool : nodes.values()) {
+            try (Jedis jedis = pool.getResource()) {
+                List<Object> slots = jedis.clusterSlots();
+                masters = parse(slots);
+                masterNames = parseNames(slots);
+                replicaNames = parseReplicas(slots);
+                metrics.recordTopologyRefresh(true);
+                retainExtraPools();
+            } catch (Exception e) {
+                log.warn("cannot read cluster slots from node, try next", e);
+                continue;
+            }
+            // 回调可能借其他节点的连接，先归还当前连接
+            notifyRefreshed();
+            return;
+        }
+        metrics.recordTopologyRefresh(false);
+        log.error("cannot refresh cluster slots from any of {}", nodes.keySet());
+    }
+
+    /**
+     * 设置刷新成功后的回调
+     *
+     * @param listener
+     */
+    void setRefreshListener(Runnable listener) {
+        this.refreshListener = listener;
+    }
+
+    private void notifyRefreshed() {
+        Runnable listener = refreshListener;
+        if (listener != null) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                log.warn("cluster topology refresh listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * 关闭已经不在拓扑中的节点的自建连接池
+     * <p>
+     * 刷新前已经取到这些连接池的命令借连接失败，按连接错误处理
+     */
+    private void retainExtraPools() {
+        Set<String> current = getAllMasterNames();
+        for (String name : extraPools.keySet()) {
+            if (!current.contains(name)) {
+                JedisPool pool = extraPools.remove(name);
+                if (pool != null) {
+                    close(pool);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        refresher.shutdownNow();
+        for (JedisPool pool : extraPools.values()) {
+            close(pool);
+        }
+        extraPools.clear();
+    }
+
+    private static void close(JedisPool pool) {
+        try {
+            pool.close();
+        } catch (RuntimeException e) {
+            log.error("cannot close cluster node pool", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private JedisPool[] parse(List<Object> slots) {
+        JedisPool[] table = new JedisPool[SLOTS];
+        for (Object item : slots) {
+            List<Object> range = (List<Object>) item;
+            if (range.size() < 3) {
+                continue;
+            }
+            int start = ((Long) range.get(0)).intValue();
+            int end = ((Long) range.get(1)).intValue();
+            JedisPool pool = getNode(nodeKey((List<Object>) range.get(2)));
+            for (int slot = start; slot <= end; slot++) {
+                table[slot] = pool;
+            }
+        }
+        return table;
+    }
+
+    @SuppressWarnings("unchecked")
+    private String[] parseNames(List<Object> slots) {
+        String[] table = new String[SLOTS];
+        for (Object item : slots) {
+            List<Object> range = (List<Object>) item;
+            if (range.size() < 3) {
+                continue;
+            }
+            String name = nodeKey((List<Object>) range.get(2));
+            for (int slot = ((Long) range.get(0)).intValue(); slot <= ((Long) range.get(1)).intValue(); slot++) {
+                table[slot] = name;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * 每个范围第4个元素开始是副本
+     */
+    @SuppressWarnings("unchecked")
+    private String[][] parseReplicas(List<Object> slots) {
+        String[][] table = new String[SLOTS][];
+        for (Object item : slots) {
+            List<Object> range = (List<Object>) item;
+            if (range.size() < 4) {
+                continue;
+            }
+            String[] names = new String[range.size() - 3];
+            for (int i = 3; i < range.size(); i++) {
+                names[i - 3] = nodeKey((List<Object>) range.get(i));
+            }
+            for (int slot = ((Long) range.get(0)).intValue(); slot <= ((Long) range.get(1)).intValue(); slot++) {
+                table[slot] = names;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * CLUSTER SLOTS中的节点信息 [host, port, id] 转为 host:port
+     *
+     * @param node
+     * @return
+     */
+    static String nodeKey(List<Object> node) {
+        return SafeEncoder.encode((byte[]) node.get(0)) + ':' + node.get(1);
+    }
+}
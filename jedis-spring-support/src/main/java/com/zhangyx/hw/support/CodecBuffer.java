@@ -0,0 +1,65 @@
+package com.zhangyx.hw.support;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * 编解码使用的线程复用缓冲区，避免每次编码都从小数组开始扩容
+ * <p>
+ * 每个线程两个槽位(编码、压缩)，嵌套使用同一个槽位时临时分配新的缓冲区；
+ * 用完后超过{@link #MAX_RETAINED}的缓冲区不再保留，避免个别大对象长期占用内存
+ */
+final class CodecBuffer extends ByteArrayOutputStream {
+    static final int ENCODE = 0;
+    static final int COMPRESS = 1;
+    private static final int MAX_RETAINED = 1 << 20;
+    private static final ThreadLocal<CodecBuffer[]> BUFFERS = ThreadLocal.withInitial(
+            () -> new CodecBuffer[]{new CodecBuffer(true), new CodecBuffer(true)});
+
+    private final boolean pooled;
+    private boolean inUse;
+
+    private CodecBuffer(boolean pooled) {
+        super(1024);
+        this.pooled = pooled;
+    }
+
+    /**
+     * 取当前线程的缓冲区，已被占用时返回临时缓冲区
+     *
+     * @param slot {@link #ENCODE}或{@link #COMPRESS}
+     * @return
+     */
+    static CodecBuffer acquire(int slot) {
+        CodecBuffer buffer = BUFFERS.get()[slot];
+        if (buffer.inUse) {
+            return new CodecBuffer(false);
+        }
+        buffer.inUse = true;
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区，之后不能再读取其内容
+     *
+     * @param slot
+     */
+    void release(int slot) {
+        if (!pooled) {
+            return;
+        }
+        inUse = false;
+        if (buf.length > MAX_RETAINED) {
+            BUFFERS.get()[slot] = new CodecBuffer(true);
+        }
+    }
+
+    /**
+     * 内部数组，有效数据为[0, size())
+     *
+     * @return
+     */
+    byte[] array() {
+        return buf;
+    }
+}
@@ -0,0 +1,264 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.base.Defaults;
+import com.google.common.collect.Lists;
+import com.google.common.reflect.Reflection;
+import lombok.extern.slf4j.Slf4j;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPool;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.JedisClusterCRC16;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 显式批量执行
+ * <p>
+ * 先用记录代理收集调用方的命令，再按第一个key分到节点(单节点不拆分，分片按分片，集群按slot所在master)，
+ * 每个节点一个管道，分段同步，各节点并行，最后按记录顺序返回结果。
+ * <p>
+ * 配置项:
+ * <pre>
+ * batch.pipelineSize=1000    一个管道每发送多少条命令同步一次，限制客户端和服务端缓存的回复
+ * </pre>
+ * 与Pipeline.syncAndReturnAll一致，单条命令失败时对应位置是异常对象，不影响其他命令；
+ * 集群模式下收到MOVED/ASK的命令更新slot后改由JedisCluster逐条重试
+ */
+@Slf4j
+final class CommandBatch {
+    private final int pipelineSize;
+    private final ExecutorService executor;
+    private final JedisPool pool;
+    private final ShardedJedisPool shardedPool;
+    private final JedisCluster cluster;
+    private final ClusterTopology topology;
+    private final CommandDispatcher pipelineDispatcher;
+    private final CommandDispatcher clusterDispatcher;
+
+    private CommandBatch(int pipelineSize, ExecutorService executor, JedisPool pool, ShardedJedisPool shardedPool,
+                         JedisCluster cluster, ClusterTopology topology, Class<?> commandType) {
+        this.pipelineSize = Math.max(1, pipelineSize);
+        this.executor = executor;
+        this.pool = pool;
+        this.shardedPool = shardedPool;
+        this.cluster = cluster;
+        this.topology = topology;
+        this.pipelineDispatcher = CommandDispatcher.of(commandType, Pipeline.class);
+        this.clusterDispatcher = cluster == null ? null : CommandDispatcher.of(commandType, JedisCluster.class);
+    }
+
+    static CommandBatch forPool(JedisPool pool, Class<?> commandType, int pipelineSize) {
+        return new CommandBatch(pipelineSize, null, pool, null, null, null, commandType);
+    }
+
+    static CommandBatch forSharded(ShardedJedisPool pool, Class<?> commandType, ExecutorService executor,
+                                   int pipelineSize) {
+        return new CommandBatch(pipelineSize, executor, null, pool, null, null, commandType);
+    }
+
+    static CommandBatch forCluster(JedisCluster cluster, ClusterTopology topology, Class<?> commandType,
+                                   ExecutorService executor, int pipelineSize) {
+        return new CommandBatch(pipelineSize, executor, null, null, cluster, topology, commandType);
+    }
+
+    /**
+     * 用记录代理收集命令，代理方法不访问redis，返回null或基本类型的默认值
+     *
+     * @param type     代理接口
+     * @param commands
+     * @param <T>
+     * @return
+     * @throws UnsupportedOperationException 命令不能放进管道
+     */
+    static <T> List<Call> record(Class<T> type, Consumer<T> commands) {
+        CommandDispatcher dispatcher = CommandDispatcher.of(type, Pipeline.class);
+        List<Call> calls = new ArrayList<>();
+        T recorder = Reflection.newProxy(type, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(calls, args);
+            }
+            if (!dispatcher.supports(method)) {
+                throw new UnsupportedOperationException(method.getName() + " cannot be batched");
+            }
+            calls.add(new Call(method, args));
+            return Defaults.defaultValue(method.getReturnType());
+        });
+        commands.accept(recorder);
+        return calls;
+    }
+
+    /**
+     * 执行记录的命令，结果与记录顺序一致
+     *
+     * @param calls
+     * @return
+     * @throws Exception 等待并行节点时被中断等整体失败，借不到连接只使对应节点的命令失败
+     */
+    List<Object> execute(List<Call> calls) throws Exception {
+        if (pool != null) {
+            run(pool, calls);
+        } else if (shardedPool != null) {
+            ShardedJedis sharded;
+            try {
+                sharded = shardedPool.getResource();
+            } catch (RuntimeException e) {
+                log.error("cannot execute batch of {} commands", calls.size(), e);
+                fail(calls, e);
+                return results(calls);
+            }
+            // 失败时先断开各分片再等分片线程结束，之后才能归还
+            try {
+                scatter(group(calls, key -> key instanceof byte[]
+                                ? sharded.getShard((byte[]) key) : sharded.getShard((String) key)), this::runShard,
+                        () -> ShardedMultiKeyScatter.disconnect(sharded));
+            } finally {
+                sharded.close();
+            }
+        } else {
+            scatter(group(calls, key -> topology.getMaster(key instanceof byte[]
+                            ? JedisClusterCRC16.getSlot((byte[]) key) : JedisClusterCRC16.getSlot((String) key))),
+                    this::runCluster, null);
+        }
+        return results(calls);
+    }
+
+    private static List<Object> results(List<Call> calls) {
+        List<Object> results = new ArrayList<>(calls.size());
+        for (Call call : calls) {
+            results.add(call.result);
+        }
+        return results;
+    }
+
+    /**
+     * 按第一个key分组，没有key的命令分到null
+     */
+    private static <G> Map<G, List<Call>> group(List<Call> calls, Function<Object, G> router) {
+        Map<G, List<Call>> groups = new LinkedHashMap<>();
+        for (Call call : calls) {
+            Object key = CommandTypes.firstKey(call.method, call.args);
+            groups.computeIfAbsent(key == null ? null : router.apply(key), k -> new ArrayList<>()).add(call);
+        }
+        return groups;
+    }
+
+    /**
+     * 第一组在调用线程执行，其余并行；单个节点的耗时由socket超时约束，这里不再设置整体超时
+     *
+     * @param abort 失败时打断仍在执行的节点，之后等它们结束；为null时不等待
+     */
+    private <G> void scatter(Map<G, List<Call>> groups, BiConsumer<G, List<Call>> action, Runnable abort)
+            throws Exception {
+        List<Callable<Object>> actions = new ArrayList<>(groups.size());
+        for (Map.Entry<G, List<Call>> entry : groups.entrySet()) {
+            actions.add(() -> {
+                action.accept(entry.getKey(), entry.getValue());
+                return null;
+            });
+        }
+        NodeTasks.run(executor, actions, 0, abort);
+    }
+
+    private void run(JedisPool node, List<Call> calls) {
+        try (Jedis jedis = node.getResource()) {
+            pipeline(jedis, calls);
+        } catch (RuntimeException e) {
+            log.error("cannot execute batch of {} commands", calls.size(), e);
+            fail(calls, e);
+        }
+    }
+
+    private void runShard(Jedis shard, List<Call> calls) {
+        try {
+            pipeline(shard, calls);
+        } catch (RuntimeException e) {
+            log.error("cannot execute batch of {} commands", calls.size(), e);
+            fail(calls, e);
+        }
+    }
+
+    private void runCluster(JedisPool node, List<Call> calls) {
+        if (node != null) {
+            run(node, calls);
+        }
+        for (Call call : calls) {
+            if (node == null || call.result instanceof JedisRedirectionException) {
+                if (call.result instanceof JedisRedirectionException) {
+                    topology.redirected((JedisRedirectionException) call.result);
+                }
+                try {
+                    call.result = clusterDispatcher.invoke(cluster, call.method, call.args);
+                } catch (Throwable e) {
+                    call.result = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 在一个连接上分段发送，每段同步一次
+     */
+    private void pipeline(Jedis jedis, List<Call> calls) {
+        if (jedis == null) {
+            fail(calls, new UnsupportedOperationException("command without key cannot be batched on shards"));
+            return;
+        }
+        for (List<Call> chunk : Lists.partition(calls, pipelineSize)) {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<?>> responses = new ArrayList<>(chunk.size());
+            for (Call call : chunk) {
+                try {
+                    responses.add((Response<?>) pipelineDispatcher.invoke(pipeline, call.method, call.args));
+                } catch (Throwable e) {
+                    call.result = e;
+                    responses.add(null);
+                }
+            }
+            pipeline.sync();
+            for (int i = 0; i < chunk.size(); i++) {
+                Response<?> response = responses.get(i);
+                if (response != null) {
+                    try {
+                        chunk.get(i).result = response.get();
+                    } catch (RuntimeException e) {
+                        chunk.get(i).result = e;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void fail(List<Call> calls, Throwable e) {
+        for (Call call : calls) {
+            call.result = e;
+        }
+    }
+
+    /**
+     * 记录的一条命令和它的结果
+     */
+    static final class Call {
+        final Method method;
+        final Object[] args;
+        Object result;
+
+        private Call(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+        }
+    }
+}
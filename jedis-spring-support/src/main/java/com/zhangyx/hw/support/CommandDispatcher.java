@@ -0,0 +1,218 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 预编译的命令分发表
+ * <p>
+ * 在getObject时把接口上的每个{@link Method}一次性绑定到目标类(Jedis/ShardedJedis/JedisCluster)实现方法的调用器：
+ * 参数不超过6个的方法用LambdaMetafactory生成直接调用实现方法的类，其余(及void方法)用展开参数的MethodHandle。
+ * 调用时按代理传入的{@link Method}实例做一次identity查找后直接执行，不经过反射。
+ * <p>
+ * JDK代理传给InvocationHandler的是代理类自己的Method副本，只能在第一次调用时按identity记录，之后只读
+ */
+final class CommandDispatcher {
+    private static final Map<Class<?>, Map<Class<?>, CommandDispatcher>> CACHE = new ConcurrentHashMap<>();
+
+    private static final MethodType SPREAD_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    private static final Class<?>[] ARITY_TYPES = {
+            Call0.class, Call1.class, Call2.class, Call3.class, Call4.class, Call5.class, Call6.class};
+
+    private static final Invoker UNSUPPORTED = new Invoker(null, null);
+
+    private final Class<?> targetType;
+    /**
+     * 按equals匹配的完整分发表
+     */
+    private final Map<Method, Invoker> invokers;
+    /**
+     * 代理类传入的Method实例是固定的，按identity缓存，写时复制
+     */
+    private volatile Map<Method, Invoker> identityInvokers = new IdentityHashMap<>();
+
+    private CommandDispatcher(Class<?> iface, Class<?> targetType) {
+        this.targetType = targetType;
+        ImmutableMap.Builder<Method, Invoker> builder = ImmutableMap.builder();
+        for (Method method : iface.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers())) {
+                continue;
+            }
+            builder.put(method, resolve(method));
+        }
+        this.invokers = builder.build();
+    }
+
+    /**
+     * 获取接口到目标类的分发表，同一组合只会解析一次
+     *
+     * @param iface      代理接口
+     * @param targetType 实际执行命令的类
+     * @return
+     */
+    static CommandDispatcher of(Class<?> iface, Class<?> targetType) {
+        return CACHE.computeIfAbsent(iface, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(targetType, k -> new CommandDispatcher(iface, targetType));
+    }
+
+    /**
+     * 在目标对象上执行命令，异常原样抛出，不包装成InvocationTargetException
+     *
+     * @param target
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        // 不经过lookup方法，少一层调用，JDK8的内联深度有限
+        Invoker invoker = identityInvokers.get(method);
+        if (invoker == null) {
+            invoker = bind(method);
+        }
+        Object call = invoker.call;
+        if (call == null) {
+            if (invoker.spread == null) {
+                throw new UnsupportedOperationException(method.getName() + " is not supported by " + targetType.getName());
+            }
+            return invoker.spread.invokeExact(target, args);
+        }
+        switch (args == null ? 0 : args.length) {
+            case 0:
+                return ((Call0) call).invoke(target);
+            case 1:
+                return ((Call1) call).invoke(target, args[0]);
+            case 2:
+                return ((Call2) call).invoke(target, args[0], args[1]);
+            case 3:
+                return ((Call3) call).invoke(target, args[0], args[1], args[2]);
+            case 4:
+                return ((Call4) call).invoke(target, args[0], args[1], args[2], args[3]);
+            case 5:
+                return ((Call5) call).invoke(target, args[0], args[1], args[2], args[3], args[4]);
+            default:
+                return ((Call6) call).invoke(target, args[0], args[1], args[2], args[3], args[4], args[5]);
+        }
+    }
+
+    /**
+     * 目标类是否实现了该命令
+     *
+     * @param method
+     * @return
+     */
+    boolean supports(Method method) {
+        return lookup(method) != UNSUPPORTED;
+    }
+
+    Class<?> getTargetType() {
+        return targetType;
+    }
+
+    private Invoker lookup(Method method) {
+        Invoker invoker = identityInvokers.get(method);
+        return invoker != null ? invoker : bind(method);
+    }
+
+    /**
+     * 第一次见到代理的Method实例时记录，调用路径上只剩一次identity查找
+     */
+    private synchronized Invoker bind(Method method) {
+        Invoker invoker = identityInvokers.get(method);
+        if (invoker != null) {
+            return invoker;
+        }
+        invoker = invokers.get(method);
+        if (invoker == null) {
+            // 不在接口上的方法(如Object方法)，按需解析
+            invoker = resolve(method);
+        }
+        Map<Method, Invoker> copy = new IdentityHashMap<>(identityInvokers);
+        copy.put(method, invoker);
+        identityInvokers = copy;
+        return invoker;
+    }
+
+    private Invoker resolve(Method method) {
+        Method impl;
+        MethodHandle handle;
+        try {
+            impl = targetType.getMethod(method.getName(), method.getParameterTypes());
+            impl.setAccessible(true);
+            handle = MethodHandles.lookup().unreflect(impl).asFixedArity();
+        } catch (NoSuchMethodException | IllegalAccessException | SecurityException e) {
+            return UNSUPPORTED;
+        }
+        int arity = impl.getParameterCount();
+        MethodHandle spread = handle.asSpreader(Object[].class, arity).asType(SPREAD_TYPE);
+        if (arity >= ARITY_TYPES.length || impl.getReturnType() == void.class
+                || !Modifier.isPublic(impl.getDeclaringClass().getModifiers())) {
+            return new Invoker(null, spread);
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            // 接口方法的参数都是Object，生成的类负责转型和拆箱
+            MethodType instantiated = handle.type().wrap().changeReturnType(Object.class)
+                    .changeParameterType(0, impl.getDeclaringClass());
+            Object call = LambdaMetafactory.metafactory(lookup, "invoke", MethodType.methodType(ARITY_TYPES[arity]),
+                    MethodType.genericMethodType(arity + 1), handle, instantiated).getTarget().invoke();
+            return new Invoker(call, spread);
+        } catch (Throwable e) {
+            return new Invoker(null, spread);
+        }
+    }
+
+    /**
+     * 分发表中的一项，call和spread都为null表示目标类不支持
+     */
+    private static final class Invoker {
+        /**
+         * 生成的CallN实例
+         */
+        private final Object call;
+        private final MethodHandle spread;
+
+        private Invoker(Object call, MethodHandle spread) {
+            this.call = call;
+            this.spread = spread;
+        }
+    }
+
+    interface Call0 {
+        Object invoke(Object target) throws Throwable;
+    }
+
+    interface Call1 {
+        Object invoke(Object target, Object a0) throws Throwable;
+    }
+
+    interface Call2 {
+        Object invoke(Object target, Object a0, Object a1) throws Throwable;
+    }
+
+    interface Call3 {
+        Object invoke(Object target, Object a0, Object a1, Object a2) throws Throwable;
+    }
+
+    interface Call4 {
+        Object invoke(Object target, Object a0, Object a1, Object a2, Object a3) throws Throwable;
+    }
+
+    interface Call5 {
+        Object invoke(Object target, Object a0, Object a1, Object a2, Object a3, Object a4) throws Throwable;
+    }
+
+    interface Call6 {
+        Object invoke(Object target, Object a0, Object a1, Object a2, Object a3, Object a4, Object a5) throws Throwable;
+    }
+}
@@ -0,0 +1,12 @@
+package com.zhangyx.hw.support;
+
+import java.lang.reflect.Method;
+
+/**
+ * 执行一条命令，代理中的各个拦截层通过它调用下一层
+ */
+@FunctionalInterface
+interface CommandInvoker {
+
+    Object invoke(Method method, Object[] args) throws Throwable;
+}
@@ -0,0 +1,102 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+
+/**
+ * 命令分类：只读命令，以及命令参数中的key
+ */
+final class CommandTypes {
+    /**
+     * 不修改数据的命令(Jedis方法名)
+     */
+    private static final Set<String> READ_ONLY = ImmutableSet.of(
+            "get", "mget", "exists", "type", "ttl", "pttl", "getrange", "substr", "getbit", "strlen", "bitcount", "bitpos",
+            "hget", "hmget", "hexists", "hlen", "hkeys", "hvals", "hgetAll", "hscan", "hstrlen",
+            "llen", "lrange", "lindex",
+            "scard", "sismember", "smembers", "srandmember", "sscan", "sinter", "sunion", "sdiff",
+            "zcard", "zscore", "zrank", "zrevrank", "zcount", "zlexcount", "zscan",
+            "pfcount", "geodist", "geohash", "geopos", "georadius", "georadiusByMember",
+            "keys", "randomKey", "scan", "dump", "echo");
+
+    /**
+     * 多key写命令中key与value交替出现
+     */
+    private static final Set<String> KEY_VALUE_PAIRS = ImmutableSet.of("mset", "msetnx");
+
+    /**
+     * 前两个参数都是key的写命令
+     */
+    private static final Set<String> TWO_KEYS = ImmutableSet.of("rename", "renamenx", "rpoplpush", "brpoplpush", "smove");
+
+    /**
+     * 第一个参数是字符串但不是key的命令(脚本、频道、模式、游标等)
+     */
+    private static final Set<String> NOT_KEY_FIRST = ImmutableSet.of(
+            "eval", "evalsha", "scriptLoad", "scriptExists", "scriptFlush", "scriptKill",
+            "publish", "subscribe", "psubscribe", "echo", "ping", "keys", "scan", "randomKey");
+
+    private CommandTypes() {
+    }
+
+    /**
+     * 是否只读命令，zrange/zrevrange系列按前缀判断
+     *
+     * @param method
+     * @return
+     */
+    static boolean isReadOnly(Method method) {
+        String name = method.getName();
+        return READ_ONLY.contains(name) || name.startsWith("zrange") || name.startsWith("zrevrange");
+    }
+
+    /**
+     * 第一个参数是单个key时返回它(String或byte[])，否则返回null
+     *
+     * @param method
+     * @param args
+     * @return
+     */
+    static Object firstKey(Method method, Object[] args) {
+        if (args == null || args.length == 0 || NOT_KEY_FIRST.contains(method.getName())) {
+            return null;
+        }
+        Object key = args[0];
+        return key instanceof String || key instanceof byte[] ? key : null;
+    }
+
+    /**
+     * 写命令涉及的所有key
+     *
+     * @param method
+     * @param args
+     * @return String或byte[]，没有key时为空数组
+     */
+    static Object[] writtenKeys(Method method, Object[] args) {
+        if (args == null || args.length == 0) {
+            return new Object[0];
+        }
+        Object first = args[0];
+        if (first instanceof String[] || first instanceof byte[][]) {
+            Object[] keys = (Object[]) first;
+            if (!KEY_VALUE_PAIRS.contains(method.getName())) {
+                return keys;
+            }
+            Object[] pairs = new Object[(keys.length + 1) / 2];
+            for (int i = 0; i < pairs.length; i++) {
+                pairs[i] = keys[i * 2];
+            }
+            return pairs;
+        }
+        if (first instanceof String || first instanceof byte[]) {
+            if (TWO_KEYS.contains(method.getName()) && args.length > 1
+                    && (args[1] instanceof String || args[1] instanceof byte[])) {
+                return new Object[]{first, args[1]};
+            }
+            return new Object[]{first};
+        }
+        return new Object[0];
+    }
+}
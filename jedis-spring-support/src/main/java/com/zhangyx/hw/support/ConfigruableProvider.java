@@ -7,22 +7,42 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationConverter;
+import org.apache.commons.configuration.ConfigurationUtils;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import redis.clients.jedis.*;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.JedisClusterCRC16;
 
-import java.io.Closeable;
-import java.io.IOException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
 import java.net.URI;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * 用于解析和处理redis配置文件
@@ -30,42 +50,351 @@ import java.util.Set;
 @Slf4j
 @Data
 public class ConfigruableProvider implements InitializingBean, DisposableBean {
-    private JedisPool pool = null;   //多个地址时用shared分片
-    private ShardedJedisPool shardedPool = null;// 只有一个地址
     private String configFileName;
 
     private static final Set<String> types = ImmutableSet.of(
             "Boolean", "Character", "Byte", "Short", "Long", "Integer", "Byte", "Float", "Double", "Void", "String");
 
+    /**
+     * 降级返回的空字符串和空数组，与redis回复的空值不是同一个实例，见{@link #isFallback}
+     */
+    private static final String FALLBACK_STRING = new String("");
+    private static final byte[] FALLBACK_BYTES = new byte[0];
+
     private final CharMatcher spilter = CharMatcher.anyOf(", ;|");  // 分割符
 
-    private JedisCluster jedisCluster = null;
+    /**
+     * 当前使用的后端，加载配置时整体替换
+     */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.NONE)
+    private volatile RedisBackend backend = RedisBackend.EMPTY;
+
+    /**
+     * 命令耗时、错误与降级统计，metrics.enable=false 时为空实现
+     */
+    @Setter(AccessLevel.NONE)
+    private volatile RedisMetrics metrics = RedisMetrics.NOOP;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private ObjectName metricsName = null;
+
+    /**
+     * 按节点的熔断器，breaker.enable开启时创建，见{@link CircuitBreaker}
+     */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.NONE)
+    private volatile CircuitBreakers breakers = null;
+
+    /**
+     * 多key命令并行访问各节点的线程池，按需创建
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private ExecutorService scatterExecutor = null;
+
+    /**
+     * 并行扫描各节点key的线程，按需创建
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private ExecutorService scanExecutor = null;
+
+    /**
+     * 配置文件轮询线程，reload.enable开启时创建
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private ScheduledExecutorService reloadExecutor = null;
+
+    /**
+     * 连接池大小自适应，pool.adaptive.enable开启时创建，配置重载后调整新后端的连接池
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private PoolSizer poolSizer = null;
+
+    /**
+     * 连接泄漏检测，leak.enable开启时创建，见{@link LeakDetector}
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private LeakDetector leakDetector = null;
+
+    /**
+     * 注册的Lua脚本，配置重载后加载到新后端
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final ScriptRegistry scripts = new ScriptRegistry();
+
+    /**
+     * 最近一次成功预热建立的连接数和耗时(毫秒)，还没有预热过时为空
+     */
+    @Setter(AccessLevel.NONE)
+    private volatile Map<String, Long> warmUpStats = ImmutableMap.of();
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private long configLastModified;
+
+    /**
+     * destroy之后完成的重载不再替换后端，由this保护
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private boolean destroyed;
+
+    /**
+     * 最近一次成功加载的配置内容，文件时间变化但内容不变时不重建
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Properties loadedProperties;
 
     /**
      * 读取配置文件,在bean初始化时
-     * TODO 配置变更时热加载
+     * <p>
+     * reload.enable=true 时轮询配置文件，变更后在后台重建并预热后端，替换后等旧连接归还再关闭:
+     * <pre>
+     * reload.enable=false
+     * reload.intervalMillis=5000          检查文件的间隔
+     * reload.drainTimeoutMillis=30000     等待旧后端连接归还的最长时间
+     * </pre>
+     * warmUp.enable=true 时启动阶段并行地为每个节点建立pool.minIdle个连接，完成或超时后才返回，耗时见getWarmUpStats():
+     * <pre>
+     * warmUp.enable=false
+     * warmUp.timeoutMillis=10000          整体超时，重载时的预热也使用该超时
+     * warmUp.threads=8                    建立连接的线程数
+     * warmUp.required=false               预热失败时是否让bean初始化失败
+     * </pre>
+     * metrics.*、breaker.*、warmUp.*、pool.adaptive.*、leak.* 和 reload.* 只在启动时读取，
+     * pool.adaptive.*见{@link PoolSizer}，leak.*见{@link LeakDetector}
      *
      * @throws Exception
      */
     @Override
     public void afterPropertiesSet() throws Exception {
-        Configuration config = new PropertiesConfiguration(configFileName);
-        // TODO 这里需要配置监听，用于热加载
-        loadCofig(config);
+        PropertiesConfiguration config = new PropertiesConfiguration(configFileName);
+        initMetrics(config);
+        if (config.getBoolean("breaker.enable", false)) {
+            breakers = new CircuitBreakers(new CircuitBreaker.Settings(config), metrics);
+        }
+        if (config.getBoolean("leak.enable", false)) {
+            leakDetector = new LeakDetector(this::getBackend, config, configFileName);
+        }
+        loadCofig(config, false);
+        if (config.getBoolean("warmUp.enable", false) && backend != RedisBackend.EMPTY) {
+            try {
+                warmUp(backend, config);
+            } catch (Exception e) {
+                if (config.getBoolean("warmUp.required", false)) {
+                    destroy();
+                    throw e;
+                }
+                log.warn("cannot warm up redis pools for {}, start with cold pools", configFileName, e);
+            }
+        }
+        if (config.getBoolean("pool.adaptive.enable", false)) {
+            poolSizer = new PoolSizer(this::getBackend, config, configFileName);
+        }
+        loadedProperties = ConfigurationConverter.getProperties(config);
+        watch(config);
     }
 
-    private void loadCofig(Configuration config) {
+    public JedisPool getPool() {
+        return backend.getPool();
+    }
+
+    public ShardedJedisPool getShardedPool() {
+        return backend.getShardedPool();
+    }
+
+    public JedisCluster getJedisCluster() {
+        return backend.getJedisCluster();
+    }
+
+    /**
+     * 节点的熔断器，未开启或节点未知时返回null
+     *
+     * @param node
+     * @return
+     */
+    CircuitBreaker breaker(String node) {
+        CircuitBreakers all = breakers;
+        return all == null ? null : all.get(node);
+    }
+
+    /**
+     * 启动配置文件轮询，配置不在本地文件中(如jar包内)时不支持热加载
+     *
+     * @param config
+     */
+    private void watch(PropertiesConfiguration config) {
+        if (!config.getBoolean("reload.enable", false)) {
+            return;
+        }
+        File file = ConfigurationUtils.fileFromURL(config.getURL());
+        if (file == null || !file.isFile()) {
+            log.warn("config {} is not a local file, hot reload disabled", configFileName);
+            return;
+        }
+        configLastModified = file.lastModified();
+        long interval = config.getLong("reload.intervalMillis", 5000);
+        reloadExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("redis-reload-" + configFileName).build());
+        reloadExecutor.scheduleWithFixedDelay(() -> checkReload(file), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 文件有变化时重新加载，失败时保留当前后端，下一轮继续尝试
+     *
+     * @param file
+     */
+    private void checkReload(File file) {
+        long modified = file.lastModified();
+        if (modified == configLastModified) {
+            return;
+        }
+        try {
+            PropertiesConfiguration config = new PropertiesConfiguration(file);
+            Properties properties = ConfigurationConverter.getProperties(config);
+            if (properties.equals(loadedProperties)) {
+                configLastModified = modified;
+                return;
+            }
+            log.info("redis config {} changed, reload", configFileName);
+            if (loadCofig(config, true)) {
+                configLastModified = modified;
+                loadedProperties = properties;
+            }
+        } catch (Exception e) {
+            log.error("cannot reload redis config {}", configFileName, e);
+        }
+    }
+
+    /**
+     * 用临时线程池并行预热后端，记录并输出耗时
+     *
+     * @param target
+     * @param config
+     * @throws Exception 连接失败或超时
+     */
+    private void warmUp(RedisBackend target, Configuration config) throws Exception {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, config.getInt("warmUp.threads", 8)),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("redis-warm-up-" + configFileName + "-%d").build());
+        try {
+            long timeout = config.getLong("warmUp.timeoutMillis", 10000);
+            int connections = target.warmUp(config.getInt("pool.minIdle", 5), executor, timeout);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            warmUpStats = ImmutableMap.of("connections", (long) connections, "millis", millis);
+            log.info("warmed up {} redis connections for {} in {}ms", connections, configFileName, millis);
+        } catch (TimeoutException e) {
+            TimeoutException timeout = new TimeoutException("redis warm up not finished in "
+                    + config.getLong("warmUp.timeoutMillis", 10000) + "ms");
+            timeout.initCause(e);
+            throw timeout;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 创建监控统计，metrics.class指定实现类，metrics.jmx开启时注册到JMX
+     *
+     * @param config
+     */
+    private void initMetrics(Configuration config) {
+        if (!config.getBoolean("metrics.enable", true)) {
+            return;
+        }
+        String className = config.getString("metrics.class");
+        RedisMetrics redisMetrics = null;
+        if (!Strings.isNullOrEmpty(className)) {
+            try {
+                redisMetrics = (RedisMetrics) Class.forName(className).newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                log.error("cannot create metrics {}, use default", className, e);
+            }
+        }
+        metrics = redisMetrics != null ? redisMetrics : new DefaultRedisMetrics();
+
+        if (config.getBoolean("metrics.jmx", false) && metrics instanceof RedisMetricsMXBean) {
+            try {
+                ObjectName name = new ObjectName("com.zhangyx.hw.support:type=RedisMetrics,name="
+                        + ObjectName.quote(configFileName));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+                metricsName = name;
+            } catch (JMException e) {
+                log.warn("cannot register metrics mbean for {}", configFileName, e);
+            }
+        }
+    }
+
+    /**
+     * 按配置创建新后端并替换当前后端，旧后端等借出的连接归还后关闭
+     * <p>
+     * 只有替换在锁内进行，创建、预热和等待旧连接归还都在锁外，destroy不会被重载阻塞
+     *
+     * @param config
+     * @param warmUp 是否先把新连接池预热到minIdle，预热失败时保留当前后端
+     * @return 是否完成替换
+     */
+    private boolean loadCofig(Configuration config, boolean warmUp) {
         String configServers = config.getString("redis.servers");
         if (Strings.isNullOrEmpty(configServers)) {
-            return;
+            return false;
         }
+        RedisBackend next;
         // 该配置不启动
         if (!config.getBoolean("startup", true)) {
-            close(shardedPool);
-            shardedPool = null;
-            return;
+            next = RedisBackend.EMPTY;
+        } else {
+            next = createBackend(config);
+            if (leakDetector != null) {
+                leakDetector.track(next);
+            }
+            if (warmUp) {
+                try {
+                    warmUp(next, config);
+                } catch (Exception e) {
+                    log.error("cannot warm up redis backend for {}, keep the current one", configFileName, e);
+                    next.close();
+                    return false;
+                }
+            }
+            scripts.preload(next);
         }
+
+        RedisBackend old;
+        synchronized (this) {
+            if (destroyed) {
+                next.close();
+                return false;
+            }
+            old = backend;
+            backend = next;
+        }
+        if (old != RedisBackend.EMPTY) {
+            old.drain(config.getLong("reload.drainTimeoutMillis", 30000));
+        }
+        return true;
+    }
+
+    private RedisBackend createBackend(Configuration config) {
+        String configServers = config.getString("redis.servers");
+        RedisBackend.RedisBackendBuilder builder = RedisBackend.builder();
+        ImmutableMap.Builder<Object, String> names = ImmutableMap.builder();
         JedisPoolConfig poolConfig = createJedisPoolConfig(config);
+        int maxWait = config.getInt("pool.maxWaitMillis", 3000);
+        int batchSize = config.getInt("batch.pipelineSize", 1000);
+        JedisCluster jedisCluster = null;
+        ClusterTopology topology = null;
+        JedisPool jedisPool = null;
+        ShardedJedisPool shardedJedisPool = null;
+        ConsistentHashRing shardRing = null;
         if (config.getBoolean("cluster_enable", false)) {
 
             Set<HostAndPort> clusterNodes = genClusterNode(configServers);
@@ -79,31 +408,386 @@ public class ConfigruableProvider implements InitializingBean, DisposableBean {
             } else {
                 jedisCluster = new JedisCluster(clusterNodes, connTimeout, soTimeout, maxAttempts, poolConfig);
             }
+            topology = new ClusterTopology(jedisCluster, metrics, config.getLong("cluster.refreshMillis", 60000),
+                    configFileName, poolConfig, connTimeout, soTimeout, password);
+            ClusterTopology clusterTopology = topology;
+            ClusterReadRouter.ReadFrom readFrom = ClusterReadRouter.ReadFrom.of(config.getString("cluster.readFrom"));
+            ClusterReadRouter readRouter = readFrom == ClusterReadRouter.ReadFrom.MASTER ? null
+                    : new ClusterReadRouter(readFrom, topology, poolConfig, connTimeout, soTimeout, password);
+            topology.setRefreshListener(() -> {
+                if (readRouter != null) {
+                    readRouter.retainReplicas();
+                }
+                scripts.preload(clusterTopology);
+            });
+            builder.clusterReadRouter(readRouter);
+            builder.jedisCluster(jedisCluster)
+                    .clusterTopology(topology)
+                    .commandBatch(CommandBatch.forCluster(jedisCluster, topology, getCommandType(),
+                            getScatterExecutor(config), batchSize))
+                    .clusterScatter(new ClusterMultiKeyScatter(jedisCluster, topology,
+                            getScatterExecutor(config), soTimeout + maxWait));
+        } else if (spilter.countIn(configServers) > 0) {
+            List<JedisShardInfo> servers = getJedisShardInfos(config);
+            servers.forEach(info -> names.put(info, nodeName(info.getHost(), info.getPort(), info.getDb())));
+            ConsistentHashRing ring = ConsistentHashRing.of(shards(servers), config);
+            shardRing = ring;
+            shardedJedisPool = new RingShardedJedisPool(poolConfig, servers, ring);
+            ConsistentHashRing previous = backend.getShardRing();
+            long dualRead = config.getLong("shard.dualReadMillis", 0);
+            if (previous != null && dualRead > 0) {
+                builder.shardMigration(new ShardMigration(previous, ring, getCommandType(), dualRead));
+            }
+            builder.shardedPool(shardedJedisPool)
+                    .shardRing(ring)
+                    .commandBatch(CommandBatch.forSharded(shardedJedisPool, getCommandType(),
+                            getScatterExecutor(config), batchSize))
+                    .shardLocator(new RingShardedJedisPool.RingShardedJedis(servers, ring))
+                    .shardedScatter(new ShardedMultiKeyScatter(shardedJedisPool, getScatterExecutor(config),
+                            config.getInt("redis.soTimeout", 5000) + maxWait));
+        } else {
+            jedisPool = createJedisPool(poolConfig, config, names);
+            builder.pool(jedisPool)
+                    .commandBatch(CommandBatch.forPool(jedisPool, getCommandType(), batchSize))
+                    .pipelineBatcher(config.getBoolean("pipeline.enable", false)
+                            ? new PipelineBatcher(jedisPool, getCommandType(), config, configFileName) : null);
+        }
+
+        if (config.getBoolean("nearCache.enable", false)) {
+            builder.nearCache(createNearCache(config, jedisCluster, jedisPool, shardedJedisPool));
+        }
+        Map<Object, String> nodeNames = names.build();
+        if (config.getBoolean("hotKey.enable", false)) {
+            builder.hotKeyDetector(new HotKeyDetector(config, configFileName,
+                    hotKeyNode(topology, jedisPool, shardRing, nodeNames)));
+        }
+        if (config.getBoolean("coalesce.enable", false)) {
+            builder.singleFlight(new SingleFlight());
+        }
+        if (config.getBoolean("writeBehind.enable", false)) {
+            WriteBehindBuffer.Sink sink = jedisCluster != null
+                    ? WriteBehindBuffer.clusterSink(jedisCluster, topology)
+                    : jedisPool != null ? WriteBehindBuffer.poolSink(jedisPool) : WriteBehindBuffer.shardedSink(shardedJedisPool);
+            builder.writeBehind(new WriteBehindBuffer(sink, config, configFileName));
+        }
+        return builder.nodeNames(nodeNames).build();
+    }
+
+    /**
+     * 创建近端缓存，失效通知走当前后端的发布订阅
+     *
+     * @param config
+     * @param cluster
+     * @param jedisPool
+     * @param shardedJedisPool
+     * @return
+     */
+    private NearCache createNearCache(Configuration config, JedisCluster cluster, JedisPool jedisPool,
+                                      ShardedJedisPool shardedJedisPool) {
+        BiConsumer<byte[], byte[]> publisher;
+        BiConsumer<BinaryJedisPubSub, byte[]> subscriber;
+        if (cluster != null) {
+            publisher = cluster::publish;
+            subscriber = (pubSub, channel) -> cluster.subscribe(pubSub, channel);
+        } else if (jedisPool != null) {
+            publisher = (channel, message) -> {
+                try (Jedis jedis = jedisPool.getResource()) {
+                    jedis.publish(channel, message);
+                }
+            };
+            subscriber = (pubSub, channel) -> {
+                try (Jedis jedis = jedisPool.getResource()) {
+                    jedis.subscribe(pubSub, channel);
+                }
+            };
         } else {
-            if (spilter.countIn(configServers) > 0) {
-                List<JedisShardInfo> servers = getJedisShardInfos(config);
-                ShardedJedisPool shardedJedisPool = new ShardedJedisPool(poolConfig, servers);
-                // 说明启动了热加载，这里待补充 TODO 热加载处理
-                if (shardedPool != null) {
-                    ShardedJedisPool old = shardedPool;
-                    shardedPool = shardedJedisPool;
-                    close(old);
-                } else {
-                    shardedPool = shardedJedisPool;
+            // 分片模式下通知统一走第一个分片
+            publisher = (channel, message) -> {
+                try (ShardedJedis sharded = shardedJedisPool.getResource()) {
+                    sharded.getAllShards().iterator().next().publish(channel, message);
                 }
-            } else {
-                JedisPool jedisPool = createJedisPool(poolConfig, config);
-                if (pool != null) {
-                    JedisPool old = pool;
-                    pool = jedisPool;
-                    close(old);
-                } else {
-                    pool = jedisPool;
+            };
+            subscriber = (pubSub, channel) -> {
+                try (ShardedJedis sharded = shardedJedisPool.getResource()) {
+                    sharded.getAllShards().iterator().next().subscribe(pubSub, channel);
+                }
+            };
+        }
+        return new NearCache(config, configFileName, publisher, subscriber);
+    }
+
+    /**
+     * 连接池自适应的扩大、缩小次数和当前所有连接池的maxTotal之和，未开启时为空
+     *
+     * @return
+     */
+    public Map<String, Long> getPoolSizeStats() {
+        PoolSizer sizer = poolSizer;
+        if (sizer == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.of("grown", sizer.getGrowCount(), "shrunk", sizer.getShrinkCount(), "maxTotal", sizer.getMaxTotal());
+    }
+
+    /**
+     * 累计报告的泄漏连接数和最近一次扫描时超过阈值未归还的连接数，未开启时为空
+     *
+     * @return
+     */
+    public Map<String, Long> getLeakStats() {
+        LeakDetector detector = leakDetector;
+        if (detector == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.of("leaked", detector.getLeakedCount(), "held", detector.getHeldCount());
+    }
+
+    /**
+     * 近端缓存的命中、未命中、淘汰次数和当前key数，未开启时为空
+     *
+     * @return
+     */
+    public Map<String, Long> getNearCacheStats() {
+        NearCache cache = backend.getNearCache();
+        if (cache == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.of("hits", cache.getHitCount(), "misses", cache.getMissCount(),
+                "evictions", cache.getEvictionCount(), "size", cache.size());
+    }
+
+    /**
+     * 执行记录好的批量命令，不经过近端缓存、请求合并和写后合并，写命令完成后使本地缓存失效
+     *
+     * @param calls
+     * @return 与calls顺序一致的结果，单条失败时为异常对象；后端未启动时为各命令的默认值
+     */
+    List<Object> executeBatch(List<CommandBatch.Call> calls) {
+        RedisBackend current = backend;
+        CommandBatch batch = current.getCommandBatch();
+        if (batch == null) {
+            List<Object> defaults = Lists.newArrayListWithCapacity(calls.size());
+            for (CommandBatch.Call call : calls) {
+                metrics.recordFallback(call.method.getName());
+                defaults.add(findDefault(call.method));
+            }
+            return defaults;
+        }
+        long start = System.nanoTime();
+        boolean fail = true;
+        try {
+            List<Object> results = batch.execute(calls);
+            fail = false;
+            return results;
+        } catch (Exception e) {
+            throw e instanceof RuntimeException ? (RuntimeException) e : new JedisException("cannot execute batch", e);
+        } finally {
+            metrics.recordCommand("batch", RedisMetrics.MULTI_NODE, System.nanoTime() - start, !fail);
+            NearCache nearCache = current.getNearCache();
+            HotKeyDetector hotKeyDetector = current.getHotKeyDetector();
+            if (nearCache != null || hotKeyDetector != null) {
+                for (CommandBatch.Call call : calls) {
+                    if (nearCache != null) {
+                        nearCache.written(call.method, call.args);
+                    }
+                    if (hotKeyDetector != null) {
+                        hotKeyDetector.written(call.method, call.args);
+                    }
                 }
             }
         }
     }
 
+    /**
+     * 热点探测中key所在的节点，集群按slot所在master，分片按一致性哈希环
+     *
+     * @param topology
+     * @param jedisPool
+     * @param ring
+     * @param names
+     * @return
+     */
+    private static Function<Object, String> hotKeyNode(ClusterTopology topology, JedisPool jedisPool,
+                                                       ConsistentHashRing ring, Map<Object, String> names) {
+        if (topology != null) {
+            return key -> {
+                String node = topology.getMasterName(key instanceof byte[]
+                        ? JedisClusterCRC16.getSlot((byte[]) key) : JedisClusterCRC16.getSlot((String) key));
+                return node != null ? node : RedisMetrics.UNKNOWN_NODE;
+            };
+        }
+        if (ring != null) {
+            return key -> (key instanceof byte[] ? ring.get((byte[]) key) : ring.get((String) key)).getId();
+        }
+        String node = names.getOrDefault(jedisPool, RedisMetrics.UNKNOWN_NODE);
+        return key -> node;
+    }
+
+    /**
+     * 上一个统计窗口每个节点的热点key及估计的命令数，按命令数从高到低，未开启时为空
+     *
+     * @return
+     */
+    public Map<String, Map<String, Long>> getHotKeys() {
+        HotKeyDetector detector = backend.getHotKeyDetector();
+        return detector == null ? ImmutableMap.of() : detector.getHotKeys();
+    }
+
+    /**
+     * 热点探测的采样次数、当前热点key数，以及本地提升的命中和未命中次数，未开启时为空
+     *
+     * @return
+     */
+    public Map<String, Long> getHotKeyStats() {
+        HotKeyDetector detector = backend.getHotKeyDetector();
+        if (detector == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.of("sampled", detector.getSampledCount(), "hotKeys", (long) detector.getHotKeyCount(),
+                "promotedHits", detector.getPromotedHitCount(), "promotedMisses", detector.getPromotedMissCount());
+    }
+
+    /**
+     * 相同读请求合并的实际执行次数和合并次数，未开启时为空
+     *
+     * @return
+     */
+    public Map<String, Long> getCoalesceStats() {
+        SingleFlight singleFlight = backend.getSingleFlight();
+        if (singleFlight == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.of("executed", singleFlight.getExecutedCount(), "coalesced", singleFlight.getCoalescedCount());
+    }
+
+    /**
+     * 注册Lua脚本并加载到当前后端的所有节点，之后配置重载和集群新增节点时自动加载
+     *
+     * @param script
+     * @return
+     */
+    public RedisScript loadScript(String script) {
+        RedisScript registered = scripts.register(script);
+        scripts.preload(backend);
+        return registered;
+    }
+
+    /**
+     * 用EVALSHA执行已注册的脚本，节点上没有该脚本时重新加载后重试一次；分片和集群模式按第一个key选择节点
+     *
+     * @param script
+     * @param keys
+     * @param args
+     * @return 脚本返回值，后端未启动时为null
+     */
+    public Object evalScript(RedisScript script, List<String> keys, List<String> args) {
+        return scripts.eval(backend, metrics, script, keys, args);
+    }
+
+    /**
+     * 逐页扫描所有key，分片模式下扫描每个分片，集群模式下扫描每个master，用于代替 keys *
+     * <p>
+     * 扫描使用调用时的后端，迭代期间配置重载导致旧连接池关闭时，继续迭代会抛出异常
+     *
+     * @param options
+     * @return 后端未启动时为空
+     */
+    public ScanIterator<String> scanKeys(ScanOptions options) {
+        List<ScanIterator.Cursor<String>> cursors = new RedisScanner(backend, metrics).keys(options.toParams());
+        return options.isParallel() ? ScanIterator.parallel(cursors, getScanExecutor(), options.getBufferPages())
+                : ScanIterator.sequential(cursors);
+    }
+
+    /**
+     * 逐页扫描hash的field和value
+     *
+     * @param key
+     * @param options
+     * @return
+     */
+    public ScanIterator<Map.Entry<String, String>> scanHash(String key, ScanOptions options) {
+        ScanParams params = options.toParams();
+        return scanKey(new RedisScanner(backend, metrics).key("hscan", key,
+                (jedis, cursor) -> jedis.hscan(key, cursor, params),
+                (jedis, cursor) -> jedis.hscan(key, cursor, params),
+                (cluster, cursor) -> cluster.hscan(key, cursor, params)));
+    }
+
+    /**
+     * 逐页扫描set的成员
+     *
+     * @param key
+     * @param options
+     * @return
+     */
+    public ScanIterator<String> scanSet(String key, ScanOptions options) {
+        ScanParams params = options.toParams();
+        return scanKey(new RedisScanner(backend, metrics).key("sscan", key,
+                (jedis, cursor) -> jedis.sscan(key, cursor, params),
+                (jedis, cursor) -> jedis.sscan(key, cursor, params),
+                (cluster, cursor) -> cluster.sscan(key, cursor, params)));
+    }
+
+    /**
+     * 逐页扫描sorted set的成员和分数
+     *
+     * @param key
+     * @param options
+     * @return
+     */
+    public ScanIterator<Tuple> scanSortedSet(String key, ScanOptions options) {
+        ScanParams params = options.toParams();
+        return scanKey(new RedisScanner(backend, metrics).key("zscan", key,
+                (jedis, cursor) -> jedis.zscan(key, cursor, params),
+                (jedis, cursor) -> jedis.zscan(key, cursor, params),
+                (cluster, cursor) -> cluster.zscan(key, cursor, params)));
+    }
+
+    private static <T> ScanIterator<T> scanKey(ScanIterator.Cursor<T> cursor) {
+        return ScanIterator.sequential(cursor == null ? ImmutableList.of() : ImmutableList.of(cursor));
+    }
+
+    private synchronized ExecutorService getScanExecutor() {
+        if (scanExecutor == null) {
+            scanExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("redis-scan-" + configFileName + "-%d").build());
+        }
+        return scanExecutor;
+    }
+
+    /**
+     * 写后合并接收的增量数、发出的命令数、关闭时丢弃的key数和当前待发送的key数，未开启时为空
+     *
+     * @return
+     */
+    public Map<String, Long> getWriteBehindStats() {
+        WriteBehindBuffer buffer = backend.getWriteBehind();
+        if (buffer == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.of("buffered", buffer.getBufferedCount(), "flushed", buffer.getFlushedCount(),
+                "dropped", buffer.getDroppedCount(), "pending", (long) buffer.getPendingKeys());
+    }
+
+    /**
+     * 分片变更后双读旧位置的次数和命中次数，未开启或已结束时为空
+     *
+     * @return
+     */
+    public Map<String, Long> getShardMigrationStats() {
+        ShardMigration migration = backend.getShardMigration();
+        if (migration == null || !migration.isActive()) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.of("reads", migration.getReadCount(), "hits", migration.getHitCount());
+    }
+
+    private static List<ConsistentHashRing.Shard> shards(List<JedisShardInfo> servers) {
+        List<ConsistentHashRing.Shard> shards = Lists.newArrayListWithCapacity(servers.size());
+        servers.forEach(info -> shards.add((ConsistentHashRing.Shard) info));
+        return shards;
+    }
+
     private List<JedisShardInfo> getJedisShardInfos(Configuration config) {
         List<JedisShardInfo> servers = Lists.newArrayList();
         String configServers = config.getString("redis.servers");
@@ -114,8 +798,11 @@ public class ConfigruableProvider implements InitializingBean, DisposableBean {
         int soTimeout = config.getInt("redis.soTimeout", 5000);
         String password = config.getString("redis.password");
         int defaultDbIndex = config.getInt("redis.dbIndex", 0);
-        items.forEach(server -> {
-            // formate 127.0.0.1:6379 拆分
+        items.forEach(item -> {
+            // formate 127.0.0.1:6379/0*2 拆分，*后为权重
+            int star = item.indexOf('*');
+            String server = star < 0 ? item : item.substring(0, star);
+            int weight = star < 0 ? 1 : Integer.parseInt(item.substring(star + 1));
             List<String> paths = Splitter.on(CharMatcher.anyOf(":/")).splitToList(server);
             String host = paths.get(0);
             int port = 6379;  // 默认端口号
@@ -128,7 +815,7 @@ public class ConfigruableProvider implements InitializingBean, DisposableBean {
                 dbIndex = Integer.parseInt(paths.get(2));
             }
             URI redisUri = create(host, port, password, dbIndex);
-            JedisShardInfo info = new JedisShardInfo(redisUri);
+            JedisShardInfo info = new ConsistentHashRing.Shard(redisUri, nodeName(host, port, dbIndex), weight);
             info.setConnectionTimeout(connTimeout);
             info.setSoTimeout(soTimeout);
             if (!Strings.isNullOrEmpty(password) && password.contains("@")) {
@@ -140,7 +827,8 @@ public class ConfigruableProvider implements InitializingBean, DisposableBean {
         return servers;
     }
 
-    private JedisPool createJedisPool(JedisPoolConfig poolConfig, Configuration config) {
+    private JedisPool createJedisPool(JedisPoolConfig poolConfig, Configuration config,
+                                      ImmutableMap.Builder<Object, String> names) {
         int timeout = config.getInt("redis.timeout", 5000);
         String password = config.getString("redis.password");
         int defaultDbIndex = config.getInt("redis.dbIndex", 0);
@@ -157,7 +845,13 @@ public class ConfigruableProvider implements InitializingBean, DisposableBean {
         }
 
         password = Strings.isNullOrEmpty(password) ? null : password;
-        return new JedisPool(poolConfig, host, port, timeout, password, dbIndex);
+        JedisPool jedisPool = new JedisPool(poolConfig, host, port, timeout, password, dbIndex);
+        names.put(jedisPool, nodeName(host, port, dbIndex));
+        return jedisPool;
+    }
+
+    private static String nodeName(String host, int port, int db) {
+        return host + ':' + port + '/' + db;
     }
 
     /**
@@ -225,27 +919,100 @@ public class ConfigruableProvider implements InitializingBean, DisposableBean {
         return poolConfig;
     }
 
-    @Override
-    public void destroy() throws Exception {
-        close(shardedPool);
+    /**
+     * 多key命令并行访问各节点的线程池，scatter.threads配置线程数
+     *
+     * @param config
+     * @return
+     */
+    private synchronized ExecutorService getScatterExecutor(Configuration config) {
+        if (scatterExecutor == null) {
+            int threads = config.getInt("scatter.threads", Runtime.getRuntime().availableProcessors() * 2);
+            scatterExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(config.getInt("scatter.queueSize", 1024)),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("redis-scatter-" + configFileName + "-%d").build(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            ((ThreadPoolExecutor) scatterExecutor).allowCoreThreadTimeOut(true);
+        }
+        return scatterExecutor;
     }
 
     /**
-     * 关闭销毁资源
+     * 代理的接口类型，用于预先解析命令分发表
      *
-     * @param c
+     * @return
      */
-    private void close(Closeable c) {
-        if (c != null) {
+    protected Class<?> getCommandType() {
+        return MergeJedisCmd.class;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (reloadExecutor != null) {
+            reloadExecutor.shutdownNow();
+        }
+        if (poolSizer != null) {
+            poolSizer.close();
+        }
+        if (leakDetector != null) {
+            leakDetector.close();
+        }
+        // 正在等待旧后端的重载线程被中断后立即关闭旧后端
+        synchronized (this) {
+            destroyed = true;
+            RedisBackend old = backend;
+            backend = RedisBackend.EMPTY;
+            old.close();
+        }
+        if (scatterExecutor != null) {
+            scatterExecutor.shutdown();
+        }
+        synchronized (this) {
+            if (scanExecutor != null) {
+                scanExecutor.shutdownNow();
+            }
+        }
+        if (metricsName != null) {
             try {
-                c.close();
-                c = null;
-            } catch (IOException e) {
-                log.error("cannot close {}", c, e);
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                log.warn("cannot unregister metrics mbean {}", metricsName, e);
             }
         }
     }
 
+    /**
+     * 代理上的Object方法在本地处理，不借连接: equals/hashCode按代理实例，toString返回命令接口和配置文件
+     *
+     * @param proxy
+     * @param method
+     * @param args
+     * @return
+     */
+    protected Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                return getCommandType().getSimpleName() + "(" + configFileName + ")";
+        }
+    }
+
+    /**
+     * 是否是{@link #findDefault}返回的空值而不是redis的回复，按identity判断，用于避免本地缓存降级结果
+     * <p>
+     * 只能识别字符串、byte[]和集合类型，Long/Boolean的默认值与真实回复无法区分
+     *
+     * @param value
+     * @return
+     */
+    static boolean isFallback(Object value) {
+        return value == FALLBACK_STRING || value == FALLBACK_BYTES
+                || value == ImmutableMap.of() || value == ImmutableList.of() || value == ImmutableSet.of();
+    }
+
     /**
      * 返回默认值
      *
@@ -255,13 +1022,13 @@ public class ConfigruableProvider implements InitializingBean, DisposableBean {
     protected Object findDefault(Method method) {
         Class<?> clz = method.getReturnType();
         if (clz == String.class) {
-            return "";
+            return FALLBACK_STRING;
         } else if (clz == Long.class || clz == Double.class) {
             return 0L;
         } else if (clz == Boolean.class) {
             return Boolean.FALSE;
         } else if (clz.isArray()) {
-            return new byte[0];
+            return FALLBACK_BYTES;
         } else if (clz.isAssignableFrom(Set.class)) {
             return ImmutableSet.of();
         } else if (clz.isAssignableFrom(List.class)) {
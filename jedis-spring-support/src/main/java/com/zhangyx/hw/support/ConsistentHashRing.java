@@ -0,0 +1,141 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.base.Strings;
+import org.apache.commons.configuration.Configuration;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.util.Hashing;
+import redis.clients.util.SafeEncoder;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 分片模式的一致性哈希环，替换ShardedJedis内置的定位
+ * <p>
+ * 配置项:
+ * <pre>
+ * shard.hash=murmur          murmur|md5，或实现redis.clients.util.Hashing的类名
+ * shard.virtualNodes=160     每单位权重的虚拟节点数
+ * shard.naming=index         index|address
+ * shard.dualReadMillis=0     重载后仍从旧位置读取未命中key的时间，0表示不开启，见{@link ShardMigration}
+ * </pre>
+ * 权重写在地址后面，如 redis.servers=10.0.0.1:6379/0*2;10.0.0.2:6379/0
+ * <p>
+ * index按分片在列表中的位置生成虚拟节点，默认配置下与ShardedJedis原来的分布一致，但在列表中间增删分片时后面的分片全部移动；
+ * address按 host:port/db 生成，分片的位置与顺序无关，增删一个分片只移动它相邻区间的key。从index切换到address会整体重新分布一次
+ */
+final class ConsistentHashRing {
+    private final long[] points;
+    private final Shard[] owners;
+    private final Hashing hashing;
+    private final Map<String, Shard> shards = new TreeMap<>();
+
+    ConsistentHashRing(List<Shard> shards, int virtualNodes, Hashing hashing, boolean addressNaming) {
+        this.hashing = hashing;
+        TreeMap<Long, Shard> ring = new TreeMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            Shard shard = shards.get(i);
+            this.shards.put(shard.id, shard);
+            String prefix = addressNaming ? shard.id + "*" : "SHARD-" + i + "-NODE-";
+            for (int n = 0; n < virtualNodes * shard.weight; n++) {
+                ring.put(hashing.hash(prefix + n), shard);
+            }
+        }
+        this.points = new long[ring.size()];
+        this.owners = new Shard[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, Shard> entry : ring.entrySet()) {
+            points[i] = entry.getKey();
+            owners[i++] = entry.getValue();
+        }
+    }
+
+    /**
+     * 按shard.*配置创建
+     *
+     * @param shards
+     * @param config
+     * @return
+     */
+    static ConsistentHashRing of(List<Shard> shards, Configuration config) {
+        String naming = config.getString("shard.naming", "index");
+        if (!"index".equalsIgnoreCase(naming) && !"address".equalsIgnoreCase(naming)) {
+            throw new IllegalArgumentException("unknown shard.naming: " + naming);
+        }
+        return new ConsistentHashRing(shards, Math.max(1, config.getInt("shard.virtualNodes", 160)),
+                hashing(config.getString("shard.hash")), "address".equalsIgnoreCase(naming));
+    }
+
+    private static Hashing hashing(String name) {
+        if (Strings.isNullOrEmpty(name) || "murmur".equalsIgnoreCase(name)) {
+            return Hashing.MURMUR_HASH;
+        }
+        if ("md5".equalsIgnoreCase(name)) {
+            return Hashing.MD5;
+        }
+        try {
+            return (Hashing) Class.forName(name).newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("unknown shard.hash: " + name, e);
+        }
+    }
+
+    /**
+     * key所在的分片，顺时针方向第一个虚拟节点
+     *
+     * @param key
+     * @return
+     */
+    Shard get(byte[] key) {
+        int i = Arrays.binarySearch(points, hashing.hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    Shard get(String key) {
+        return get(SafeEncoder.encode(key));
+    }
+
+    /**
+     * host:port/db 对应的分片，不在环上时返回null
+     *
+     * @param id
+     * @return
+     */
+    Shard getShard(String id) {
+        return shards.get(id);
+    }
+
+    /**
+     * 带名称和权重的分片，名称为 host:port/db
+     */
+    static final class Shard extends JedisShardInfo {
+        private final String id;
+        private final int weight;
+
+        Shard(URI uri, String id, int weight) {
+            super(uri);
+            this.id = id;
+            this.weight = Math.max(1, weight);
+        }
+
+        String getId() {
+            return id;
+        }
+
+        @Override
+        public String getName() {
+            return id;
+        }
+
+        @Override
+        public int getWeight() {
+            return weight;
+        }
+    }
+}
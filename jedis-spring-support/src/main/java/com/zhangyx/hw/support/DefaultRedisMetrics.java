@@ -0,0 +1,215 @@
+package com.zhangyx.hw.support;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * 默认的监控统计：按 命令 -> 节点 两级索引的耗时直方图和错误数
+ * <p>
+ * 统计项只在第一次出现时创建，之后的记录只有map查找和LongAdder累加
+ */
+public class DefaultRedisMetrics implements RedisMetrics, RedisMetricsMXBean {
+    private final ConcurrentMap<String, ConcurrentMap<String, CommandStats>> commands = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> fallbacks = new ConcurrentHashMap<>();
+    private final LatencyHistogram borrows = new LatencyHistogram();
+    private final LongAdder borrowErrors = new LongAdder();
+    private final ConcurrentMap<String, String> breakerStates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> breakerOpens = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> redirects = new ConcurrentHashMap<>();
+    private final LongAdder topologyRefreshes = new LongAdder();
+    private final LongAdder topologyRefreshErrors = new LongAdder();
+
+    @Override
+    public void recordCommand(String command, String node, long nanos, boolean success) {
+        CommandStats stats = stats(command, node);
+        stats.latency.record(nanos);
+        if (!success) {
+            stats.errors.increment();
+        }
+    }
+
+    @Override
+    public void recordBorrow(long nanos, boolean success) {
+        borrows.record(nanos);
+        if (!success) {
+            borrowErrors.increment();
+        }
+    }
+
+    @Override
+    public void recordFallback(String command) {
+        LongAdder counter = fallbacks.get(command);
+        if (counter == null) {
+            counter = fallbacks.computeIfAbsent(command, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    @Override
+    public void recordBreakerTransition(String node, String from, String to) {
+        breakerStates.put(node, to);
+        if ("OPEN".equals(to)) {
+            breakerOpens.computeIfAbsent(node, k -> new LongAdder()).increment();
+        }
+    }
+
+    @Override
+    public void recordRedirect(String node, boolean ask) {
+        redirects.computeIfAbsent((ask ? "ASK@" : "MOVED@") + node, k -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void recordTopologyRefresh(boolean success) {
+        topologyRefreshes.increment();
+        if (!success) {
+            topologyRefreshErrors.increment();
+        }
+    }
+
+    private CommandStats stats(String command, String node) {
+        ConcurrentMap<String, CommandStats> nodes = commands.get(command);
+        if (nodes == null) {
+            nodes = commands.computeIfAbsent(command, k -> new ConcurrentHashMap<>());
+        }
+        CommandStats stats = nodes.get(node);
+        if (stats == null) {
+            stats = nodes.computeIfAbsent(node, k -> new CommandStats());
+        }
+        return stats;
+    }
+
+    /**
+     * 某个命令在某个节点上的耗时分布，没有记录时返回null
+     *
+     * @param command
+     * @param node
+     * @return
+     */
+    public LatencyHistogram getLatency(String command, String node) {
+        ConcurrentMap<String, CommandStats> nodes = commands.get(command);
+        CommandStats stats = nodes == null ? null : nodes.get(node);
+        return stats == null ? null : stats.latency;
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        return collect(stats -> stats.latency.getCount());
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        return collect(stats -> stats.errors.sum());
+    }
+
+    @Override
+    public Map<String, Double> getMeanMicros() {
+        Map<String, Double> result = new TreeMap<>();
+        commands.forEach((command, nodes) -> nodes.forEach((node, stats) ->
+                result.put(command + '@' + node, stats.latency.getMeanMicros())));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getP50Micros() {
+        return collect(stats -> stats.latency.getPercentileMicros(0.5));
+    }
+
+    @Override
+    public Map<String, Long> getP99Micros() {
+        return collect(stats -> stats.latency.getPercentileMicros(0.99));
+    }
+
+    @Override
+    public Map<String, Long> getMaxMicros() {
+        return collect(stats -> stats.latency.getMaxMicros());
+    }
+
+    private Map<String, Long> collect(ToLongFunction<CommandStats> value) {
+        Map<String, Long> result = new TreeMap<>();
+        commands.forEach((command, nodes) -> nodes.forEach((node, stats) ->
+                result.put(command + '@' + node, value.applyAsLong(stats))));
+        return result;
+    }
+
+    @Override
+    public long getBorrowCount() {
+        return borrows.getCount();
+    }
+
+    @Override
+    public long getBorrowErrors() {
+        return borrowErrors.sum();
+    }
+
+    @Override
+    public double getBorrowMeanMicros() {
+        return borrows.getMeanMicros();
+    }
+
+    @Override
+    public long getBorrowP99Micros() {
+        return borrows.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long getBorrowMaxMicros() {
+        return borrows.getMaxMicros();
+    }
+
+    @Override
+    public Map<String, Long> getFallbackCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        fallbacks.forEach((command, counter) -> result.put(command, counter.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, String> getBreakerStates() {
+        return new TreeMap<>(breakerStates);
+    }
+
+    @Override
+    public Map<String, Long> getBreakerOpenCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        breakerOpens.forEach((node, counter) -> result.put(node, counter.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getRedirectCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        redirects.forEach((key, counter) -> result.put(key, counter.sum()));
+        return result;
+    }
+
+    @Override
+    public long getTopologyRefreshCount() {
+        return topologyRefreshes.sum();
+    }
+
+    @Override
+    public long getTopologyRefreshErrors() {
+        return topologyRefreshErrors.sum();
+    }
+
+    @Override
+    public void reset() {
+        commands.clear();
+        fallbacks.clear();
+        borrows.reset();
+        borrowErrors.reset();
+        breakerOpens.clear();
+        redirects.clear();
+        topologyRefreshes.reset();
+        topologyRefreshErrors.reset();
+    }
+
+    private static final class CommandStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+    }
+}
@@ -0,0 +1,286 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.configuration.Configuration;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 热点key探测
+ * <p>
+ * 按采样率抽取经过代理的命令，用Count-Min sketch按第一个key计数，内存只与sketch大小和候选数上限有关。
+ * 每个窗口结束时把估计次数达到阈值的key按所在节点排序，保留前topN个，供{@link ConfigruableProvider#getHotKeys()}查询。
+ * <p>
+ * 配置项:
+ * <pre>
+ * hotKey.enable=false
+ * hotKey.sampleRate=16            每N次命令采样一次，1表示每次都计数
+ * hotKey.windowMillis=1000        统计窗口，窗口结束时sketch清零
+ * hotKey.threshold=1000           一个窗口内估计次数达到该值视为热点(已按采样率换算)
+ * hotKey.topN=10                  每个节点保留的热点key数
+ * hotKey.maxTracked=1000          一个窗口内最多跟踪的候选key数
+ * hotKey.sketchWidth=4096         sketch每行的计数器数
+ * hotKey.sketchDepth=4            sketch的行数
+ * hotKey.promote=false            把热点key的get/hget/hgetAll结果缓存在本地
+ * hotKey.promoteTtlMillis=200     本地缓存写入后的存活时间
+ * </pre>
+ * 采样的命令要计算key的哈希并更新sketch，默认每16次采样一次，计数按采样率放大，
+ * 热点key每个窗口通常有成百上千次访问，估计值足够准确；各采样率的开销见基准测试HotKeyDetectorBenchmark。
+ * 本地缓存只在经过同一代理的写命令时失效，不通知其他JVM，其他JVM的写入最多在promoteTtlMillis后可见；
+ * 与近端缓存共用{@link LocalReadCache}，降级返回值和读写并发时的旧值不会被缓存
+ */
+@Slf4j
+class HotKeyDetector implements Closeable {
+    private final int sampleRate;
+    private final long threshold;
+    private final int topN;
+    private final int maxTracked;
+    private final int width;
+    private final int depth;
+    private final AtomicLongArray sketch;
+    /**
+     * key到所在节点 host:port/db
+     */
+    private final Function<Object, String> nodeOf;
+    /**
+     * 当前窗口估计次数达到阈值的key
+     */
+    private final ConcurrentHashMap<String, Candidate> candidates = new ConcurrentHashMap<>();
+    /**
+     * 上一个窗口的结果: 节点 -> (key -> 估计次数)，按次数从高到低
+     */
+    private volatile Map<String, Map<String, Long>> hotKeys = ImmutableMap.of();
+    /**
+     * 上一个窗口的热点key，只有这些key的读结果进入本地缓存
+     */
+    private volatile Set<String> promotable = ImmutableSet.of();
+    private final LocalReadCache promoted;
+    private final ScheduledExecutorService roller;
+    private final LongAdder sampled = new LongAdder();
+
+    /**
+     * @param config
+     * @param name   线程名后缀
+     * @param nodeOf key(String或byte[])所在的节点
+     */
+    HotKeyDetector(Configuration config, String name, Function<Object, String> nodeOf) {
+        this.nodeOf = nodeOf;
+        this.sampleRate = Math.max(1, config.getInt("hotKey.sampleRate", 16));
+        this.threshold = Math.max(1, config.getLong("hotKey.threshold", 1000));
+        this.topN = Math.max(1, config.getInt("hotKey.topN", 10));
+        this.maxTracked = Math.max(topN, config.getInt("hotKey.maxTracked", 1000));
+        this.width = Math.max(16, config.getInt("hotKey.sketchWidth", 4096));
+        this.depth = Math.max(1, config.getInt("hotKey.sketchDepth", 4));
+        this.sketch = new AtomicLongArray(width * depth);
+        this.promoted = config.getBoolean("hotKey.promote", false)
+                ? new LocalReadCache(maxTracked, Math.max(1, config.getLong("hotKey.promoteTtlMillis", 200)))
+                : null;
+        this.roller = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("redis-hot-key-" + name).build());
+        long windowMillis = Math.max(10, config.getLong("hotKey.windowMillis", 1000));
+        roller.scheduleAtFixedRate(this::roll, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 采样计数；开启本地缓存时，热点key的读命令先查本地，写命令执行后失效本地结果
+     *
+     * @param method
+     * @param args
+     * @param next
+     * @return
+     * @throws Throwable
+     */
+    Object execute(Method method, Object[] args, CommandInvoker next) throws Throwable {
+        Object key = CommandTypes.firstKey(method, args);
+        if (key == null) {
+            return next.invoke(method, args);
+        }
+        String canonical = null;
+        if (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+            canonical = NearCache.canonical(key);
+            record(canonical, key);
+        }
+        if (promoted == null) {
+            return next.invoke(method, args);
+        }
+
+        int kind = NearCache.kind(method);
+        if (kind >= 0) {
+            if (promotable.isEmpty()) {
+                return next.invoke(method, args);
+            }
+            if (canonical == null) {
+                canonical = NearCache.canonical(key);
+            }
+            if (!promotable.contains(canonical)) {
+                return next.invoke(method, args);
+            }
+            return promoted.read(canonical, NearCache.subKey(kind, args), method, args, next);
+        }
+        if (CommandTypes.isReadOnly(method)) {
+            return next.invoke(method, args);
+        }
+        Object result = next.invoke(method, args);
+        // 本地为空时也要失效，推进版本号使正在进行的读不写入旧值
+        for (Object written : CommandTypes.writtenKeys(method, args)) {
+            promoted.invalidate(NearCache.canonical(written));
+        }
+        return result;
+    }
+
+    /**
+     * 没有经过{@link #execute}的写命令(如批量执行)完成后，失效本地结果
+     *
+     * @param method
+     * @param args
+     */
+    void written(Method method, Object[] args) {
+        if (promoted != null && !CommandTypes.isReadOnly(method)) {
+            for (Object key : CommandTypes.writtenKeys(method, args)) {
+                promoted.invalidate(NearCache.canonical(key));
+            }
+        }
+    }
+
+    /**
+     * 在sketch的每一行加上采样率，估计值取各行最小值
+     *
+     * @param canonical 规范化后的key
+     * @param key       原始key，用于定位节点
+     */
+    private void record(String canonical, Object key) {
+        sampled.increment();
+        HashCode hash = Hashing.murmur3_128().hashString(canonical, StandardCharsets.ISO_8859_1);
+        long h = hash.asLong();
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int index = ((h1 + i * h2) & 0x7fffffff) % width;
+            estimate = Math.min(estimate, sketch.addAndGet(i * width + index, sampleRate));
+        }
+        if (estimate < threshold) {
+            return;
+        }
+        Candidate candidate = candidates.get(canonical);
+        if (candidate == null) {
+            if (candidates.size() >= maxTracked) {
+                return;
+            }
+            candidate = candidates.computeIfAbsent(canonical, k -> new Candidate(nodeOf.apply(key)));
+        }
+        candidate.update(estimate);
+    }
+
+    /**
+     * 结束当前窗口: 发布每个节点的topN，sketch清零
+     */
+    private void roll() {
+        try {
+            Map<String, List<Map.Entry<String, Long>>> byNode = new HashMap<>();
+            for (Map.Entry<String, Candidate> entry : candidates.entrySet()) {
+                Candidate candidate = entry.getValue();
+                byNode.computeIfAbsent(candidate.node, n -> new ArrayList<>())
+                        .add(Maps.immutableEntry(entry.getKey(), candidate.estimate.get()));
+            }
+            candidates.clear();
+            for (int i = 0; i < sketch.length(); i++) {
+                sketch.set(i, 0);
+            }
+
+            Map<String, Set<String>> previous = new HashMap<>();
+            hotKeys.forEach((node, keys) -> previous.put(node, keys.keySet()));
+            ImmutableMap.Builder<String, Map<String, Long>> result = ImmutableMap.builder();
+            ImmutableSet.Builder<String> keys = ImmutableSet.builder();
+            for (Map.Entry<String, List<Map.Entry<String, Long>>> node : byNode.entrySet()) {
+                List<Map.Entry<String, Long>> entries = node.getValue();
+                entries.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()));
+                Map<String, Long> top = new LinkedHashMap<>();
+                for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(topN, entries.size()))) {
+                    top.put(entry.getKey(), entry.getValue());
+                    keys.add(entry.getKey());
+                    Set<String> known = previous.get(node.getKey());
+                    if (known == null || !known.contains(entry.getKey())) {
+                        log.warn("hot key {} on {}: ~{} commands in window", entry.getKey(), node.getKey(), entry.getValue());
+                    }
+                }
+                result.put(node.getKey(), Collections.unmodifiableMap(top));
+            }
+            hotKeys = result.build();
+            promotable = keys.build();
+        } catch (RuntimeException e) {
+            log.error("cannot roll hot key window", e);
+        }
+    }
+
+    /**
+     * 上一个窗口每个节点的热点key和估计次数
+     *
+     * @return
+     */
+    Map<String, Map<String, Long>> getHotKeys() {
+        return hotKeys;
+    }
+
+    long getSampledCount() {
+        return sampled.sum();
+    }
+
+    long getPromotedHitCount() {
+        return promoted == null ? 0 : promoted.getHitCount();
+    }
+
+    long getPromotedMissCount() {
+        return promoted == null ? 0 : promoted.getMissCount();
+    }
+
+    int getHotKeyCount() {
+        return promotable.size();
+    }
+
+    @Override
+    public void close() {
+        roller.shutdownNow();
+        if (promoted != null) {
+            promoted.invalidateAll();
+        }
+    }
+
+    private static final class Candidate {
+        private final String node;
+        private final AtomicLong estimate = new AtomicLong();
+
+        private Candidate(String node) {
+            this.node = node;
+        }
+
+        private void update(long value) {
+            estimate.accumulateAndGet(value, Math::max);
+        }
+    }
+}
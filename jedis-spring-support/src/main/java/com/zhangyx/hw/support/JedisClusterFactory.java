@@ -1,27 +1,42 @@
 package com.zhangyx.hw.support;
 
-import com.google.common.collect.ImmutableSet;
 import com.google.common.reflect.Reflection;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.FactoryBean;
-import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisCluster;
-import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.JedisClusterCRC16;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
-import java.net.ConnectException;
-import java.util.Set;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * 动态代理，拦截redis请求，用于监控
+ * <p>
+ * 每次调用的耗时、错误和降级记录到{@link RedisMetrics}；
+ * 开启熔断时，key所在master熔断期间直接返回默认值，见{@link CircuitBreaker}；
+ * 开启读写分离时只读命令可以发往副本，见{@link ClusterReadRouter}；
+ * 单key命令按{@link ClusterTopology}直接发往节点，重定向只更新对应slot，不在调用线程上重建整个slot缓存
  */
 @Slf4j
 public class JedisClusterFactory<T> extends ConfigruableProvider implements FactoryBean<T> {
-    private Set<String> names = ImmutableSet.of("hashCode", "toString", "equals");
+    /**
+     * 直接访问节点时最多跟随的重定向次数
+     */
+    private static final int MAX_REDIRECTS = 2;
+
     private Class<T> clazz;
+    /**
+     * 共享的代理实例，首次getObject时创建；代理每次调用都重新读取后端，配置重载后自动切换
+     */
+    private volatile T proxy;
 
     @SuppressWarnings("unchecked")
     public JedisClusterFactory() {
@@ -30,71 +45,308 @@ public class JedisClusterFactory<T> extends ConfigruableProvider implements Fact
 
     @Override
     public T getObject() throws Exception {
+        T result = proxy;
+        if (result == null) {
+            synchronized (this) {
+                result = proxy;
+                if (result == null) {
+                    proxy = result = createProxy();
+                }
+            }
+        }
+        return result;
+    }
+
+    private T createProxy() {
+        // 启动时一次性解析分发表，调用时不再反射查找
+        CommandDispatcher dispatcher = CommandDispatcher.of(clazz, JedisCluster.class);
+        CommandDispatcher nodeDispatcher = CommandDispatcher.of(clazz, Jedis.class);
         return Reflection.newProxy(clazz, new InvocationHandler() {
             @Override
             public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-                if (names.contains(method.getName())) {
-                    if (getJedisCluster() != null) {
-                        return method.invoke(getJedisCluster(), args);
-                    } else {
-                        return findDefault(method);
-                    }
+                RedisBackend backend = getBackend();
+                if (method.getDeclaringClass() == Object.class) {
+                    return invokeObjectMethod(proxy, method, args);
                 }
 
-                // TODO 这里可以开始监控埋点，对业务方隐藏细节
+                WriteBehindBuffer writeBehind = backend.getWriteBehind();
+                SingleFlight singleFlight = backend.getSingleFlight();
+                HotKeyDetector hotKeyDetector = backend.getHotKeyDetector();
+                NearCache nearCache = backend.getNearCache();
+                if (writeBehind == null && singleFlight == null && hotKeyDetector == null && nearCache == null) {
+                    // 没有开启任何中间层时直接执行，不为每次调用创建调用链
+                    return route(backend, dispatcher, nodeDispatcher, method, args);
+                }
 
-                JedisCluster jedisCluster = getJedisCluster();
-                if (jedisCluster == null) {
-                    return findDefault(method);
+                // 近端缓存 -> 热点探测 -> 请求合并 -> 写后合并 -> 后端
+                CommandInvoker invoker = (m, a) -> route(backend, dispatcher, nodeDispatcher, m, a);
+                if (writeBehind != null) {
+                    CommandInvoker next = invoker;
+                    invoker = (m, a) -> writeBehind.execute(m, a, next);
+                }
+                if (singleFlight != null) {
+                    CommandInvoker next = invoker;
+                    invoker = (m, a) -> singleFlight.execute(m, a, next);
                 }
+                if (hotKeyDetector != null) {
+                    CommandInvoker next = invoker;
+                    invoker = (m, a) -> hotKeyDetector.execute(m, a, next);
+                }
+                if (nearCache != null) {
+                    return nearCache.execute(method, args, invoker);
+                }
+                return invoker.invoke(method, args);
+            }
+        });
+    }
 
-                return exchangeRedis(jedisCluster, method, args);
+    /**
+     * 选择后端执行命令，开启读写分离时只读命令按key发往副本
+     *
+     * @param backend
+     * @param dispatcher
+     * @param nodeDispatcher
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    private Object route(RedisBackend backend, CommandDispatcher dispatcher, CommandDispatcher nodeDispatcher,
+                         Method method, Object[] args) throws Throwable {
+        JedisCluster jedisCluster = backend.getJedisCluster();
+        if (jedisCluster == null) {
+            getMetrics().recordFallback(method.getName());
+            return findDefault(method);
+        }
 
+        ClusterMultiKeyScatter scatter = backend.getClusterScatter();
+        if (scatter != null && scatter.supports(method)) {
+            return exchangeScatter(scatter, method, args);
+        }
+
+        ClusterReadRouter router = backend.getClusterReadRouter();
+        Object key = CommandTypes.firstKey(method, args);
+        if (router != null && key != null && router.supports(method)) {
+            return exchangeRead(backend, router, key, dispatcher, nodeDispatcher, method, args);
+        }
+        return exchangeRedis(backend, jedisCluster, dispatcher, nodeDispatcher, method, args);
+    }
+
+    /**
+     * 按cluster.readFrom选择节点执行读命令
+     * <p>
+     * 副本熔断、连接失败或slot已迁移时，除replica模式外都改由JedisCluster读master
+     *
+     * @param backend
+     * @param router
+     * @param key
+     * @param dispatcher
+     * @param nodeDispatcher
+     * @param method
+     * @param args
+     * @return
+     */
+    private Object exchangeRead(RedisBackend backend, ClusterReadRouter router, Object key, CommandDispatcher dispatcher,
+                                CommandDispatcher nodeDispatcher, Method method, Object[] args) {
+        ClusterReadRouter.Route route;
+        try {
+            route = router.select(key);
+        } catch (RuntimeException e) {
+            log.error("cannot select replica: " + getConfigFileName(), e);
+            getMetrics().recordFallback(method.getName());
+            return findDefault(method);
+        }
+        if (route == null) {
+            return exchangeRedis(backend, backend.getJedisCluster(), dispatcher, nodeDispatcher, method, args);
+        }
+        boolean masterFallback = router.getReadFrom() != ClusterReadRouter.ReadFrom.REPLICA;
+        CircuitBreaker breaker = breaker(route.node);
+        if (breaker != null && !breaker.tryAcquire()) {
+            if (masterFallback && route.replica) {
+                return exchangeRedis(backend, backend.getJedisCluster(), dispatcher, nodeDispatcher, method, args);
             }
-        });
+            getMetrics().recordFallback(method.getName());
+            return findDefault(method);
+        }
+
+        RedisMetrics metrics = getMetrics();
+        long start = System.nanoTime();
+        Jedis jedis;
+        try {
+            jedis = route.pool.getResource();
+        } catch (Exception e) {
+            long elapsed = System.nanoTime() - start;
+            metrics.recordBorrow(elapsed, false);
+            if (breaker != null) {
+                breaker.onResult(elapsed, false);
+            }
+            log.error("cannot getResource from {}: {}", route.node, getConfigFileName(), e);
+            return masterFallback && route.replica
+                    ? exchangeRedis(backend, backend.getJedisCluster(), dispatcher, nodeDispatcher, method, args) : null;
+        }
+        long borrowed = System.nanoTime();
+        metrics.recordBorrow(borrowed - start, true);
+
+        Throwable error = null;
+        try (Jedis resource = jedis) {
+            return nodeDispatcher.invoke(resource, method, args);
+        } catch (Throwable e) {
+            error = e;
+        } finally {
+            long end = System.nanoTime();
+            metrics.recordCommand(method.getName(), route.node, end - borrowed, error == null);
+            if (error == null) {
+                router.record(route.node, end - start);
+            }
+            if (breaker != null) {
+                breaker.onResult(end - start, error == null || !CircuitBreaker.isFailure(error));
+            }
+        }
+
+        if (error instanceof JedisRedirectionException) {
+            // 副本不再负责该slot，刷新拓扑后由JedisCluster跟随重定向
+            log.warn("cluster topology changed, refresh slots: {}", error.getMessage());
+            backend.getClusterTopology().redirected((JedisRedirectionException) error);
+            return exchangeRedis(backend, backend.getJedisCluster(), dispatcher, nodeDispatcher, method, args);
+        }
+        if (error instanceof JedisConnectionException && masterFallback && route.replica) {
+            log.warn("cannot read from replica {}, fall back to master: {}", route.node, error.getMessage());
+            return exchangeRedis(backend, backend.getJedisCluster(), dispatcher, nodeDispatcher, method, args);
+        }
+        log.error("cannot exchange Redis: " + getConfigFileName(), error);
+        return null;
     }
 
-    private <T> Object exchangeRedis(JedisCluster jedisCluster, Method method, Object[] args) throws ConnectException {
-        Object ret = null;
-        boolean fail = true;
-        long start = System.currentTimeMillis();
+    /**
+     * 带key的命令直接发往slot所在master，没有key、slot未知或Jedis不支持的命令交给JedisCluster
+     *
+     * @param backend
+     * @param jedisCluster
+     * @param dispatcher
+     * @param nodeDispatcher
+     * @param method
+     * @param args
+     * @return
+     */
+    private Object exchangeRedis(RedisBackend backend, JedisCluster jedisCluster, CommandDispatcher dispatcher,
+                                 CommandDispatcher nodeDispatcher, Method method, Object[] args) {
+        ClusterTopology topology = backend.getClusterTopology();
+        Object key = CommandTypes.firstKey(method, args);
+        int slot = topology == null || key == null ? -1 : slot(key);
+        String node = slot < 0 ? null : topology.getMasterName(slot);
+        if (node == null) {
+            node = RedisMetrics.UNKNOWN_NODE;
+        }
+        CircuitBreaker breaker = breaker(node);
+        if (breaker != null && !breaker.tryAcquire()) {
+            getMetrics().recordFallback(method.getName());
+            return findDefault(method);
+        }
+        long start = System.nanoTime();
+        Throwable error = null;
         try {
-            T redis;
-            try {
-                redis = (T) jedisCluster;
-            } catch (Exception e) {
-                log.error("cannot getResource from:{}", getConfigFileName(), e);
-                return null;
+            JedisPool pool = slot < 0 ? null : topology.getMaster(slot);
+            if (pool != null && nodeDispatcher.supports(method)) {
+                return exchangeNode(topology, pool, jedisCluster, dispatcher, nodeDispatcher, method, args);
+            }
+            return dispatcher.invoke(jedisCluster, method, args);
+        } catch (Throwable e) {
+            error = e;
+            log.error("cannot exchange Redis: " + getConfigFileName(), e);
+            return null;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            getMetrics().recordCommand(method.getName(), node, elapsed, error == null);
+            if (breaker != null) {
+                breaker.onResult(elapsed, error == null || !CircuitBreaker.isFailure(error));
             }
-            if (redis != null) {
-                try {
-                    ret = method.invoke(redis, args);
-                    fail = false;
-                } catch (Exception e) {
-                    log.error("cannot exchange Redis: " + getConfigFileName(), e);
-                    return null;
-                } finally {
-                    Client client = null;
-                    if (redis instanceof Jedis) {
-                        client = ((Jedis) redis).getClient();
-                    }
-//                    else if (args.length > 0) {
-//                        Object key = args[0];
-//                        if (key instanceof String) {
-//                            client = ((ShardedJedis) redis).getShard((String) key).getClient();
-//                        } else if (key instanceof byte[]) {
-//                            client = ((ShardedJedis) redis).getShard((byte[]) key).getClient();
-//                        }
-//                    }
-                    if (client != null) {
-                        String url = client.getHost() + ':' + client.getPort() + '/' + client.getDB();
-                    }
+        }
+    }
+
+    /**
+     * 在master上执行命令，MOVED/ASK时按返回的节点重试，只更新对应的slot，整表由后台刷新
+     * <p>
+     * 目标节点未知、重定向次数过多或连接失败时交给JedisCluster，由它按原来的方式重试
+     *
+     * @param topology
+     * @param pool
+     * @param jedisCluster
+     * @param dispatcher
+     * @param nodeDispatcher
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    private Object exchangeNode(ClusterTopology topology, JedisPool pool, JedisCluster jedisCluster,
+                                CommandDispatcher dispatcher, CommandDispatcher nodeDispatcher,
+                                Method method, Object[] args) throws Throwable {
+        JedisPool target = pool;
+        boolean asking = false;
+        for (int redirects = 0; ; redirects++) {
+            try (Jedis jedis = target.getResource()) {
+                if (asking) {
+                    jedis.asking();
                 }
+                return nodeDispatcher.invoke(jedis, method, args);
+            } catch (JedisRedirectionException e) {
+                target = topology.redirected(e);
+                if (target == null || redirects >= MAX_REDIRECTS) {
+                    return dispatcher.invoke(jedisCluster, method, args);
+                }
+                asking = e instanceof JedisAskDataException;
+            } catch (JedisConnectionException e) {
+                // 节点可能正在故障转移，后台刷新拓扑
+                topology.scheduleRefresh();
+                return dispatcher.invoke(jedisCluster, method, args);
             }
+        }
+    }
+
+    private static int slot(Object key) {
+        return key instanceof byte[] ? JedisClusterCRC16.getSlot((byte[]) key) : JedisClusterCRC16.getSlot((String) key);
+    }
+
+    /**
+     * 多key命令按slot拆分到各节点并行执行
+     *
+     * @param scatter
+     * @param method
+     * @param args
+     * @return
+     */
+    private Object exchangeScatter(ClusterMultiKeyScatter scatter, Method method, Object[] args) {
+        long start = System.nanoTime();
+        boolean fail = true;
+        try {
+            Object ret = scatter.execute(method, args);
+            fail = false;
+            return ret;
+        } catch (Throwable e) {
+            log.error("cannot exchange Redis: " + getConfigFileName(), e);
+            return null;
         } finally {
-            //TODO 最终结果处理
+            getMetrics().recordCommand(method.getName(), RedisMetrics.MULTI_NODE, System.nanoTime() - start, !fail);
         }
-        return ret;
+    }
+
+    /**
+     * 批量执行: commands里对参数的调用只做记录，返回值没有意义；记录的命令按节点分组用管道发送，
+     * 各节点并行，返回与调用顺序一致的结果
+     * <p>
+     * 单条命令失败时对应位置是异常对象，Pipeline不支持的命令在记录时抛出UnsupportedOperationException，
+     * 见{@link CommandBatch}
+     *
+     * @param commands
+     * @return
+     */
+    public List<Object> batch(Consumer<T> commands) {
+        return executeBatch(CommandBatch.record(clazz, commands));
+    }
+
+    @Override
+    protected Class<?> getCommandType() {
+        return clazz;
     }
 
     @Override
@@ -104,7 +356,7 @@ public class JedisClusterFactory<T> extends ConfigruableProvider implements Fact
 
     @Override
     public boolean isSingleton() {
-        return false;
+        return true;
     }
 
 }
@@ -1,25 +1,31 @@
 package com.zhangyx.hw.support;
 
-import com.google.common.collect.ImmutableSet;
 import com.google.common.reflect.Reflection;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.FactoryBean;
 import redis.clients.jedis.*;
 import redis.clients.util.Pool;
 
+import java.io.Closeable;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
-import java.net.ConnectException;
-import java.util.Set;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * 动态代理，拦截redis请求，用于监控
+ * <p>
+ * 每次调用的耗时、错误、借连接等待和降级记录到{@link RedisMetrics}；
+ * 开启熔断时，节点熔断期间直接返回默认值，见{@link CircuitBreaker}
  */
 @Slf4j
 public class JedisPoolFactory<T> extends ConfigruableProvider implements FactoryBean<T> {
-    private Set<String> names = ImmutableSet.of("hashCode", "toString", "equals");
     private Class<T> clazz;
+    /**
+     * 共享的代理实例，首次getObject时创建；代理每次调用都重新读取后端，配置重载后自动切换
+     */
+    private volatile T proxy;
 
     @SuppressWarnings("unchecked")
     public JedisPoolFactory() {
@@ -28,80 +34,218 @@ public class JedisPoolFactory<T> extends ConfigruableProvider implements Factory
 
     @Override
     public T getObject() throws Exception {
+        T result = proxy;
+        if (result == null) {
+            synchronized (this) {
+                result = proxy;
+                if (result == null) {
+                    proxy = result = createProxy();
+                }
+            }
+        }
+        return result;
+    }
+
+    private T createProxy() {
+        // 启动时一次性解析分发表，调用时不再反射查找
+        CommandDispatcher jedisDispatcher = CommandDispatcher.of(clazz, Jedis.class);
+        CommandDispatcher shardedDispatcher = CommandDispatcher.of(clazz, ShardedJedis.class);
         return Reflection.newProxy(clazz, new InvocationHandler() {
             @Override
             public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-                if (names.contains(method.getName())) {
-                    JedisPool pool = getPool();
-                    if (pool != null) {
-                        return method.invoke(pool.getResource(), args);
-                    } else {
-                        ShardedJedisPool sPool = getShardedPool();
-                        if (sPool == null) {
-                            return findDefault(method);
-                        }
-                        return method.invoke(sPool.getResource(), args);
-                    }
+                RedisBackend backend = getBackend();
+                if (method.getDeclaringClass() == Object.class) {
+                    return invokeObjectMethod(proxy, method, args);
                 }
 
-                // TODO 这里可以开始监控埋点，对业务方隐藏细节
-
-                JedisPool pool = getPool();
-                if (pool != null) {
-                    return exchangeRedis(pool, method, args);
-                } else {
-                    ShardedJedisPool sPool = getShardedPool();
-                    if (sPool == null) {
-                        return findDefault(method);
-                    }
-                    return exchangeRedis(sPool, method, args);
+                WriteBehindBuffer writeBehind = backend.getWriteBehind();
+                SingleFlight singleFlight = backend.getSingleFlight();
+                HotKeyDetector hotKeyDetector = backend.getHotKeyDetector();
+                NearCache nearCache = backend.getNearCache();
+                if (writeBehind == null && singleFlight == null && hotKeyDetector == null && nearCache == null) {
+                    // 没有开启任何中间层时直接执行，不为每次调用创建调用链
+                    return route(backend, jedisDispatcher, shardedDispatcher, method, args);
                 }
+
+                // 近端缓存 -> 热点探测 -> 请求合并 -> 写后合并 -> 后端
+                CommandInvoker invoker = (m, a) -> route(backend, jedisDispatcher, shardedDispatcher, m, a);
+                if (writeBehind != null) {
+                    CommandInvoker next = invoker;
+                    invoker = (m, a) -> writeBehind.execute(m, a, next);
+                }
+                if (singleFlight != null) {
+                    CommandInvoker next = invoker;
+                    invoker = (m, a) -> singleFlight.execute(m, a, next);
+                }
+                if (hotKeyDetector != null) {
+                    CommandInvoker next = invoker;
+                    invoker = (m, a) -> hotKeyDetector.execute(m, a, next);
+                }
+                if (nearCache != null) {
+                    return nearCache.execute(method, args, invoker);
+                }
+                return invoker.invoke(method, args);
             }
         });
     }
 
-    private <T> Object exchangeRedis(Pool<T> pool, Method method, Object[] args) throws ConnectException {
-        Object ret = null;
-        boolean fail = true;
-        long start = System.currentTimeMillis();
+    /**
+     * 选择后端执行命令：单节点优先，其次分片
+     *
+     * @param backend
+     * @param jedisDispatcher
+     * @param shardedDispatcher
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    private Object route(RedisBackend backend, CommandDispatcher jedisDispatcher, CommandDispatcher shardedDispatcher,
+                         Method method, Object[] args) throws Throwable {
+        JedisPool pool = backend.getPool();
+        if (pool != null) {
+            PipelineBatcher batcher = backend.getPipelineBatcher();
+            if (batcher != null && batcher.supports(method)) {
+                return exchangePipelined(backend, batcher, method, args);
+            }
+            return exchangeRedis(backend, pool, jedisDispatcher, method, args);
+        } else {
+            ShardedJedisPool sPool = backend.getShardedPool();
+            if (sPool == null) {
+                getMetrics().recordFallback(method.getName());
+                return findDefault(method);
+            }
+            ShardedMultiKeyScatter scatter = backend.getShardedScatter();
+            if (scatter != null && scatter.supports(method)) {
+                return exchangeScatter(scatter, method, args);
+            }
+            return exchangeRedis(backend, sPool, shardedDispatcher, method, args);
+        }
+    }
+
+    private <T extends Closeable> Object exchangeRedis(RedisBackend backend, Pool<T> pool, CommandDispatcher dispatcher,
+                                     Method method, Object[] args) {
+        // 分片模式按第一个key定位节点，不需要先借连接
+        String node = pool == backend.getPool()
+                ? backend.nodeName(pool) : backend.shardNode(CommandTypes.firstKey(method, args));
+        CircuitBreaker breaker = breaker(node);
+        if (breaker != null && !breaker.tryAcquire()) {
+            getMetrics().recordFallback(method.getName());
+            return findDefault(method);
+        }
+
+        RedisMetrics metrics = getMetrics();
+        long start = System.nanoTime();
+        T redis;
         try {
-            T redis;
-            try {
-                redis = pool.getResource();
-            } catch (Exception e) {
-                log.error("cannot getResource from:{}", getConfigFileName(), e);
-                return null;
+            redis = pool.getResource();
+        } catch (Exception e) {
+            long elapsed = System.nanoTime() - start;
+            metrics.recordBorrow(elapsed, false);
+            if (breaker != null) {
+                breaker.onResult(elapsed, false);
             }
-            if (redis != null) {
-                try {
-                    ret = method.invoke(redis, args);
-                    pool.returnResource(redis);
-                    fail = false;
-                } catch (Exception e) {
-                    pool.returnBrokenResource(redis);
-                    log.error("cannot exchange Redis: " + getConfigFileName(), e);
-                    return null;
-                } finally {
-                    Client client = null;
-                    if (redis instanceof Jedis) {
-                        client = ((Jedis) redis).getClient();
-                    } else if (args.length > 0) {
-                        Object key = args[0];
-                        if (key instanceof String) {
-                            client = ((ShardedJedis) redis).getShard((String) key).getClient();
-                        } else if (key instanceof byte[]) {
-                            client = ((ShardedJedis) redis).getShard((byte[]) key).getClient();
-                        }
-                    }
-                    if (client != null) {
-                        String url = client.getHost() + ':' + client.getPort() + '/' + client.getDB();
-                    }
-                }
+            log.error("cannot getResource from:{}", getConfigFileName(), e);
+            return null;
+        }
+        long borrowed = System.nanoTime();
+        metrics.recordBorrow(borrowed - start, true);
+
+        // close()按连接是否断开归还或销毁连接，异常时也会归还
+        Throwable error = null;
+        try (T resource = redis) {
+            Object ret = dispatcher.invoke(resource, method, args);
+            ShardMigration migration = backend.getShardMigration();
+            if (migration != null && resource instanceof ShardedJedis) {
+                ret = migration.read((ShardedJedis) resource, method, args, ret);
             }
+            return ret;
+        } catch (Throwable e) {
+            error = e;
+            log.error("cannot exchange Redis: " + getConfigFileName(), e);
+            return null;
         } finally {
-            //TODO 最终结果处理
+            long end = System.nanoTime();
+            metrics.recordCommand(method.getName(), node, end - borrowed, error == null);
+            if (breaker != null) {
+                breaker.onResult(end - start, error == null || !CircuitBreaker.isFailure(error));
+            }
+        }
+    }
+
+    /**
+     * 通过自动管道执行，调用方同步等待
+     *
+     * @param backend
+     * @param batcher
+     * @param method
+     * @param args
+     * @return
+     */
+    private Object exchangePipelined(RedisBackend backend, PipelineBatcher batcher, Method method, Object[] args) {
+        String node = backend.nodeName(backend.getPool());
+        CircuitBreaker breaker = breaker(node);
+        if (breaker != null && !breaker.tryAcquire()) {
+            getMetrics().recordFallback(method.getName());
+            return findDefault(method);
         }
-        return ret;
+        long start = System.nanoTime();
+        Throwable error = null;
+        try {
+            return batcher.execute(method, args);
+        } catch (Throwable e) {
+            error = e;
+            log.error("cannot exchange Redis: " + getConfigFileName(), e);
+            return null;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            getMetrics().recordCommand(method.getName(), node, elapsed, error == null);
+            if (breaker != null) {
+                breaker.onResult(elapsed, error == null || !CircuitBreaker.isFailure(error));
+            }
+        }
+    }
+
+    /**
+     * 多key命令按分片拆分并行执行
+     *
+     * @param scatter
+     * @param method
+     * @param args
+     * @return
+     */
+    private Object exchangeScatter(ShardedMultiKeyScatter scatter, Method method, Object[] args) {
+        long start = System.nanoTime();
+        boolean fail = true;
+        try {
+            Object ret = scatter.execute(method, args);
+            fail = false;
+            return ret;
+        } catch (Throwable e) {
+            log.error("cannot exchange Redis: " + getConfigFileName(), e);
+            return null;
+        } finally {
+            getMetrics().recordCommand(method.getName(), RedisMetrics.MULTI_NODE, System.nanoTime() - start, !fail);
+        }
+    }
+
+    /**
+     * 批量执行: commands里对参数的调用只做记录，返回值没有意义；记录的命令按节点分组用管道发送，
+     * 各节点并行，返回与调用顺序一致的结果
+     * <p>
+     * 单条命令失败时对应位置是异常对象，Pipeline不支持的命令在记录时抛出UnsupportedOperationException，
+     * 见{@link CommandBatch}
+     *
+     * @param commands
+     * @return
+     */
+    public List<Object> batch(Consumer<T> commands) {
+        return executeBatch(CommandBatch.record(clazz, commands));
+    }
+
+    @Override
+    protected Class<?> getCommandType() {
+        return clazz;
     }
 
     @Override
@@ -111,7 +255,7 @@ public class JedisPoolFactory<T> extends ConfigruableProvider implements Factory
 
     @Override
     public boolean isSingleton() {
-        return false;
+        return true;
     }
 
 }
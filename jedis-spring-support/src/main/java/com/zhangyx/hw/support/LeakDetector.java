@@ -0,0 +1,173 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectState;
+import org.apache.commons.pool2.impl.AbandonedConfig;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import redis.clients.util.Pool;
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 连接泄漏检测
+ * <p>
+ * 后台线程定期扫描当前后端的每个连接池，借出超过thresholdMillis还没归还的连接记录一次告警，只报告不回收。
+ * trace=true 时给连接池设置只记录不回收的AbandonedConfig，借出时保存调用栈并在告警中输出，
+ * 每次借连接多创建一个异常对象，建议只在排查问题时开启。
+ * <p>
+ * 配置项(只在启动时读取):
+ * <pre>
+ * leak.enable=false
+ * leak.thresholdMillis=30000     连接借出超过该时间视为泄漏
+ * leak.intervalMillis=5000       扫描间隔
+ * leak.trace=false               记录借出连接的调用栈
+ * </pre>
+ * 设置trace之前已经创建的连接没有调用栈，仍按借出时间检测
+ */
+@Slf4j
+class LeakDetector implements Closeable {
+    private static final Field ALL_OBJECTS;
+
+    static {
+        try {
+            ALL_OBJECTS = GenericObjectPool.class.getDeclaredField("allObjects");
+            ALL_OBJECTS.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Supplier<RedisBackend> backend;
+    private final long thresholdMillis;
+    private final boolean trace;
+    private final ScheduledExecutorService scanner;
+    /**
+     * 已报告过的借出(连接+借出时间)，只在扫描线程上访问，每次扫描只保留仍未归还的
+     */
+    private Set<String> reported = new HashSet<>();
+    private volatile long held;
+    private final LongAdder leaked = new LongAdder();
+
+    LeakDetector(Supplier<RedisBackend> backend, Configuration config, String name) {
+        this.backend = backend;
+        this.thresholdMillis = Math.max(1, config.getLong("leak.thresholdMillis", 30000));
+        this.trace = config.getBoolean("leak.trace", false);
+        this.scanner = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("redis-leak-detector-" + name).build());
+        long interval = Math.max(10, config.getLong("leak.intervalMillis", 5000));
+        scanner.scheduleWithFixedDelay(this::scan, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 在新后端开始使用前记录调用栈，之后建立的连接借出时都有调用栈
+     *
+     * @param target
+     */
+    void track(RedisBackend target) {
+        if (!trace) {
+            return;
+        }
+        for (Pool<?> pool : target.pools()) {
+            track(PoolSizer.internal(pool));
+        }
+    }
+
+    private void track(GenericObjectPool<?> pool) {
+        if (pool != null && !pool.isAbandonedConfig()) {
+            AbandonedConfig abandoned = new AbandonedConfig();
+            abandoned.setLogAbandoned(true);
+            abandoned.setRemoveAbandonedOnBorrow(false);
+            abandoned.setRemoveAbandonedOnMaintenance(false);
+            pool.setAbandonedConfig(abandoned);
+        }
+    }
+
+    private void scan() {
+        try {
+            long now = System.currentTimeMillis();
+            long count = 0;
+            Set<String> current = new HashSet<>();
+            for (Pool<?> pool : backend.get().pools()) {
+                GenericObjectPool<?> internal = PoolSizer.internal(pool);
+                if (internal == null || internal.isClosed()) {
+                    continue;
+                }
+                if (trace) {
+                    // 集群拓扑刷新后新节点的连接池
+                    track(internal);
+                }
+                for (PooledObject<?> pooled : allObjects(internal)) {
+                    long borrowedAt = pooled.getLastBorrowTime();
+                    if (now - borrowedAt < thresholdMillis || pooled.getState() != PooledObjectState.ALLOCATED) {
+                        continue;
+                    }
+                    count++;
+                    String id = System.identityHashCode(pooled.getObject()) + "@" + borrowedAt;
+                    current.add(id);
+                    if (!reported.contains(id)) {
+                        leaked.increment();
+                        StringWriter stack = new StringWriter();
+                        pooled.printStackTrace(new PrintWriter(stack));
+                        log.warn("redis connection {} borrowed {}ms ago and not returned, borrowed at:\n{}",
+                                pooled.getObject(), now - borrowedAt,
+                                stack.getBuffer().length() == 0 ? "(no stack trace)" : stack);
+                    }
+                }
+            }
+            reported = current;
+            held = count;
+        } catch (RuntimeException e) {
+            log.warn("cannot scan redis pools for leaks", e);
+        }
+    }
+
+    /**
+     * 连接池中的所有连接。listAllObjects不包含状态，借出和归还在同一毫秒时无法按时间区分，通过反射读取
+     */
+    @SuppressWarnings("unchecked") // allObjects声明为Map<IdentityWrapper<T>, PooledObject<T>>
+    private static Collection<PooledObject<?>> allObjects(GenericObjectPool<?> pool) {
+        try {
+            return ((Map<?, PooledObject<?>>) ALL_OBJECTS.get(pool)).values();
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 累计报告过的泄漏连接数
+     *
+     * @return
+     */
+    long getLeakedCount() {
+        return leaked.sum();
+    }
+
+    /**
+     * 最近一次扫描时超过阈值未归还的连接数
+     *
+     * @return
+     */
+    long getHeldCount() {
+        return held;
+    }
+
+    @Override
+    public void close() {
+        scanner.shutdownNow();
+    }
+}
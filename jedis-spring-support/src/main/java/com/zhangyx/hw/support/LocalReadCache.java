@@ -0,0 +1,121 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的读结果缓存: 规范化的key -> (子项 -> 值)，近端缓存和热点key本地缓存共用
+ * <p>
+ * 只缓存redis的真实回复: null和降级返回的空值不缓存；
+ * 读之前记录key所在分段的失效版本号，读到写之间该分段发生过失效时放弃写入，避免并发写入后留下旧值
+ */
+final class LocalReadCache {
+    /**
+     * 失效版本号的分段数
+     */
+    private static final int STRIPES = 1024;
+
+    private final Cache<String, ConcurrentMap<Object, Object>> cache;
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize   最多缓存的key数
+     * @param ttlMillis 写入后最长存活时间
+     */
+    LocalReadCache(long maxSize, long ttlMillis) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .removalListener((RemovalNotification<String, ConcurrentMap<Object, Object>> n) -> {
+                    if (n.wasEvicted()) {
+                        evictions.increment();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * 先查本地，未命中时执行命令并缓存结果
+     *
+     * @param key    规范化后的key
+     * @param subKey 同一个key下的子项，见{@link NearCache#subKey}
+     * @param method
+     * @param args
+     * @param next
+     * @return
+     * @throws Throwable
+     */
+    Object read(String key, Object subKey, Method method, Object[] args, CommandInvoker next) throws Throwable {
+        ConcurrentMap<Object, Object> entries = cache.getIfPresent(key);
+        if (entries != null) {
+            Object value = entries.get(subKey);
+            if (value != null) {
+                hits.increment();
+                return ResultCopies.copy(value);
+            }
+        }
+        misses.increment();
+
+        int stripe = stripe(key);
+        long generation = generations.get(stripe);
+        Object value = next.invoke(method, args);
+        if (value != null && !ConfigruableProvider.isFallback(value) && generations.get(stripe) == generation) {
+            cache.asMap().computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(subKey, ResultCopies.copy(value));
+            if (generations.get(stripe) != generation) {
+                invalidate(key);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * 使key失效，正在进行的读不会再写入
+     *
+     * @param key 规范化后的key
+     */
+    void invalidate(String key) {
+        generations.incrementAndGet(stripe(key));
+        cache.invalidate(key);
+    }
+
+    /**
+     * 全部失效，所有正在进行的读都不再写入
+     */
+    void invalidateAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        cache.invalidateAll();
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % STRIPES;
+    }
+}
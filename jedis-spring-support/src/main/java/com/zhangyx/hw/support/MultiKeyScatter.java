@@ -0,0 +1,233 @@
+package com.zhangyx.hw.support;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+/**
+ * 多key命令的拆分与合并
+ * <p>
+ * mget/mset/del/exists的key按节点分组，每个节点一个管道并行发送，再按调用方传入的顺序合并结果。
+ * 子类决定key属于哪个节点以及节点内如何再拆分(集群按slot，分片不再拆分)。
+ *
+ * @param <G> 节点
+ */
+abstract class MultiKeyScatter<G> {
+
+    enum Command {
+        MGET, MSET, DEL, EXISTS
+    }
+
+    private final ExecutorService executor;
+    private final long timeoutMillis;
+
+    MultiKeyScatter(ExecutorService executor, long timeoutMillis) {
+        this.executor = executor;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 可拆分的多key命令，只接受单个String[]或byte[][]参数的重载
+     *
+     * @param method
+     * @return
+     */
+    static Command command(Method method) {
+        Class<?>[] types = method.getParameterTypes();
+        if (types.length != 1 || (types[0] != String[].class && types[0] != byte[][].class)) {
+            return null;
+        }
+        switch (method.getName()) {
+            case "mget":
+                return Command.MGET;
+            case "mset":
+                return Command.MSET;
+            case "del":
+                return Command.DEL;
+            case "exists":
+                return Command.EXISTS;
+            default:
+                return null;
+        }
+    }
+
+    boolean supports(Method method) {
+        return command(method) != null;
+    }
+
+    /**
+     * 节点内的子分组，同一子分组的key可以放进同一条命令
+     *
+     * @param key String或byte[]
+     * @return
+     */
+    protected abstract int partition(Object key);
+
+    /**
+     * 在节点上执行一组批次，结果写回每个批次
+     *
+     * @param node
+     * @param command
+     * @param batches
+     * @throws Exception
+     */
+    protected abstract void execute(G node, Command command, List<Batch> batches) throws Exception;
+
+    /**
+     * 执行多key命令
+     *
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    abstract Object execute(Method method, Object[] args) throws Throwable;
+
+    /**
+     * 按router把key分到各节点，并行执行后合并
+     *
+     * @param router  key所在的节点
+     * @param method
+     * @param args
+     * @param abort   失败时打断仍在执行的节点，之后等它们结束；为null时各节点自己管理连接，不等待
+     * @return
+     * @throws Throwable
+     */
+    protected Object scatter(Function<Object, G> router, Method method, Object[] args, Runnable abort)
+            throws Throwable {
+        Command command = command(method);
+        Object[] params = (Object[]) args[0];
+        int step = command == Command.MSET ? 2 : 1;
+
+        Map<G, Map<Integer, List<Integer>>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < params.length; i += step) {
+            groups.computeIfAbsent(router.apply(params[i]), k -> new LinkedHashMap<>())
+                    .computeIfAbsent(partition(params[i]), k -> new ArrayList<>())
+                    .add(i);
+        }
+
+        List<Map.Entry<G, List<Batch>>> work = new ArrayList<>(groups.size());
+        for (Map.Entry<G, Map<Integer, List<Integer>>> group : groups.entrySet()) {
+            List<Batch> batches = new ArrayList<>(group.getValue().size());
+            for (List<Integer> positions : group.getValue().values()) {
+                batches.add(new Batch(params, positions, step));
+            }
+            work.add(new AbstractMap.SimpleImmutableEntry<>(group.getKey(), batches));
+        }
+
+        // 第一个节点在调用线程执行，其余节点并行
+        List<Callable<Object>> actions = new ArrayList<>(work.size());
+        for (Map.Entry<G, List<Batch>> entry : work) {
+            actions.add(() -> {
+                execute(entry.getKey(), command, entry.getValue());
+                return null;
+            });
+        }
+        NodeTasks.run(executor, actions, timeoutMillis, abort);
+        return merge(command, params.length, work);
+    }
+
+    private Object merge(Command command, int size, List<Map.Entry<G, List<Batch>>> work) {
+        switch (command) {
+            case MGET: {
+                Object[] values = new Object[size];
+                for (Map.Entry<G, List<Batch>> entry : work) {
+                    for (Batch batch : entry.getValue()) {
+                        List<?> result = (List<?>) batch.result;
+                        for (int i = 0; i < batch.positions.size(); i++) {
+                            values[batch.positions.get(i)] = result.get(i);
+                        }
+                    }
+                }
+                return new ArrayList<>(Arrays.asList(values));
+            }
+            case MSET:
+                return "OK";
+            default: {
+                long total = 0;
+                for (Map.Entry<G, List<Batch>> entry : work) {
+                    for (Batch batch : entry.getValue()) {
+                        total += (Long) batch.result;
+                    }
+                }
+                return total;
+            }
+        }
+    }
+
+    /**
+     * 在一个连接上用管道发送一组批次
+     * <p>
+     * 某个批次出错时其余批次的结果照常写回，出错批次的结果保持null，全部读完后抛出第一个错误
+     *
+     * @param jedis
+     * @param command
+     * @param batches
+     */
+    static void pipeline(Jedis jedis, Command command, List<Batch> batches) {
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<?>> responses = new ArrayList<>(batches.size());
+        for (Batch batch : batches) {
+            responses.add(send(pipeline, command, batch.params));
+        }
+        pipeline.sync();
+        RuntimeException error = null;
+        for (int i = 0; i < batches.size(); i++) {
+            try {
+                batches.get(i).result = responses.get(i).get();
+            } catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private static Response<?> send(Pipeline pipeline, Command command, Object[] params) {
+        boolean binary = params instanceof byte[][];
+        switch (command) {
+            case MGET:
+                return binary ? pipeline.mget((byte[][]) params) : pipeline.mget((String[]) params);
+            case MSET:
+                return binary ? pipeline.mset((byte[][]) params) : pipeline.mset((String[]) params);
+            case DEL:
+                return binary ? pipeline.del((byte[][]) params) : pipeline.del((String[]) params);
+            default:
+                return binary ? pipeline.exists((byte[][]) params) : pipeline.exists((String[]) params);
+        }
+    }
+
+    /**
+     * 同一条命令内的key，params与调用方参数类型一致(String[]或byte[][])
+     */
+    static final class Batch {
+        final List<Integer> positions;
+        final Object[] params;
+        Object result;
+
+        private Batch(Object[] all, List<Integer> positions, int step) {
+            this.positions = positions;
+            this.params = (Object[]) Array.newInstance(all.getClass().getComponentType(), positions.size() * step);
+            for (int i = 0; i < positions.size(); i++) {
+                for (int j = 0; j < step; j++) {
+                    params[i * step + j] = all[positions.get(i) + j];
+                }
+            }
+        }
+    }
+}
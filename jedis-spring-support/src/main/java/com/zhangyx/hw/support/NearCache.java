@@ -0,0 +1,301 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.configuration.Configuration;
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.util.SafeEncoder;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * 进程内近端缓存
+ * <p>
+ * 缓存get/hget/hgetAll(含byte[]版本)的非空结果，按key数量和写入后存活时间淘汰；
+ * 出错或熔断时的降级返回值不缓存，见{@link LocalReadCache}。
+ * 经过同一代理的写命令会使对应key失效，并通过发布订阅通知其他JVM失效。
+ * <p>
+ * 配置项:
+ * <pre>
+ * nearCache.enable=false
+ * nearCache.maxSize=10000        最多缓存的key数
+ * nearCache.ttlMillis=1000       写入后最长存活时间
+ * nearCache.channel=near-cache-invalidate   失效通知频道，为空时不订阅
+ * </pre>
+ * 通知消息为16位十六进制的实例标识加上key的原始字节
+ * 脚本(eval)等无法识别key的写入只能依赖TTL兜底
+ */
+@Slf4j
+class NearCache implements Closeable {
+    private static final int GET = 0;
+    private static final int HGET = 1;
+    private static final int HGETALL = 2;
+
+    private final LocalReadCache cache;
+
+    /**
+     * 通知消息 = 16位实例标识 + key，收到自己发出的通知时跳过
+     */
+    private final String origin = String.format("%016x", ThreadLocalRandom.current().nextLong());
+    private final byte[] channel;
+    private final BiConsumer<byte[], byte[]> publisher;
+    private final ExecutorService publishExecutor;
+    private final Thread subscriberThread;
+    private volatile BinaryJedisPubSub subscription;
+    private volatile boolean running = true;
+
+    /**
+     * @param config
+     * @param name       线程名后缀
+     * @param publisher  (channel, message) 发布失效通知
+     * @param subscriber (listener, channel) 阻塞订阅失效通知
+     */
+    NearCache(Configuration config, String name, BiConsumer<byte[], byte[]> publisher,
+              BiConsumer<BinaryJedisPubSub, byte[]> subscriber) {
+        this.cache = new LocalReadCache(config.getLong("nearCache.maxSize", 10000),
+                config.getLong("nearCache.ttlMillis", 1000));
+
+        String channelName = config.getString("nearCache.channel", "near-cache-invalidate");
+        if (channelName == null || channelName.isEmpty()) {
+            this.channel = null;
+            this.publisher = null;
+            this.publishExecutor = null;
+            this.subscriberThread = null;
+            return;
+        }
+        this.channel = SafeEncoder.encode(channelName);
+        this.publisher = publisher;
+        this.publishExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(10000),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("redis-near-cache-publish-" + name).build(),
+                (r, executor) -> log.warn("near cache invalidation queue is full, drop one message"));
+        this.subscriberThread = new Thread(() -> subscribeLoop(subscriber), "redis-near-cache-subscribe-" + name);
+        subscriberThread.setDaemon(true);
+        subscriberThread.start();
+    }
+
+    /**
+     * 读命令先查本地，写命令执行后失效对应key
+     *
+     * @param method
+     * @param args
+     * @param next
+     * @return
+     * @throws Throwable
+     */
+    Object execute(Method method, Object[] args, CommandInvoker next) throws Throwable {
+        int kind = kind(method);
+        if (kind >= 0) {
+            return read(kind, method, args, next);
+        }
+        if (CommandTypes.isReadOnly(method)) {
+            return next.invoke(method, args);
+        }
+        Object result = next.invoke(method, args);
+        for (Object key : CommandTypes.writtenKeys(method, args)) {
+            invalidate(canonical(key), true);
+        }
+        return result;
+    }
+
+    /**
+     * 没有经过{@link #execute}的写命令(如批量执行)完成后，失效对应key并通知其他JVM
+     *
+     * @param method
+     * @param args
+     */
+    void written(Method method, Object[] args) {
+        if (!CommandTypes.isReadOnly(method)) {
+            for (Object key : CommandTypes.writtenKeys(method, args)) {
+                invalidate(canonical(key), true);
+            }
+        }
+    }
+
+    private Object read(int kind, Method method, Object[] args, CommandInvoker next) throws Throwable {
+        return cache.read(canonical(args[0]), subKey(kind, args), method, args, next);
+    }
+
+    /**
+     * 使本地key失效
+     *
+     * @param key     规范化后的key
+     * @param publish 是否通知其他JVM
+     */
+    private void invalidate(String key, boolean publish) {
+        cache.invalidate(key);
+        if (publish && publishExecutor != null) {
+            byte[] message = (origin + key).getBytes(StandardCharsets.ISO_8859_1);
+            publishExecutor.execute(() -> {
+                try {
+                    publisher.accept(channel, message);
+                } catch (Exception e) {
+                    log.warn("cannot publish near cache invalidation", e);
+                }
+            });
+        }
+    }
+
+    private void subscribeLoop(BiConsumer<BinaryJedisPubSub, byte[]> subscriber) {
+        while (running) {
+            BinaryJedisPubSub pubSub = new BinaryJedisPubSub() {
+                @Override
+                public void onMessage(byte[] channel, byte[] message) {
+                    String text = new String(message, StandardCharsets.ISO_8859_1);
+                    if (text.length() >= origin.length() && !text.startsWith(origin)) {
+                        invalidate(text.substring(origin.length()), false);
+                    }
+                }
+
+                @Override
+                public void onSubscribe(byte[] channel, int subscribedChannels) {
+                    // 断线期间可能错过通知，重新订阅后清空
+                    cache.invalidateAll();
+                }
+            };
+            subscription = pubSub;
+            try {
+                subscriber.accept(pubSub, channel);
+            } catch (Exception e) {
+                if (running) {
+                    log.warn("near cache subscription lost, retry in 1s", e);
+                    cache.invalidateAll();
+                    sleep(1000);
+                }
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 订阅期间占用的连接数
+     *
+     * @return
+     */
+    int getHeldConnections() {
+        BinaryJedisPubSub pubSub = subscription;
+        return pubSub != null && pubSub.isSubscribed() ? 1 : 0;
+    }
+
+    long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        BinaryJedisPubSub pubSub = subscription;
+        if (pubSub != null && pubSub.isSubscribed()) {
+            try {
+                pubSub.unsubscribe();
+            } catch (Exception e) {
+                log.warn("cannot unsubscribe near cache channel", e);
+            }
+        }
+        if (publishExecutor != null) {
+            publishExecutor.shutdown();
+        }
+        cache.invalidateAll();
+    }
+
+    /**
+     * 可缓存的读命令
+     *
+     * @param method
+     * @return GET/HGET/HGETALL，不可缓存时返回-1
+     */
+    static int kind(Method method) {
+        int params = method.getParameterCount();
+        switch (method.getName()) {
+            case "get":
+                return params == 1 ? GET : -1;
+            case "hget":
+                return params == 2 ? HGET : -1;
+            case "hgetAll":
+                return params == 1 ? HGETALL : -1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * 同一个key下的子项，String与byte[]版本分开缓存
+     */
+    static Object subKey(int kind, Object[] args) {
+        boolean binary = args[0] instanceof byte[];
+        if (kind == HGET) {
+            return new Field(binary, canonical(args[1]));
+        }
+        return kind * 2 + (binary ? 1 : 0);
+    }
+
+    /**
+     * 把String和byte[]形式的key统一成按ISO-8859-1解码的字节串，ASCII的String直接使用
+     *
+     * @param key
+     * @return
+     */
+    static String canonical(Object key) {
+        if (key instanceof byte[]) {
+            return new String((byte[]) key, StandardCharsets.ISO_8859_1);
+        }
+        String s = (String) key;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return new String(SafeEncoder.encode(s), StandardCharsets.ISO_8859_1);
+            }
+        }
+        return s;
+    }
+
+    private static final class Field {
+        private final boolean binary;
+        private final String name;
+
+        private Field(boolean binary, String name) {
+            this.binary = binary;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Field)) {
+                return false;
+            }
+            Field other = (Field) o;
+            return binary == other.binary && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(binary, name);
+        }
+    }
+}
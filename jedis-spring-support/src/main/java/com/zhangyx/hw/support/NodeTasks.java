@@ -0,0 +1,127 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按节点并行执行一组任务: 第一个在调用线程执行，其余提交到线程池
+ * <p>
+ * 任一任务失败、等待超时或被中断时，还没开始的任务不再执行；
+ * 给了abort时先用它打断正在使用的连接，再等已经开始的任务结束，保证返回后没有线程还在使用调用方借出的连接
+ */
+@Slf4j
+final class NodeTasks {
+
+    private NodeTasks() {
+    }
+
+    /**
+     * @param executor
+     * @param actions       每个节点一个任务
+     * @param timeoutMillis 等待并行任务的总时间，不大于0时一直等待
+     * @param abort         失败时打断仍在执行的任务，为null时只取消不等待
+     * @throws Exception 第一个失败任务的异常，或者超时/中断
+     */
+    static void run(ExecutorService executor, List<? extends Callable<?>> actions, long timeoutMillis,
+                    Runnable abort) throws Exception {
+        List<Task> tasks = new ArrayList<>(Math.max(0, actions.size() - 1));
+        try {
+            for (int i = 1; i < actions.size(); i++) {
+                Task task = new Task(actions.get(i));
+                tasks.add(task);
+                task.future = executor.submit(task);
+            }
+            if (!actions.isEmpty()) {
+                actions.get(0).call();
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            for (Task task : tasks) {
+                if (timeoutMillis > 0) {
+                    task.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } else {
+                    task.future.get();
+                }
+            }
+        } catch (ExecutionException e) {
+            stop(tasks, abort);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        } catch (Exception | Error e) {
+            stop(tasks, abort);
+            throw e;
+        }
+    }
+
+    private static void stop(List<Task> tasks, Runnable abort) {
+        List<Task> running = new ArrayList<>();
+        for (Task task : tasks) {
+            if (task.claimed.compareAndSet(false, true)) {
+                // 还在队列里，不会再执行
+                if (task.future != null) {
+                    task.future.cancel(false);
+                }
+            } else if (task.done.getCount() > 0) {
+                running.add(task);
+            }
+        }
+        if (running.isEmpty()) {
+            return;
+        }
+        if (abort == null) {
+            for (Task task : running) {
+                task.future.cancel(true);
+            }
+            return;
+        }
+        try {
+            abort.run();
+        } catch (RuntimeException e) {
+            log.warn("cannot abort running node tasks", e);
+        }
+        for (Task task : running) {
+            Uninterruptibles.awaitUninterruptibly(task.done);
+        }
+    }
+
+    private static final class Task implements Callable<Object> {
+        private final Callable<?> action;
+        /**
+         * 开始执行或被stop取消，二者只有一个成功
+         */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Future<?> future;
+
+        private Task(Callable<?> action) {
+            this.action = action;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            if (!claimed.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                return action.call();
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.collect.ImmutableSet;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.configuration.Configuration;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 自动管道化
+ * <p>
+ * 并发调用方的命令先进入队列，由少量刷新线程各自占用一个连接，把队列中的命令合并成一个{@link Pipeline}发送，
+ * 再把结果逐个交还给等待中的调用方。对调用方来说接口仍是同步的。
+ * <p>
+ * 配置项:
+ * <pre>
+ * pipeline.enable=false          是否开启
+ * pipeline.maxBatch=128          单次管道最多命令数
+ * pipeline.maxDelayMicros=0      凑批最多等待的微秒数，0表示只合并已在队列中的命令
+ * pipeline.connections=2         刷新线程数(即同时占用的连接数)
+ * pipeline.queueSize=4096        等待队列长度
+ * </pre>
+ */
+@Slf4j
+class PipelineBatcher implements Closeable {
+    /**
+     * 阻塞命令放进管道会卡住整批，直接走连接池
+     */
+    private static final Set<String> BLOCKING = ImmutableSet.of("blpop", "brpop", "brpoplpush");
+
+    private final JedisPool pool;
+    private final CommandDispatcher dispatcher;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final long timeoutMillis;
+    private final BlockingQueue<PendingCommand> queue;
+    private final List<Thread> flushers;
+    private volatile boolean running = true;
+
+    PipelineBatcher(JedisPool pool, Class<?> commandType, Configuration config, String name) {
+        this.pool = pool;
+        this.dispatcher = CommandDispatcher.of(commandType, Pipeline.class);
+        this.maxBatch = Math.max(1, config.getInt("pipeline.maxBatch", 128));
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(config.getLong("pipeline.maxDelayMicros", 0));
+        this.timeoutMillis = config.getInt("pool.maxWaitMillis", 3000) + config.getInt("redis.timeout", 5000);
+        this.queue = new LinkedBlockingQueue<>(config.getInt("pipeline.queueSize", 4096));
+
+        int connections = Math.max(1, config.getInt("pipeline.connections", 2));
+        this.flushers = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            Thread thread = new Thread(this::flushLoop, "redis-pipeline-" + name + "-" + i);
+            thread.setDaemon(true);
+            flushers.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * 命令能否进入管道
+     *
+     * @param method
+     * @return
+     */
+    boolean supports(Method method) {
+        return dispatcher.supports(method) && !BLOCKING.contains(method.getName());
+    }
+
+    /**
+     * 排队执行并同步等待结果
+     *
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    Object execute(Method method, Object[] args) throws Throwable {
+        if (!running) {
+            throw new JedisException("pipeline is closed");
+        }
+        PendingCommand command = new PendingCommand(method, args);
+        if (!queue.offer(command, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new JedisException("pipeline queue is full");
+        }
+        if (!running && queue.remove(command)) {
+            throw new JedisException("pipeline is closed");
+        }
+        try {
+            return command.future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } catch (TimeoutException e) {
+            throw new JedisException("pipeline response timeout after " + timeoutMillis + "ms", e);
+        }
+    }
+
+    /**
+     * 排队执行，不等待结果；队列已满或已关闭时返回失败的future
+     * <p>
+     * future在刷新线程上完成，调用方不应在回调里做耗时操作
+     *
+     * @param method
+     * @param args
+     * @return
+     */
+    CompletableFuture<Object> submit(Method method, Object[] args) {
+        PendingCommand command = new PendingCommand(method, args);
+        if (!running) {
+            command.future.completeExceptionally(new JedisException("pipeline is closed"));
+        } else if (!queue.offer(command)) {
+            command.future.completeExceptionally(new JedisException("pipeline queue is full"));
+        } else if (!running && queue.remove(command)) {
+            command.future.completeExceptionally(new JedisException("pipeline is closed"));
+        }
+        return command.future;
+    }
+
+    private void flushLoop() {
+        List<PendingCommand> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingCommand first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                if (maxDelayNanos > 0) {
+                    long deadline = System.nanoTime() + maxDelayNanos;
+                    while (batch.size() < maxBatch) {
+                        long remaining = deadline - System.nanoTime();
+                        PendingCommand next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(batch, e);
+                return;
+            } catch (Throwable e) {
+                fail(batch, e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingCommand> batch) {
+        List<Response<?>> responses = new ArrayList<>(batch.size());
+        try (Jedis jedis = pool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (PendingCommand command : batch) {
+                try {
+                    responses.add((Response<?>) dispatcher.invoke(pipeline, command.method, command.args));
+                } catch (Throwable e) {
+                    // 参数错误等只影响当前命令
+                    command.future.completeExceptionally(e);
+                    responses.add(null);
+                }
+            }
+            pipeline.sync();
+        } catch (Throwable e) {
+            log.error("cannot flush pipeline of {} commands", batch.size(), e);
+            fail(batch, e);
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Response<?> response = responses.get(i);
+            if (response == null) {
+                continue;
+            }
+            CompletableFuture<Object> future = batch.get(i).future;
+            try {
+                future.complete(response.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void fail(List<PendingCommand> batch, Throwable e) {
+        for (PendingCommand command : batch) {
+            command.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 停止接收新命令，刷新线程处理完队列后退出
+     * <p>
+     * 与close并发入队的命令: 入队后发现已关闭时自己从队列中取回并失败；没取回说明已被刷新线程或这里的drainTo取走，由取走的一方完成
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (Thread thread : flushers) {
+            try {
+                thread.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        List<PendingCommand> left = new ArrayList<>();
+        queue.drainTo(left);
+        fail(left, new JedisException("pipeline is closed"));
+    }
+
+    private static final class PendingCommand {
+        private final Method method;
+        private final Object[] args;
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        private PendingCommand(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import redis.clients.util.Pool;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 连接池大小自适应
+ * <p>
+ * 后台线程定期检查当前后端的每个连接池(集群为每个节点)，直接修改GenericObjectPool的maxTotal/maxIdle，不重建连接池:
+ * <ul>
+ * <li>有线程在等连接、平均借连接等待达到targetWaitMillis或使用率达到growUtilization时扩大1.5倍，
+ * 并补充等待线程所需的连接(只改上限不会唤醒已经在等待的线程)</li>
+ * <li>使用率连续shrinkChecks次低于shrinkUtilization且没有等待时缩小到0.8倍，多出的空闲连接归还时关闭</li>
+ * <li>连接平均占用时间超过历史基线latencyFactor倍时认为服务端已饱和，不再扩大，避免加剧排队</li>
+ * </ul>
+ * 配置项(只在启动时读取):
+ * <pre>
+ * pool.adaptive.enable=false
+ * pool.adaptive.intervalMillis=1000       检查间隔
+ * pool.adaptive.minActive=pool.minIdle    maxTotal下限
+ * pool.adaptive.maxActive=pool.maxActive*2   maxTotal上限
+ * pool.adaptive.targetWaitMillis=5        平均借连接等待的目标值
+ * pool.adaptive.growUtilization=0.8
+ * pool.adaptive.shrinkUtilization=0.3
+ * pool.adaptive.shrinkChecks=5
+ * pool.adaptive.latencyFactor=3
+ * </pre>
+ * maxIdle按配置中maxIdle/maxActive的比例随maxTotal调整
+ */
+@Slf4j
+class PoolSizer implements Closeable {
+    private static final Field INTERNAL_POOL;
+
+    static {
+        try {
+            INTERNAL_POOL = Pool.class.getDeclaredField("internalPool");
+            INTERNAL_POOL.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Supplier<RedisBackend> backend;
+    private final int minActive;
+    private final int maxActive;
+    private final double idleRatio;
+    private final long targetWaitMillis;
+    private final double growUtilization;
+    private final double shrinkUtilization;
+    private final int shrinkChecks;
+    private final double latencyFactor;
+    private final ScheduledExecutorService checker;
+    /**
+     * 只在检查线程上访问，连接池被替换后随下一次检查移除
+     */
+    private Map<GenericObjectPool<?>, State> states = new IdentityHashMap<>();
+    private final LongAdder grown = new LongAdder();
+    private final LongAdder shrunk = new LongAdder();
+
+    PoolSizer(Supplier<RedisBackend> backend, Configuration config, String name) {
+        this.backend = backend;
+        int configuredMax = Math.max(1, config.getInt("pool.maxActive", 100));
+        this.minActive = Math.max(1, config.getInt("pool.adaptive.minActive", config.getInt("pool.minIdle", 5)));
+        this.maxActive = Math.max(minActive, config.getInt("pool.adaptive.maxActive", configuredMax * 2));
+        this.idleRatio = Math.min(1.0, (double) config.getInt("pool.maxIdle", 25) / configuredMax);
+        this.targetWaitMillis = config.getLong("pool.adaptive.targetWaitMillis", 5);
+        this.growUtilization = config.getDouble("pool.adaptive.growUtilization", 0.8);
+        this.shrinkUtilization = config.getDouble("pool.adaptive.shrinkUtilization", 0.3);
+        this.shrinkChecks = Math.max(1, config.getInt("pool.adaptive.shrinkChecks", 5));
+        this.latencyFactor = config.getDouble("pool.adaptive.latencyFactor", 3);
+        this.checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("redis-pool-sizer-" + name).build());
+        long interval = Math.max(10, config.getLong("pool.adaptive.intervalMillis", 1000));
+        checker.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        try {
+            Map<GenericObjectPool<?>, State> next = new IdentityHashMap<>();
+            for (Pool<?> pool : backend.get().pools()) {
+                GenericObjectPool<?> internal = internal(pool);
+                if (internal != null && !internal.isClosed()) {
+                    State state = states.get(internal);
+                    next.put(internal, state != null ? state : new State());
+                }
+            }
+            states = next;
+            next.forEach(this::adjust);
+        } catch (RuntimeException e) {
+            log.warn("cannot adjust redis pool size", e);
+        }
+    }
+
+    private void adjust(GenericObjectPool<?> pool, State state) {
+        int max = pool.getMaxTotal();
+        int active = pool.getNumActive();
+        int waiters = pool.getNumWaiters();
+        // 平均等待是最近100次借出的统计，两次检查之间没有借出时不再参考
+        long borrowed = pool.getBorrowedCount();
+        long meanWait = borrowed > state.borrowed ? pool.getMeanBorrowWaitTimeMillis() : 0;
+        state.borrowed = borrowed;
+        double utilization = max <= 0 ? 0 : (double) active / max;
+
+        long activeTime = pool.getMeanActiveTimeMillis();
+        boolean saturated = state.baseline > 0 && activeTime > state.baseline * latencyFactor;
+        if (!saturated && activeTime > 0) {
+            // 基线取较低的占用时间，缓慢上浮以适应正常的变化
+            state.baseline = state.baseline <= 0 ? activeTime : Math.min(activeTime, state.baseline * 1.05);
+        }
+
+        if (waiters > 0 || meanWait >= targetWaitMillis || utilization >= growUtilization) {
+            state.idleChecks = 0;
+            if (saturated || max >= maxActive) {
+                return;
+            }
+            int target = Math.min(maxActive, Math.max(max + 1, (int) Math.ceil(max * 1.5)));
+            resize(pool, target);
+            grown.increment();
+            log.info("grow redis pool from {} to {}: active={}, waiters={}, meanWait={}ms", max, target, active, waiters, meanWait);
+            // 新上限不会唤醒已在等待的线程，补充空闲连接交给它们
+            for (int i = 0; i < Math.min(waiters, target - max); i++) {
+                try {
+                    pool.addObject();
+                } catch (Exception e) {
+                    log.warn("cannot add redis connection after growing pool", e);
+                    break;
+                }
+            }
+        } else if (utilization <= shrinkUtilization && max > minActive) {
+            if (++state.idleChecks < shrinkChecks) {
+                return;
+            }
+            state.idleChecks = 0;
+            int target = Math.max(minActive, Math.max(active * 2, (int) (max * 0.8)));
+            if (target < max) {
+                resize(pool, target);
+                shrunk.increment();
+                log.info("shrink redis pool from {} to {}: active={}", max, target, active);
+            }
+        } else {
+            state.idleChecks = 0;
+        }
+    }
+
+    private void resize(GenericObjectPool<?> pool, int maxTotal) {
+        int maxIdle = Math.max(1, (int) Math.round(maxTotal * idleRatio));
+        pool.setMaxTotal(maxTotal);
+        pool.setMaxIdle(maxIdle);
+        if (pool.getMinIdle() > maxIdle) {
+            pool.setMinIdle(maxIdle);
+        }
+    }
+
+    /**
+     * Jedis的Pool没有公开内部的GenericObjectPool，通过反射读取
+     */
+    static GenericObjectPool<?> internal(Pool<?> pool) {
+        try {
+            return (GenericObjectPool<?>) INTERNAL_POOL.get(pool);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    long getGrowCount() {
+        return grown.sum();
+    }
+
+    long getShrinkCount() {
+        return shrunk.sum();
+    }
+
+    /**
+     * 当前后端所有连接池的maxTotal之和
+     *
+     * @return
+     */
+    long getMaxTotal() {
+        long total = 0;
+        for (Pool<?> pool : backend.get().pools()) {
+            GenericObjectPool<?> internal = internal(pool);
+            if (internal != null) {
+                total += internal.getMaxTotal();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        checker.shutdownNow();
+    }
+
+    private static final class State {
+        private double baseline;
+        private int idleChecks;
+        private long borrowed;
+    }
+}
@@ -0,0 +1,293 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.collect.ImmutableList;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPool;
+import redis.clients.util.Pool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一份配置对应的全部后端组件
+ * <p>
+ * 配置加载或热加载时整体创建，通过一次volatile写替换；代理每次调用只读取一次，保证同一次调用内使用的是同一套后端
+ */
+@Slf4j
+@Getter
+@Builder
+final class RedisBackend implements Closeable {
+    static final RedisBackend EMPTY = RedisBackend.builder().build();
+
+    private final JedisPool pool;
+    private final ShardedJedisPool shardedPool;
+    /**
+     * 只用于按key定位分片，不发送命令，与shardedPool使用同一组分片
+     */
+    private final ShardedJedis shardLocator;
+    /**
+     * 分片定位使用的一致性哈希环，重载时作为新后端双读的旧位置
+     */
+    private final ConsistentHashRing shardRing;
+    /**
+     * 分片变更后的双读，shard.dualReadMillis大于0且由分片配置重载而来时创建
+     */
+    private final ShardMigration shardMigration;
+    private final JedisCluster jedisCluster;
+    /**
+     * 单节点连接池的自动管道化，pipeline.enable开启时创建
+     */
+    private final PipelineBatcher pipelineBatcher;
+    /**
+     * 集群slot到节点的映射，供拆分命令和监控使用
+     */
+    private final ClusterTopology clusterTopology;
+    /**
+     * 集群读写分离，cluster.readFrom不是master时创建
+     */
+    private final ClusterReadRouter clusterReadRouter;
+    /**
+     * 集群模式下多key命令的拆分执行
+     */
+    private final ClusterMultiKeyScatter clusterScatter;
+    /**
+     * 分片模式下多key命令的拆分执行
+     */
+    private final ShardedMultiKeyScatter shardedScatter;
+    /**
+     * 显式批量执行，后端启动时总是创建
+     */
+    private final CommandBatch commandBatch;
+    /**
+     * 进程内近端缓存，nearCache.enable开启时创建
+     */
+    private final NearCache nearCache;
+    /**
+     * 热点key探测和本地提升，hotKey.enable开启时创建
+     */
+    private final HotKeyDetector hotKeyDetector;
+    /**
+     * 相同读请求合并，coalesce.enable开启时创建
+     */
+    private final SingleFlight singleFlight;
+    /**
+     * 计数命令的写后合并，writeBehind.enable开启时创建
+     */
+    private final WriteBehindBuffer writeBehind;
+    /**
+     * 连接池/分片到 host:port/db 的映射，监控埋点时不再拼接字符串
+     */
+    private final Map<Object, String> nodeNames;
+
+    /**
+     * 连接池或分片对应的 host:port/db
+     *
+     * @param node JedisPool或JedisShardInfo
+     * @return
+     */
+    String nodeName(Object node) {
+        String name = nodeNames == null ? null : nodeNames.get(node);
+        return name != null ? name : RedisMetrics.UNKNOWN_NODE;
+    }
+
+    /**
+     * key所在分片的 host:port/db，不借连接
+     *
+     * @param key String或byte[]
+     * @return
+     */
+    String shardNode(Object key) {
+        if (shardLocator == null || key == null) {
+            return RedisMetrics.UNKNOWN_NODE;
+        }
+        return nodeName(key instanceof byte[]
+                ? shardLocator.getShardInfo((byte[]) key) : shardLocator.getShardInfo((String) key));
+    }
+
+    /**
+     * 所有连接池，集群模式下为各节点的连接池、JedisCluster还不知道的节点的连接池和读写分离的副本连接池
+     *
+     * @return
+     */
+    Iterable<? extends Pool<?>> pools() {
+        ImmutableList.Builder<Pool<?>> pools = ImmutableList.builder();
+        if (jedisCluster != null) {
+            pools.addAll(jedisCluster.getClusterNodes().values());
+        }
+        if (clusterTopology != null) {
+            pools.addAll(clusterTopology.getExtraPools());
+        }
+        if (clusterReadRouter != null) {
+            pools.addAll(clusterReadRouter.getReplicaPools());
+        }
+        if (pool != null) {
+            pools.add(pool);
+        }
+        if (shardedPool != null) {
+            pools.add(shardedPool);
+        }
+        return pools.build();
+    }
+
+    /**
+     * 并行预热: 每个连接池预先建立minIdle个连接，分片模式下每个分片都建立连接
+     *
+     * @param minIdle
+     * @param executor      建立连接的线程
+     * @param timeoutMillis 整体超时
+     * @return 新建立的连接数
+     * @throws Exception 连接失败或超时
+     */
+    int warmUp(int minIdle, ExecutorService executor, long timeoutMillis) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        List<ShardedJedis> borrowed = new ArrayList<>();
+        AtomicBoolean abandoned = new AtomicBoolean();
+        boolean done = false;
+        try {
+            for (Pool<?> p : pools()) {
+                if (p == shardedPool) {
+                    // ShardedJedis创建时不连接，借出minIdle个后连接每个分片再归还
+                    for (int i = 0; i < minIdle; i++) {
+                        borrowed.add(shardedPool.getResource());
+                    }
+                    for (ShardedJedis sharded : borrowed) {
+                        for (Jedis shard : sharded.getAllShards()) {
+                            if (!shard.isConnected()) {
+                                futures.add(executor.submit(() -> {
+                                    synchronized (shard) {
+                                        if (!abandoned.get()) {
+                                            shard.connect();
+                                        }
+                                    }
+                                }));
+                            }
+                        }
+                    }
+                } else {
+                    for (int i = p.getNumIdle(); i < minIdle; i++) {
+                        futures.add(executor.submit(() -> p.addObjects(1)));
+                    }
+                }
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            for (Future<?> future : futures) {
+                try {
+                    future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+            done = true;
+            return futures.size();
+        } finally {
+            abandoned.set(!done);
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            for (ShardedJedis sharded : borrowed) {
+                if (!done) {
+                    // 超时时可能还有分片在连接，等它结束后断开，归还后下次使用时重新连接
+                    for (Jedis shard : sharded.getAllShards()) {
+                        synchronized (shard) {
+                            try {
+                                shard.close();
+                            } catch (RuntimeException e) {
+                                log.debug("cannot disconnect shard {} after warm up failure", shard, e);
+                            }
+                        }
+                    }
+                }
+                sharded.close();
+            }
+        }
+    }
+
+    /**
+     * 借出的连接数
+     *
+     * @return
+     */
+    int getNumActive() {
+        int active = 0;
+        for (Pool<?> p : pools()) {
+            active += Math.max(0, p.getNumActive());
+        }
+        return active;
+    }
+
+    /**
+     * 等借出的连接全部归还或超时，再刷新写后合并的计数，停止管道、近端缓存和热点探测，最后关闭连接池
+     * <p>
+     * 刚读到旧后端的调用还会经过这些组件，等待期间它们保持可用；近端缓存的订阅一直占用一个连接，不计入等待
+     *
+     * @param timeoutMillis
+     */
+    void drain(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int active;
+        do {
+            // 刚读到旧后端的调用可能还没借连接，至少等一轮
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            active = getNumActive() - reservedConnections();
+        } while (active > 0 && System.currentTimeMillis() < deadline);
+        close(writeBehind);
+        close(pipelineBatcher);
+        close(nearCache);
+        close(hotKeyDetector);
+        if (getNumActive() > 0) {
+            log.warn("close redis backend with {} connections still in use", getNumActive());
+        }
+        closePools();
+    }
+
+    private int reservedConnections() {
+        return nearCache != null ? nearCache.getHeldConnections() : 0;
+    }
+
+    @Override
+    public void close() {
+        close(writeBehind);
+        close(nearCache);
+        close(hotKeyDetector);
+        close(pipelineBatcher);
+        closePools();
+    }
+
+    private void closePools() {
+        close(pool);
+        close(shardedPool);
+        close(shardLocator);
+        close(clusterReadRouter);
+        close(clusterTopology);
+        close(jedisCluster);
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException | RuntimeException e) {
+                log.error("cannot close {}", c, e);
+            }
+        }
+    }
+}
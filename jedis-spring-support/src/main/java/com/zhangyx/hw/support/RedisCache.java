@@ -0,0 +1,290 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import redis.clients.util.SafeEncoder;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于代理的cache-aside读取：未命中时调用loader加载并写回redis
+ * <p>
+ * <ul>
+ * <li>同一个key在本JVM内同时只有一个loader在执行，其他线程等待它的结果</li>
+ * <li>开启distributedLock时，用 SET key:lock NX PX 让多个JVM中只有一个去加载，其他JVM等待值写入</li>
+ * <li>按XFetch算法在过期前随机提前刷新：越接近过期、加载越慢，提前刷新的概率越大，刷新在后台执行，调用方直接拿旧值</li>
+ * <li>loader返回null时写入空值标记，在negativeTtlSeconds内不再加载</li>
+ * </ul>
+ * redis中的值为 [过期时间(毫秒), 加载耗时(毫秒), 标记] 头部加上codec编码的数据，只能通过本类读写。
+ * redis出错时代理返回null，按未命中处理，直接调用loader；加锁出错或降级时也不等待，直接加载。
+ */
+@Slf4j
+public class RedisCache implements Closeable {
+    private static final int HEADER = 8 + 4 + 1;
+    private static final byte VALUE = 0;
+    private static final byte NEGATIVE = 1;
+    private static final String LOCK_SUFFIX = ":lock";
+
+    private final MergeJedisCmd redis;
+    private final ConcurrentMap<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor refresher;
+
+    /**
+     * 空值的缓存时间
+     */
+    @Getter
+    @Setter
+    private int negativeTtlSeconds = 60;
+    /**
+     * 提前刷新的激进程度，0表示不提前刷新，1为XFetch的推荐值
+     */
+    @Getter
+    @Setter
+    private double beta = 1.0;
+    /**
+     * 是否用redis锁保证多个JVM中只有一个加载
+     */
+    @Getter
+    @Setter
+    private boolean distributedLock = false;
+    /**
+     * 分布式锁的有效期，也是其他JVM等待值写入的最长时间
+     */
+    @Getter
+    @Setter
+    private long lockMillis = 3000;
+
+    /**
+     * @param redis JedisPoolFactoryBean或JedisClusterFactoryBean创建的代理
+     */
+    public RedisCache(MergeJedisCmd redis) {
+        this.redis = redis;
+        this.refresher = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(1000),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("redis-cache-refresh-%d").build());
+        refresher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 读取缓存，未命中时加载并写入
+     *
+     * @param key
+     * @param ttlSeconds 缓存时间
+     * @param loader     返回null表示数据不存在
+     * @param codec
+     * @param <V>
+     * @return loader的结果或缓存的值，数据不存在时返回null
+     * @throws UncheckedExecutionException loader抛出受检异常时
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V getOrLoad(String key, int ttlSeconds, Callable<? extends V> loader, RedisCodec<V> codec) {
+        byte[] raw = redis.get(SafeEncoder.encode(key));
+        if (raw != null && raw.length >= HEADER) {
+            ByteBuffer buffer = ByteBuffer.wrap(raw);
+            long expireAt = buffer.getLong();
+            int loadMillis = buffer.getInt();
+            byte flag = buffer.get();
+            if (shouldRefresh(expireAt, loadMillis)) {
+                refreshAsync(key, ttlSeconds, loader, codec);
+            }
+            if (flag == NEGATIVE) {
+                return null;
+            }
+            return codec.decode(raw, HEADER, raw.length - HEADER);
+        }
+        return (V) loadOnce(key, ttlSeconds, loader, codec, false);
+    }
+
+    /**
+     * 删除缓存，下次读取时重新加载
+     *
+     * @param key
+     */
+    public void invalidate(String key) {
+        redis.del(key);
+    }
+
+    /**
+     * XFetch: now - loadMillis * beta * ln(rand) >= expireAt 时提前刷新
+     */
+    private boolean shouldRefresh(long expireAt, int loadMillis) {
+        if (beta <= 0) {
+            return false;
+        }
+        double gap = -loadMillis * beta * Math.log(ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= expireAt;
+    }
+
+    private <V> void refreshAsync(String key, int ttlSeconds, Callable<? extends V> loader, RedisCodec<V> codec) {
+        if (loading.containsKey(key)) {
+            return;
+        }
+        try {
+            refresher.execute(() -> {
+                try {
+                    loadOnce(key, ttlSeconds, loader, codec, true);
+                } catch (RuntimeException e) {
+                    log.warn("cannot refresh cache {}", key, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 队列满时放弃本次提前刷新，过期后由调用方加载
+        }
+    }
+
+    /**
+     * 本JVM内同一个key只加载一次，其他线程等待结果
+     */
+    private <V> Object loadOnce(String key, int ttlSeconds, Callable<? extends V> loader, RedisCodec<V> codec,
+                                boolean refresh) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = loading.putIfAbsent(key, future);
+        if (running != null) {
+            if (refresh) {
+                return null;
+            }
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw propagate(e.getCause());
+            }
+        }
+        try {
+            Object value = load(key, ttlSeconds, loader, codec, refresh);
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw propagate(e);
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    private <V> V load(String key, int ttlSeconds, Callable<? extends V> loader, RedisCodec<V> codec,
+                       boolean refresh) throws Exception {
+        String lockKey = key + LOCK_SUFFIX;
+        String token = null;
+        if (distributedLock) {
+            token = UUID.randomUUID().toString();
+            if (!"OK".equals(redis.set(lockKey, token, "NX", "PX", lockMillis))) {
+                // NX失败和redis出错都返回null，能读到别人的锁才算其他JVM正在加载
+                if (!lockHeld(lockKey)) {
+                    token = null;
+                } else if (refresh) {
+                    // 提前刷新直接放弃
+                    return null;
+                } else {
+                    CachedValue<V> cached = awaitOther(key, lockKey, codec);
+                    if (cached != null) {
+                        return cached.value;
+                    }
+                    token = null;
+                }
+            }
+        }
+        try {
+            long start = System.currentTimeMillis();
+            V value = loader.call();
+            long loadMillis = System.currentTimeMillis() - start;
+            store(key, value == null ? negativeTtlSeconds : ttlSeconds, value, codec, loadMillis);
+            return value;
+        } finally {
+            if (token != null && token.equals(redis.get(lockKey))) {
+                // 先比较再删除不是原子的，锁恰好在两步之间过期时可能删掉别人的锁，最多多一次加载
+                redis.del(lockKey);
+            }
+        }
+    }
+
+    /**
+     * 锁的持有者是UUID，读不到(已释放、redis出错)或读到降级的空串都不算被持有
+     */
+    private boolean lockHeld(String lockKey) {
+        String owner = redis.get(lockKey);
+        return owner != null && !owner.isEmpty();
+    }
+
+    /**
+     * 轮询等待其他JVM写入，超时或锁已不被持有时返回null
+     */
+    private <V> CachedValue<V> awaitOther(String key, String lockKey, RedisCodec<V> codec)
+            throws InterruptedException {
+        byte[] binaryKey = SafeEncoder.encode(key);
+        long deadline = System.currentTimeMillis() + lockMillis;
+        while (System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20);
+            CachedValue<V> cached = read(binaryKey, codec);
+            if (cached != null) {
+                return cached;
+            }
+            if (!lockHeld(lockKey)) {
+                // 持有者先写值再释放锁，再读一次；仍然没有说明它加载失败或redis出错，不再等待
+                return read(binaryKey, codec);
+            }
+        }
+        log.warn("wait for cache {} loaded by another process timeout, load it locally", key);
+        return null;
+    }
+
+    private <V> CachedValue<V> read(byte[] binaryKey, RedisCodec<V> codec) {
+        byte[] raw = redis.get(binaryKey);
+        if (raw == null || raw.length < HEADER) {
+            return null;
+        }
+        if (raw[HEADER - 1] == NEGATIVE) {
+            return new CachedValue<>(null);
+        }
+        return new CachedValue<>(codec.decode(raw, HEADER, raw.length - HEADER));
+    }
+
+    private <V> void store(String key, int ttlSeconds, V value, RedisCodec<V> codec, long loadMillis) {
+        byte[] payload = value == null ? new byte[0] : codec.encode(value);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER + payload.length);
+        buffer.putLong(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds));
+        buffer.putInt((int) Math.min(Integer.MAX_VALUE, loadMillis));
+        buffer.put(value == null ? NEGATIVE : VALUE);
+        buffer.put(payload);
+        redis.setex(SafeEncoder.encode(key), ttlSeconds, buffer.array());
+    }
+
+    private static RuntimeException propagate(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        return new UncheckedExecutionException(e);
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    private static final class CachedValue<V> {
+        private final V value;
+
+        private CachedValue(V value) {
+            this.value = value;
+        }
+    }
+}
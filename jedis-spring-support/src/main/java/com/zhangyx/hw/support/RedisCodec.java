@@ -0,0 +1,56 @@
+package com.zhangyx.hw.support;
+
+import redis.clients.util.SafeEncoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * 值与redis二进制数据之间的转换，常用实现见{@link RedisCodecs}
+ *
+ * @param <V>
+ */
+public interface RedisCodec<V> {
+    /**
+     * UTF-8字符串
+     */
+    RedisCodec<String> STRING = new RedisCodec<String>() {
+        @Override
+        public byte[] encode(String value) {
+            return SafeEncoder.encode(value);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+            return SafeEncoder.encode(bytes);
+        }
+    };
+
+    byte[] encode(V value);
+
+    V decode(byte[] bytes);
+
+    /**
+     * 直接写入输出流(通常是复用的线程缓冲区)，默认先编码成byte[]再写入
+     *
+     * @param value
+     * @param out
+     * @throws IOException
+     */
+    default void encode(V value, OutputStream out) throws IOException {
+        out.write(encode(value));
+    }
+
+    /**
+     * 从数组的一段解码，默认先复制出这一段
+     *
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return
+     */
+    default V decode(byte[] bytes, int offset, int length) {
+        return decode(offset == 0 && length == bytes.length ? bytes : Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+}
@@ -0,0 +1,296 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.base.Preconditions;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 常用的{@link RedisCodec}
+ * <p>
+ * 除bytes外都先写入线程复用的缓冲区，最后只复制一次得到交给Jedis的byte[]；解码直接读取Jedis返回的数组，不再复制。
+ * 压缩通过{@link Compressor}扩展，内置Deflate，LZ4/Snappy等可以按同样的接口接入
+ */
+public final class RedisCodecs {
+    private static final RedisCodec<byte[]> BYTES = new RedisCodec<byte[]>() {
+        @Override
+        public byte[] encode(byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] decode(byte[] bytes) {
+            return bytes;
+        }
+    };
+
+    private RedisCodecs() {
+    }
+
+    /**
+     * 原样存取byte[]
+     *
+     * @return
+     */
+    public static RedisCodec<byte[]> bytes() {
+        return BYTES;
+    }
+
+    /**
+     * Java序列化，兼容已有的Serializable对象，体积和速度都不如{@link #binary}
+     *
+     * @param <V>
+     * @return
+     */
+    public static <V extends Serializable> RedisCodec<V> serializable() {
+        return new BufferedCodec<V>() {
+            @Override
+            public void encode(V value, OutputStream out) throws IOException {
+                ObjectOutputStream oos = new ObjectOutputStream(out);
+                oos.writeObject(value);
+                oos.flush();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public V decode(byte[] bytes, int offset, int length) {
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+                    return (V) in.readObject();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * 紧凑二进制，字段顺序由writer/reader约定，不写入类型信息
+     *
+     * @param writer
+     * @param reader
+     * @param <V>
+     * @return
+     */
+    public static <V> RedisCodec<V> binary(BinaryWriter<V> writer, BinaryReader<V> reader) {
+        return new BufferedCodec<V>() {
+            @Override
+            public void encode(V value, OutputStream out) throws IOException {
+                DataOutputStream data = new DataOutputStream(out);
+                writer.write(value, data);
+                data.flush();
+            }
+
+            @Override
+            public V decode(byte[] bytes, int offset, int length) {
+                try {
+                    return reader.read(new DataInputStream(new ByteArrayInputStream(bytes, offset, length)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * 文本格式(如JSON)，按UTF-8存储，序列化由调用方提供，如 objectMapper::writeValueAsString
+     *
+     * @param toText
+     * @param fromText
+     * @param <V>
+     * @return
+     */
+    public static <V> RedisCodec<V> text(Function<? super V, String> toText, Function<String, ? extends V> fromText) {
+        return new BufferedCodec<V>() {
+            @Override
+            public void encode(V value, OutputStream out) throws IOException {
+                out.write(toText.apply(value).getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public V decode(byte[] bytes, int offset, int length) {
+                return fromText.apply(new String(bytes, offset, length, StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    /**
+     * 编码结果达到threshold字节时用Deflate压缩
+     *
+     * @param codec
+     * @param threshold
+     * @param <V>
+     * @return
+     */
+    public static <V> RedisCodec<V> compressed(RedisCodec<V> codec, int threshold) {
+        return compressed(codec, threshold, Compressor.DEFLATE);
+    }
+
+    /**
+     * 编码结果达到threshold字节时压缩，数据前加一个字节标记是否压缩
+     *
+     * @param codec
+     * @param threshold
+     * @param compressor
+     * @param <V>
+     * @return
+     */
+    public static <V> RedisCodec<V> compressed(RedisCodec<V> codec, int threshold, Compressor compressor) {
+        Preconditions.checkArgument(threshold >= 0, "threshold must not be negative");
+        return new CompressingCodec<>(codec, threshold, compressor);
+    }
+
+    @FunctionalInterface
+    public interface BinaryWriter<V> {
+        void write(V value, DataOutput out) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface BinaryReader<V> {
+        V read(DataInput in) throws IOException;
+    }
+
+    /**
+     * 压缩算法，输出直接写入给定的流
+     */
+    public interface Compressor {
+        /**
+         * java.util.zip的Deflate，Deflater/Inflater按线程复用
+         */
+        Compressor DEFLATE = new DeflateCompressor();
+
+        void compress(byte[] src, int offset, int length, OutputStream out) throws IOException;
+
+        void decompress(byte[] src, int offset, int length, OutputStream out) throws IOException;
+    }
+
+    /**
+     * 编码写入线程复用的缓冲区，解码直接读取原数组
+     */
+    private abstract static class BufferedCodec<V> implements RedisCodec<V> {
+        @Override
+        public final byte[] encode(V value) {
+            CodecBuffer buffer = CodecBuffer.acquire(CodecBuffer.ENCODE);
+            try {
+                encode(value, buffer);
+                return buffer.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                buffer.release(CodecBuffer.ENCODE);
+            }
+        }
+
+        @Override
+        public final V decode(byte[] bytes) {
+            return decode(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public abstract void encode(V value, OutputStream out) throws IOException;
+
+        @Override
+        public abstract V decode(byte[] bytes, int offset, int length);
+    }
+
+    private static final class CompressingCodec<V> extends BufferedCodec<V> {
+        private static final int RAW = 0;
+        private static final int COMPRESSED = 1;
+
+        private final RedisCodec<V> codec;
+        private final int threshold;
+        private final Compressor compressor;
+
+        private CompressingCodec(RedisCodec<V> codec, int threshold, Compressor compressor) {
+            this.codec = codec;
+            this.threshold = threshold;
+            this.compressor = compressor;
+        }
+
+        @Override
+        public void encode(V value, OutputStream out) throws IOException {
+            CodecBuffer raw = CodecBuffer.acquire(CodecBuffer.COMPRESS);
+            try {
+                codec.encode(value, raw);
+                if (raw.size() < threshold) {
+                    out.write(RAW);
+                    out.write(raw.array(), 0, raw.size());
+                } else {
+                    out.write(COMPRESSED);
+                    compressor.compress(raw.array(), 0, raw.size(), out);
+                }
+            } finally {
+                raw.release(CodecBuffer.COMPRESS);
+            }
+        }
+
+        @Override
+        public V decode(byte[] bytes, int offset, int length) {
+            if (bytes[offset] == RAW) {
+                return codec.decode(bytes, offset + 1, length - 1);
+            }
+            CodecBuffer plain = CodecBuffer.acquire(CodecBuffer.COMPRESS);
+            try {
+                compressor.decompress(bytes, offset + 1, length - 1, plain);
+                return codec.decode(plain.array(), 0, plain.size());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                plain.release(CodecBuffer.COMPRESS);
+            }
+        }
+    }
+
+    private static final class DeflateCompressor implements Compressor {
+        private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+        private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+        private static final ThreadLocal<byte[]> CHUNKS = ThreadLocal.withInitial(() -> new byte[8192]);
+
+        @Override
+        public void compress(byte[] src, int offset, int length, OutputStream out) throws IOException {
+            Deflater deflater = DEFLATERS.get();
+            byte[] chunk = CHUNKS.get();
+            deflater.reset();
+            deflater.setInput(src, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+        }
+
+        @Override
+        public void decompress(byte[] src, int offset, int length, OutputStream out) throws IOException {
+            Inflater inflater = INFLATERS.get();
+            byte[] chunk = CHUNKS.get();
+            inflater.reset();
+            inflater.setInput(src, offset, length);
+            try {
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(chunk);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("truncated deflate data");
+                    }
+                    out.write(chunk, 0, n);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.zhangyx.hw.support;
+
+/**
+ * 命令监控埋点的扩展接口
+ * <p>
+ * 每次调用都会回调，实现必须线程安全且尽量不分配对象；命令名和节点名都是预先生成的字符串，可以直接做map的key。
+ * 通过配置 metrics.class 指定实现类(需要无参构造)，默认使用{@link DefaultRedisMetrics}
+ */
+public interface RedisMetrics {
+    /**
+     * 节点未知(如不带key的分片命令)
+     */
+    String UNKNOWN_NODE = "?";
+    /**
+     * 命令拆分到了多个节点
+     */
+    String MULTI_NODE = "*";
+
+    /**
+     * metrics.enable=false 时使用的空实现
+     */
+    RedisMetrics NOOP = new RedisMetrics() {
+        @Override
+        public void recordCommand(String command, String node, long nanos, boolean success) {
+        }
+
+        @Override
+        public void recordBorrow(long nanos, boolean success) {
+        }
+
+        @Override
+        public void recordFallback(String command) {
+        }
+    };
+
+    /**
+     * 一次命令执行
+     *
+     * @param command 命令(方法名)
+     * @param node    host:port/db，见{@link #UNKNOWN_NODE}、{@link #MULTI_NODE}
+     * @param nanos   耗时，不含从连接池借连接的等待
+     * @param success 是否成功
+     */
+    void recordCommand(String command, String node, long nanos, boolean success);
+
+    /**
+     * 一次从连接池借连接
+     *
+     * @param nanos   等待时间
+     * @param success 是否借到
+     */
+    void recordBorrow(long nanos, boolean success);
+
+    /**
+     * 没有可用后端，返回了默认值
+     *
+     * @param command
+     */
+    void recordFallback(String command);
+
+    /**
+     * 节点熔断器状态变化
+     *
+     * @param node
+     * @param from CLOSED/OPEN/HALF_OPEN
+     * @param to
+     */
+    default void recordBreakerTransition(String node, String from, String to) {
+    }
+
+    /**
+     * 集群命令被重定向
+     *
+     * @param node 重定向的目标 host:port
+     * @param ask  ASK(slot迁移中)为true，MOVED为false
+     */
+    default void recordRedirect(String node, boolean ask) {
+    }
+
+    /**
+     * 一次集群拓扑刷新
+     *
+     * @param success 是否从某个节点读到了CLUSTER SLOTS
+     */
+    default void recordTopologyRefresh(boolean success) {
+    }
+}
@@ -0,0 +1,70 @@
+package com.zhangyx.hw.support;
+
+import java.util.Map;
+
+/**
+ * 默认监控统计的JMX视图
+ * <p>
+ * 命令维度的map以 命令@节点 为key，耗时单位为微秒，分位数为所在对数桶的上界
+ */
+public interface RedisMetricsMXBean {
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getErrorCounts();
+
+    Map<String, Double> getMeanMicros();
+
+    Map<String, Long> getP50Micros();
+
+    Map<String, Long> getP99Micros();
+
+    Map<String, Long> getMaxMicros();
+
+    long getBorrowCount();
+
+    long getBorrowErrors();
+
+    double getBorrowMeanMicros();
+
+    long getBorrowP99Micros();
+
+    long getBorrowMaxMicros();
+
+    /**
+     * 按命令统计的默认值降级次数
+     *
+     * @return
+     */
+    Map<String, Long> getFallbackCounts();
+
+    /**
+     * 各节点熔断器的当前状态
+     *
+     * @return
+     */
+    Map<String, String> getBreakerStates();
+
+    /**
+     * 各节点熔断器打开的次数
+     *
+     * @return
+     */
+    Map<String, Long> getBreakerOpenCounts();
+
+    /**
+     * 集群重定向次数，以 MOVED@节点、ASK@节点 为key
+     *
+     * @return
+     */
+    Map<String, Long> getRedirectCounts();
+
+    long getTopologyRefreshCount();
+
+    long getTopologyRefreshErrors();
+
+    /**
+     * 清空所有统计
+     */
+    void reset();
+}
@@ -0,0 +1,152 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.collect.Iterables;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.JedisClusterCRC16;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 按后端类型生成SCAN游标：单节点一个，分片模式每个分片一个，集群模式每个master一个；
+ * HSCAN/SSCAN/ZSCAN只在key所在节点上执行
+ */
+final class RedisScanner {
+    private final RedisBackend backend;
+    private final RedisMetrics metrics;
+
+    RedisScanner(RedisBackend backend, RedisMetrics metrics) {
+        this.backend = backend;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 所有节点上的SCAN游标，后端未启动时为空
+     *
+     * @param params
+     * @return
+     */
+    List<ScanIterator.Cursor<String>> keys(ScanParams params) {
+        List<ScanIterator.Cursor<String>> cursors = new ArrayList<>();
+        ClusterTopology topology = backend.getClusterTopology();
+        ShardedJedisPool shardedPool = backend.getShardedPool();
+        if (topology != null) {
+            for (String node : topology.getAllMasterNames()) {
+                cursors.add(cursor("scan", node, cursor -> {
+                    JedisPool pool = topology.getNode(node);
+                    if (pool == null) {
+                        throw new JedisException("cluster node " + node + " is gone");
+                    }
+                    try (Jedis jedis = pool.getResource()) {
+                        return jedis.scan(cursor, params);
+                    }
+                }));
+            }
+        } else if (backend.getPool() != null) {
+            JedisPool pool = backend.getPool();
+            cursors.add(cursor("scan", backend.nodeName(pool), cursor -> {
+                try (Jedis jedis = pool.getResource()) {
+                    return jedis.scan(cursor, params);
+                }
+            }));
+        } else if (shardedPool != null) {
+            List<String> nodes = new ArrayList<>();
+            try (ShardedJedis sharded = shardedPool.getResource()) {
+                Collection<JedisShardInfo> infos = new HashSet<>(sharded.getAllShardInfo());
+                for (Jedis shard : sharded.getAllShards()) {
+                    nodes.add(backend.nodeName(shardInfo(infos, shard.getClient())));
+                }
+            }
+            for (int i = 0; i < nodes.size(); i++) {
+                int index = i;
+                cursors.add(cursor("scan", nodes.get(i), cursor -> {
+                    try (ShardedJedis sharded = shardedPool.getResource()) {
+                        return Iterables.get(sharded.getAllShards(), index).scan(cursor, params);
+                    }
+                }));
+            }
+        }
+        return cursors;
+    }
+
+    /**
+     * key所在节点上的HSCAN/SSCAN/ZSCAN游标
+     *
+     * @param command     监控中的命令名
+     * @param key
+     * @param single      单节点和集群节点上的执行方式
+     * @param sharded     分片模式下的执行方式
+     * @param cluster     集群模式下的执行方式
+     * @param <T>
+     * @return 后端未启动时返回null
+     */
+    <T> ScanIterator.Cursor<T> key(String command, String key, BiFunction<Jedis, String, ScanResult<T>> single,
+                                   BiFunction<ShardedJedis, String, ScanResult<T>> sharded,
+                                   BiFunction<JedisCluster, String, ScanResult<T>> cluster) {
+        JedisCluster jedisCluster = backend.getJedisCluster();
+        ShardedJedisPool shardedPool = backend.getShardedPool();
+        if (jedisCluster != null) {
+            ClusterTopology topology = backend.getClusterTopology();
+            String node = topology.getMasterName(JedisClusterCRC16.getSlot(key));
+            return cursor(command, node != null ? node : RedisMetrics.UNKNOWN_NODE,
+                    cursor -> cluster.apply(jedisCluster, cursor));
+        } else if (backend.getPool() != null) {
+            JedisPool pool = backend.getPool();
+            return cursor(command, backend.nodeName(pool), cursor -> {
+                try (Jedis jedis = pool.getResource()) {
+                    return single.apply(jedis, cursor);
+                }
+            });
+        } else if (shardedPool != null) {
+            return cursor(command, backend.shardNode(key), cursor -> {
+                try (ShardedJedis jedis = shardedPool.getResource()) {
+                    return sharded.apply(jedis, cursor);
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * 分片连接对应的JedisShardInfo，getAllShardInfo按哈希环排序，只能按地址对应
+     */
+    private static JedisShardInfo shardInfo(Collection<JedisShardInfo> infos, Client client) {
+        for (JedisShardInfo info : infos) {
+            if (info.getHost().equals(client.getHost()) && info.getPort() == client.getPort()
+                    && info.getDb() == client.getDB()) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    private <T> ScanIterator.Cursor<T> cursor(String command, String node, Function<String, ScanResult<T>> fetch) {
+        return new ScanIterator.Cursor<>(cursor -> timed(command, node, () -> fetch.apply(cursor)));
+    }
+
+    private <T> T timed(String command, String node, Supplier<T> call) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = call.get();
+            success = true;
+            return result;
+        } finally {
+            metrics.recordCommand(command, node, System.nanoTime() - start, success);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.BaseEncoding;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 已注册的Lua脚本，调用时只发送SHA1
+ * <p>
+ * 通过{@link ConfigruableProvider#loadScript(String)}获得，用{@link ConfigruableProvider#evalScript}执行
+ */
+@Getter
+public final class RedisScript {
+    private final String script;
+    /**
+     * 脚本的SHA1，小写十六进制，与SCRIPT LOAD的返回值一致
+     */
+    private final String sha1;
+
+    RedisScript(String script) {
+        Preconditions.checkArgument(script != null && !script.isEmpty(), "script must not be empty");
+        this.script = script;
+        this.sha1 = sha1(script);
+    }
+
+    private static String sha1(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+            return BaseEncoding.base16().lowerCase().encode(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return sha1;
+    }
+}
@@ -0,0 +1,52 @@
+package com.zhangyx.hw.support;
+
+import redis.clients.util.JedisByteHashMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 复制命令结果，缓存或共享结果的调用方之间不共享可变对象
+ * <p>
+ * 复制后的容器保持原来的查找语义: 二进制命令返回的{@link JedisByteHashMap}按内容比较byte[] key，
+ * 复制成HashMap后byte[] key只按引用比较，查找全部落空
+ */
+final class ResultCopies {
+
+    private ResultCopies() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object copy(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        if (value instanceof JedisByteHashMap) {
+            JedisByteHashMap copy = new JedisByteHashMap();
+            copy.putAll((JedisByteHashMap) value);
+            return copy;
+        }
+        if (value instanceof LinkedHashMap) {
+            return new LinkedHashMap<>((Map<Object, Object>) value);
+        }
+        if (value instanceof Map) {
+            return new HashMap<>((Map<Object, Object>) value);
+        }
+        if (value instanceof List) {
+            return new ArrayList<>((List<Object>) value);
+        }
+        if (value instanceof LinkedHashSet) {
+            return new LinkedHashSet<>((Set<Object>) value);
+        }
+        if (value instanceof Set) {
+            return new HashSet<>((Set<Object>) value);
+        }
+        return value;
+    }
+}
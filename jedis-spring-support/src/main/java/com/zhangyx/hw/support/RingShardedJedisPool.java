@@ -0,0 +1,106 @@
+package com.zhangyx.hw.support;
+
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectFactory;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPool;
+
+import java.util.List;
+
+/**
+ * 按{@link ConsistentHashRing}定位分片的ShardedJedisPool，对调用方仍是ShardedJedisPool
+ */
+class RingShardedJedisPool extends ShardedJedisPool {
+
+    RingShardedJedisPool(GenericObjectPoolConfig poolConfig, List<JedisShardInfo> shards, ConsistentHashRing ring) {
+        super(poolConfig, shards);
+        // 父类创建的内部池还没有连接，换成创建RingShardedJedis的工厂
+        initPool(poolConfig, new RingShardedJedisFactory(shards, ring));
+    }
+
+    /**
+     * 只覆盖定位，命令、管道和连接管理都沿用ShardedJedis
+     */
+    static final class RingShardedJedis extends ShardedJedis {
+        private final ConsistentHashRing ring;
+
+        RingShardedJedis(List<JedisShardInfo> shards, ConsistentHashRing ring) {
+            super(shards);
+            this.ring = ring;
+        }
+
+        @Override
+        public JedisShardInfo getShardInfo(byte[] key) {
+            return ring.get(key);
+        }
+
+        @Override
+        public JedisShardInfo getShardInfo(String key) {
+            return ring.get(key);
+        }
+
+        /**
+         * BinaryShardedJedis返回原始List，按接口声明的类型返回
+         */
+        @Override
+        @SuppressWarnings("unchecked") // 元素是SRANDMEMBER回复的byte[]
+        public List<byte[]> srandmember(byte[] key, int count) {
+            return (List<byte[]>) super.srandmember(key, count);
+        }
+    }
+
+    private static final class RingShardedJedisFactory implements PooledObjectFactory<ShardedJedis> {
+        private final List<JedisShardInfo> shards;
+        private final ConsistentHashRing ring;
+
+        private RingShardedJedisFactory(List<JedisShardInfo> shards, ConsistentHashRing ring) {
+            this.shards = shards;
+            this.ring = ring;
+        }
+
+        @Override
+        public PooledObject<ShardedJedis> makeObject() {
+            return new DefaultPooledObject<>(new RingShardedJedis(shards, ring));
+        }
+
+        @Override
+        public void destroyObject(PooledObject<ShardedJedis> p) {
+            for (Jedis jedis : p.getObject().getAllShards()) {
+                if (jedis.isConnected()) {
+                    try {
+                        jedis.quit();
+                    } catch (RuntimeException e) {
+                        // 连接已断开时忽略
+                    }
+                    jedis.disconnect();
+                }
+            }
+        }
+
+        @Override
+        public boolean validateObject(PooledObject<ShardedJedis> p) {
+            try {
+                for (Jedis jedis : p.getObject().getAllShards()) {
+                    if (!"PONG".equals(jedis.ping())) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void activateObject(PooledObject<ShardedJedis> p) {
+        }
+
+        @Override
+        public void passivateObject(PooledObject<ShardedJedis> p) {
+        }
+    }
+}
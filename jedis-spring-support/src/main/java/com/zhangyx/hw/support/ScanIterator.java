@@ -0,0 +1,242 @@
+package com.zhangyx.hw.support;
+
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 按游标逐页读取的迭代器，hasNext取完当前页后才发送下一次SCAN，内存中只保留一页
+ * <p>
+ * 每页单独借还连接，迭代中途不占用连接；扫描出错时hasNext/next抛出{@link JedisException}，Error原样抛出。
+ * 并行扫描时由后台线程读取各节点，最多缓存bufferPages页，提前结束时需要close以停止后台线程，
+ * 使用{@link #stream()}时用try-with-resources关闭流即可
+ *
+ * @param <T>
+ */
+public final class ScanIterator<T> implements Iterator<T>, Closeable {
+    private final Pages<T> pages;
+    private Iterator<T> current = Collections.emptyIterator();
+    private boolean closed;
+
+    private ScanIterator(Pages<T> pages) {
+        this.pages = pages;
+    }
+
+    /**
+     * 依次扫描各个游标
+     *
+     * @param cursors
+     * @param <T>
+     * @return
+     */
+    static <T> ScanIterator<T> sequential(List<Cursor<T>> cursors) {
+        return new ScanIterator<>(new SequentialPages<>(cursors));
+    }
+
+    /**
+     * 每个游标一个后台线程并行扫描
+     *
+     * @param cursors
+     * @param executor
+     * @param bufferPages
+     * @param <T>
+     * @return
+     */
+    static <T> ScanIterator<T> parallel(List<Cursor<T>> cursors, ExecutorService executor, int bufferPages) {
+        if (cursors.size() <= 1) {
+            return sequential(cursors);
+        }
+        return new ScanIterator<>(new ParallelPages<>(cursors, executor, bufferPages));
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (closed) {
+                return false;
+            }
+            List<T> page = pages.next();
+            if (page == null) {
+                close();
+                return false;
+            }
+            current = page.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    /**
+     * 顺序流，关闭流时停止扫描
+     *
+     * @return
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            current = Collections.emptyIterator();
+            pages.close();
+        }
+    }
+
+    /**
+     * 一个节点或一个key上的游标，fetch负责借连接执行一次SCAN
+     */
+    static final class Cursor<T> {
+        private final Function<String, ScanResult<T>> fetch;
+        private String cursor = ScanParams.SCAN_POINTER_START;
+        private boolean finished;
+
+        Cursor(Function<String, ScanResult<T>> fetch) {
+            this.fetch = fetch;
+        }
+
+        /**
+         * 下一页非空结果，扫描结束返回null
+         */
+        List<T> next() {
+            while (!finished) {
+                ScanResult<T> result = fetch.apply(cursor);
+                cursor = result.getStringCursor();
+                finished = ScanParams.SCAN_POINTER_START.equals(cursor);
+                if (!result.getResult().isEmpty()) {
+                    return result.getResult();
+                }
+            }
+            return null;
+        }
+    }
+
+    private interface Pages<T> {
+        /**
+         * 下一页，全部结束返回null
+         */
+        List<T> next();
+
+        void close();
+    }
+
+    private static final class SequentialPages<T> implements Pages<T> {
+        private final List<Cursor<T>> cursors;
+        private int index;
+
+        private SequentialPages(List<Cursor<T>> cursors) {
+            this.cursors = cursors;
+        }
+
+        @Override
+        public List<T> next() {
+            for (; index < cursors.size(); index++) {
+                List<T> page = cursors.get(index).next();
+                if (page != null) {
+                    return page;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            index = cursors.size();
+        }
+    }
+
+    private static final class ParallelPages<T> implements Pages<T> {
+        private static final Object DONE = new Object();
+
+        private final BlockingQueue<Object> queue;
+        private final List<Future<?>> futures;
+        private int running;
+
+        private ParallelPages(List<Cursor<T>> cursors, ExecutorService executor, int bufferPages) {
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, bufferPages));
+            this.futures = new ArrayList<>(cursors.size());
+            this.running = cursors.size();
+            for (Cursor<T> cursor : cursors) {
+                futures.add(executor.submit(() -> produce(cursor)));
+            }
+        }
+
+        private void produce(Cursor<T> cursor) {
+            try {
+                try {
+                    List<T> page;
+                    while ((page = cursor.next()) != null) {
+                        queue.put(page);
+                    }
+                    queue.put(DONE);
+                } catch (RuntimeException | Error e) {
+                    // 不交给消费者的话它会一直等这个节点的DONE
+                    queue.put(e);
+                }
+            } catch (InterruptedException e) {
+                // 迭代器已关闭
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<T> next() {
+            while (running > 0) {
+                Object item;
+                try {
+                    item = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new JedisException("interrupted while scanning", e);
+                }
+                if (item == DONE) {
+                    running--;
+                } else if (item instanceof RuntimeException) {
+                    close();
+                    throw new JedisException("cannot scan redis", (RuntimeException) item);
+                } else if (item instanceof Error) {
+                    close();
+                    throw (Error) item;
+                } else {
+                    return (List<T>) item;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            running = 0;
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            queue.clear();
+        }
+    }
+}
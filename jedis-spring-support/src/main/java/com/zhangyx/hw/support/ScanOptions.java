@@ -0,0 +1,39 @@
+package com.zhangyx.hw.support;
+
+import lombok.Builder;
+import lombok.Getter;
+import redis.clients.jedis.ScanParams;
+
+/**
+ * SCAN系列命令的参数
+ * <pre>
+ * ScanOptions.builder().match("user:*").count(500).parallel(true).build()
+ * </pre>
+ */
+@Getter
+@Builder
+public class ScanOptions {
+    /**
+     * 匹配模式，为空时返回全部
+     */
+    private final String match;
+    /**
+     * 每次SCAN的COUNT，即每页大约检查的元素数
+     */
+    @Builder.Default
+    private final int count = 100;
+    /**
+     * 扫描所有节点的key时是否并行，只对scanKeys有效
+     */
+    private final boolean parallel;
+    /**
+     * 并行扫描时最多缓存的页数，消费跟不上时扫描线程阻塞
+     */
+    @Builder.Default
+    private final int bufferPages = 16;
+
+    ScanParams toParams() {
+        ScanParams params = new ScanParams().count(count);
+        return match == null || match.isEmpty() ? params : params.match(match);
+    }
+}
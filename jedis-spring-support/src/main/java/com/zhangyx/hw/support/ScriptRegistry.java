@@ -0,0 +1,181 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.base.Preconditions;
+import lombok.extern.slf4j.Slf4j;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.JedisClusterCRC16;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lua脚本注册表
+ * <p>
+ * 注册的脚本用SCRIPT LOAD加载到后端的每个节点(集群包括副本)，配置重载创建新后端、集群拓扑刷新发现新节点时补充加载；
+ * 执行时只发送EVALSHA，节点重启或SCRIPT FLUSH后返回NOSCRIPT时在该节点重新加载并重试一次。
+ * <p>
+ * 注册表属于factory，不随配置重载重建；每个节点( host:port )已加载的脚本只在本地记录，用于跳过重复加载
+ */
+@Slf4j
+class ScriptRegistry {
+    private final ConcurrentMap<String, RedisScript> scripts = new ConcurrentHashMap<>();
+    /**
+     * host:port -> 已加载的SHA1
+     */
+    private final ConcurrentMap<String, Set<String>> loaded = new ConcurrentHashMap<>();
+
+    /**
+     * 注册脚本，相同内容只保留一份
+     *
+     * @param script
+     * @return
+     */
+    RedisScript register(String script) {
+        RedisScript created = new RedisScript(script);
+        RedisScript existing = scripts.putIfAbsent(created.getSha1(), created);
+        return existing != null ? existing : created;
+    }
+
+    /**
+     * 把所有脚本加载到后端的每个节点，单个节点失败只记录日志，执行时再按NOSCRIPT补充加载
+     *
+     * @param backend
+     */
+    void preload(RedisBackend backend) {
+        if (scripts.isEmpty()) {
+            return;
+        }
+        if (backend.getClusterTopology() != null) {
+            preload(backend.getClusterTopology());
+        } else if (backend.getPool() != null) {
+            preload(backend.getPool());
+        } else if (backend.getShardedPool() != null) {
+            try (ShardedJedis sharded = backend.getShardedPool().getResource()) {
+                for (Jedis shard : sharded.getAllShards()) {
+                    load(shard);
+                }
+            } catch (RuntimeException e) {
+                log.warn("cannot load scripts on shards", e);
+            }
+        }
+    }
+
+    /**
+     * 把所有脚本加载到集群当前已知的每个节点，包括JedisCluster还不知道的新节点
+     *
+     * @param topology
+     */
+    void preload(ClusterTopology topology) {
+        if (scripts.isEmpty()) {
+            return;
+        }
+        for (JedisPool pool : topology.getAllNodes()) {
+            preload(pool);
+        }
+    }
+
+    private void preload(JedisPool pool) {
+        try (Jedis jedis = pool.getResource()) {
+            load(jedis);
+        } catch (RuntimeException e) {
+            log.warn("cannot load scripts on redis node", e);
+        }
+    }
+
+    /**
+     * 在一个节点上加载还没加载过的脚本
+     */
+    private void load(Jedis jedis) {
+        Set<String> shas = loaded.computeIfAbsent(node(jedis), k -> ConcurrentHashMap.newKeySet());
+        for (RedisScript script : scripts.values()) {
+            if (!shas.contains(script.getSha1())) {
+                jedis.scriptLoad(script.getScript());
+                shas.add(script.getSha1());
+            }
+        }
+    }
+
+    /**
+     * 用EVALSHA执行，分片和集群模式按第一个key选择节点
+     *
+     * @param backend
+     * @param metrics
+     * @param script
+     * @param keys
+     * @param args
+     * @return 后端未启动时返回null
+     */
+    Object eval(RedisBackend backend, RedisMetrics metrics, RedisScript script, List<String> keys, List<String> args) {
+        JedisCluster cluster = backend.getJedisCluster();
+        if (cluster == null && backend.getPool() == null && backend.getShardedPool() == null) {
+            metrics.recordFallback("evalsha");
+            return null;
+        }
+        Preconditions.checkArgument(backend.getPool() != null || !keys.isEmpty(),
+                "script needs at least one key on sharded or cluster backend");
+        String node;
+        if (cluster != null) {
+            String master = backend.getClusterTopology().getMasterName(JedisClusterCRC16.getSlot(keys.get(0)));
+            node = master != null ? master : RedisMetrics.UNKNOWN_NODE;
+        } else {
+            node = backend.getPool() != null ? backend.nodeName(backend.getPool()) : backend.shardNode(keys.get(0));
+        }
+
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Object result;
+            if (cluster != null) {
+                result = evalsha(cluster, node, script, keys, args);
+            } else if (backend.getPool() != null) {
+                try (Jedis jedis = backend.getPool().getResource()) {
+                    result = evalsha(jedis, script, keys, args);
+                }
+            } else {
+                try (ShardedJedis sharded = backend.getShardedPool().getResource()) {
+                    result = evalsha(sharded.getShard(keys.get(0)), script, keys, args);
+                }
+            }
+            success = true;
+            return result;
+        } finally {
+            metrics.recordCommand("evalsha", node, System.nanoTime() - start, success);
+        }
+    }
+
+    private Object evalsha(Jedis jedis, RedisScript script, List<String> keys, List<String> args) {
+        try {
+            return jedis.evalsha(script.getSha1(), keys, args);
+        } catch (JedisNoScriptException e) {
+            String node = node(jedis);
+            log.info("script {} missing on {}, reload", script, node);
+            // 节点重启或被清空过，已记录的脚本都不再可信
+            loaded.remove(node);
+            load(jedis);
+            return jedis.evalsha(script.getSha1(), keys, args);
+        }
+    }
+
+    private Object evalsha(JedisCluster cluster, String node, RedisScript script, List<String> keys, List<String> args) {
+        try {
+            return cluster.evalsha(script.getSha1(), keys, args);
+        } catch (JedisNoScriptException e) {
+            log.info("script {} missing on {}, reload", script, node);
+            loaded.remove(node);
+            cluster.scriptLoad(script.getScript(), keys.get(0));
+            return cluster.evalsha(script.getSha1(), keys, args);
+        }
+    }
+
+    private static String node(Jedis jedis) {
+        Client client = jedis.getClient();
+        return client.getHost() + ':' + client.getPort();
+    }
+}
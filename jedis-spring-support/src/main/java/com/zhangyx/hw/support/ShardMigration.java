@@ -0,0 +1,99 @@
+package com.zhangyx.hw.support;
+
+import lombok.extern.slf4j.Slf4j;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ShardedJedis;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 分片变更后的双读
+ * <p>
+ * 重载后shard.dualReadMillis内，只读命令在新位置未命中(null、空集合、false)时，再到旧环上的分片读一次，
+ * 让缓存随新写入逐步迁移到新位置，而不是增删节点后整体失效。旧分片必须仍在新配置中，已移除的分片不再读取
+ */
+@Slf4j
+class ShardMigration {
+    private final ConsistentHashRing previous;
+    private final ConsistentHashRing current;
+    private final CommandDispatcher dispatcher;
+    private final long until;
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+
+    ShardMigration(ConsistentHashRing previous, ConsistentHashRing current, Class<?> commandType, long millis) {
+        this.previous = previous;
+        this.current = current;
+        this.dispatcher = CommandDispatcher.of(commandType, Jedis.class);
+        this.until = System.currentTimeMillis() + millis;
+    }
+
+    /**
+     * 新位置未命中时从旧位置读取
+     *
+     * @param sharded 本次调用借出的ShardedJedis
+     * @param method
+     * @param args
+     * @param result  新位置的结果
+     * @return
+     * @throws Throwable
+     */
+    Object read(ShardedJedis sharded, Method method, Object[] args, Object result) throws Throwable {
+        if (!isMissing(result) || !CommandTypes.isReadOnly(method) || !dispatcher.supports(method)
+                || System.currentTimeMillis() > until) {
+            return result;
+        }
+        Object key = CommandTypes.firstKey(method, args);
+        if (key == null) {
+            return result;
+        }
+        ConsistentHashRing.Shard old = key instanceof byte[] ? previous.get((byte[]) key) : previous.get((String) key);
+        ConsistentHashRing.Shard now = key instanceof byte[] ? current.get((byte[]) key) : current.get((String) key);
+        if (old.getId().equals(now.getId()) || current.getShard(old.getId()) == null) {
+            return result;
+        }
+        Jedis jedis = find(sharded.getAllShards(), old.getId());
+        if (jedis == null) {
+            return result;
+        }
+        reads.increment();
+        Object ret = dispatcher.invoke(jedis, method, args);
+        if (isMissing(ret)) {
+            return result;
+        }
+        hits.increment();
+        return ret;
+    }
+
+    boolean isActive() {
+        return System.currentTimeMillis() <= until;
+    }
+
+    long getReadCount() {
+        return reads.sum();
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    private static Jedis find(Collection<Jedis> shards, String id) {
+        for (Jedis jedis : shards) {
+            Client client = jedis.getClient();
+            if (id.equals(client.getHost() + ':' + client.getPort() + '/' + client.getDB())) {
+                return jedis;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isMissing(Object result) {
+        return result == null || Boolean.FALSE.equals(result)
+                || result instanceof Collection && ((Collection<?>) result).isEmpty()
+                || result instanceof Map && ((Map<?, ?>) result).isEmpty();
+    }
+}
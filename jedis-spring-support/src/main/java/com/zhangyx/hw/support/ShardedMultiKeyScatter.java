@@ -0,0 +1,66 @@
+package com.zhangyx.hw.support;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPool;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 分片模式下的多key命令：ShardedJedis没有实现MultiKeyCommands，
+ * 这里借出一个ShardedJedis，按getShard(key)把key分到各分片，每个分片一个管道并行执行
+ * <p>
+ * 超时或失败时先断开各分片的连接，等所有分片的线程结束后再归还ShardedJedis
+ */
+class ShardedMultiKeyScatter extends MultiKeyScatter<Jedis> {
+    private final ShardedJedisPool pool;
+
+    ShardedMultiKeyScatter(ShardedJedisPool pool, ExecutorService executor, long timeoutMillis) {
+        super(executor, timeoutMillis);
+        this.pool = pool;
+    }
+
+    @Override
+    Object execute(Method method, Object[] args) throws Throwable {
+        try (ShardedJedis sharded = pool.getResource()) {
+            return scatter(key -> key instanceof byte[] ? sharded.getShard((byte[]) key) : sharded.getShard((String) key),
+                    method, args, () -> disconnect(sharded));
+        }
+    }
+
+    /**
+     * 直接关闭各分片的socket，正在读写的线程随即失败并把连接标记为broken，归还时销毁；
+     * 没有在用的分片下次使用时重新连接。不调用Jedis.disconnect，它会先flush其他线程正在写的缓冲区
+     *
+     * @param sharded
+     */
+    static void disconnect(ShardedJedis sharded) {
+        for (Jedis shard : sharded.getAllShards()) {
+            Socket socket = shard.getClient().getSocket();
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // 只为打断正在进行的读写
+                }
+            }
+        }
+    }
+
+    /**
+     * 分片之间没有slot限制，同一分片的key放进一条命令
+     */
+    @Override
+    protected int partition(Object key) {
+        return 0;
+    }
+
+    @Override
+    protected void execute(Jedis node, Command command, List<Batch> batches) {
+        pipeline(node, command, batches);
+    }
+}
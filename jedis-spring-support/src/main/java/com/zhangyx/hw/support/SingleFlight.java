@@ -0,0 +1,104 @@
+package com.zhangyx.hw.support;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 相同读请求合并
+ * <p>
+ * 同一个只读命令(方法和参数都相同)正在执行时，后到的调用等待它的结果，不再各自借连接发送命令；
+ * 结果返回后立即移除，不做缓存。热点key被大量线程同时读取时可以减少连接池争用和服务端压力。
+ * <p>
+ * 配置项:
+ * <pre>
+ * coalesce.enable=false
+ * </pre>
+ * 参数按值比较(含byte[]和数组)，ScanParams等未实现equals的参数对象不会被合并
+ */
+class SingleFlight {
+    private final ConcurrentMap<Call, CompletableFuture<Object>> inflight = new ConcurrentHashMap<>();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * 只读命令与正在执行的相同命令合并，其他命令直接执行
+     *
+     * @param method
+     * @param args
+     * @param next
+     * @return
+     * @throws Throwable
+     */
+    Object execute(Method method, Object[] args, CommandInvoker next) throws Throwable {
+        if (!CommandTypes.isReadOnly(method)) {
+            return next.invoke(method, args);
+        }
+        Call call = new Call(method, args);
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inflight.putIfAbsent(call, future);
+        if (running != null) {
+            coalesced.increment();
+            try {
+                return ResultCopies.copy(running.join());
+            } catch (CompletionException e) {
+                throw e.getCause();
+            }
+        }
+
+        executed.increment();
+        try {
+            Object result = next.invoke(method, args);
+            // 先移除再通知，之后到达的调用重新执行，不会读到更早的结果
+            inflight.remove(call, future);
+            future.complete(result);
+            // 等待方从原始结果复制，执行方也拿副本，避免它修改结果时等待方正在复制
+            return ResultCopies.copy(result);
+        } catch (Throwable e) {
+            inflight.remove(call, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    long getExecutedCount() {
+        return executed.sum();
+    }
+
+    long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * 方法加参数，参数按值比较
+     */
+    private static final class Call {
+        private final Method method;
+        private final Object[] args;
+        private final int hash;
+
+        private Call(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+            this.hash = 31 * method.hashCode() + Arrays.deepHashCode(args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Call)) {
+                return false;
+            }
+            Call other = (Call) o;
+            return hash == other.hash && method.equals(other.method) && Arrays.deepEquals(args, other.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
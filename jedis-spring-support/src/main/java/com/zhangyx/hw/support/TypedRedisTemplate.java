@@ -0,0 +1,112 @@
+package com.zhangyx.hw.support;
+
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按{@link RedisCodec}存取对象，key为字符串，值经codec编码后通过{@link BinaryJedisCmd}读写
+ * <p>
+ * 例如大对象用紧凑二进制并在超过4KB时压缩:
+ * <pre>
+ * RedisCodec&lt;User&gt; codec = RedisCodecs.compressed(RedisCodecs.binary(User::write, User::read), 4096);
+ * TypedRedisTemplate&lt;User&gt; users = new TypedRedisTemplate&lt;&gt;(redis, codec);
+ * </pre>
+ * redis出错或熔断时代理返回null或空值(byte[]为长度0的数组)，读取都按不存在处理；
+ * 因此编码为空数组的值(如text codec的空字符串)读回为null
+ *
+ * @param <V>
+ */
+public class TypedRedisTemplate<V> {
+    private final BinaryJedisCmd redis;
+    private final RedisCodec<V> codec;
+
+    /**
+     * @param redis JedisPoolFactoryBean或JedisClusterFactoryBean创建的代理
+     * @param codec
+     */
+    public TypedRedisTemplate(BinaryJedisCmd redis, RedisCodec<V> codec) {
+        this.redis = redis;
+        this.codec = codec;
+    }
+
+    public V get(String key) {
+        return decode(redis.get(SafeEncoder.encode(key)));
+    }
+
+    public String set(String key, V value) {
+        return redis.set(SafeEncoder.encode(key), codec.encode(value));
+    }
+
+    public String setex(String key, int seconds, V value) {
+        return redis.setex(SafeEncoder.encode(key), seconds, codec.encode(value));
+    }
+
+    /**
+     * 批量读取
+     *
+     * @param keys
+     * @return 与keys一一对应，不存在的为null；redis出错时全部为null
+     */
+    public List<V> mget(String... keys) {
+        List<byte[]> values = redis.mget(SafeEncoder.encodeMany(keys));
+        List<V> result = new ArrayList<>(keys.length);
+        // 降级返回null或空列表，仍保证每个key一个结果
+        if (values == null || values.size() != keys.length) {
+            for (int i = 0; i < keys.length; i++) {
+                result.add(null);
+            }
+            return result;
+        }
+        for (byte[] value : values) {
+            result.add(decode(value));
+        }
+        return result;
+    }
+
+    public V hget(String key, String field) {
+        return decode(redis.hget(SafeEncoder.encode(key), SafeEncoder.encode(field)));
+    }
+
+    public Long hset(String key, String field, V value) {
+        return redis.hset(SafeEncoder.encode(key), SafeEncoder.encode(field), codec.encode(value));
+    }
+
+    /**
+     * @param key
+     * @return field到值，redis出错时返回null
+     */
+    public Map<String, V> hgetAll(String key) {
+        Map<byte[], byte[]> values = redis.hgetAll(SafeEncoder.encode(key));
+        if (values == null) {
+            return null;
+        }
+        Map<String, V> result = new LinkedHashMap<>(values.size() * 4 / 3 + 1);
+        for (Map.Entry<byte[], byte[]> entry : values.entrySet()) {
+            result.put(SafeEncoder.encode(entry.getKey()), decode(entry.getValue()));
+        }
+        return result;
+    }
+
+    public Long del(String key) {
+        return redis.del(SafeEncoder.encode(key));
+    }
+
+    public Boolean exists(String key) {
+        return redis.exists(SafeEncoder.encode(key));
+    }
+
+    public RedisCodec<V> getCodec() {
+        return codec;
+    }
+
+    /**
+     * 降级时代理返回长度0的数组，与null一样按不存在处理
+     */
+    private V decode(byte[] bytes) {
+        return bytes == null || bytes.length == 0 ? null : codec.decode(bytes);
+    }
+}
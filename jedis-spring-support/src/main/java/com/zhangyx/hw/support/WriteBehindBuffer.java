@@ -0,0 +1,520 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.configuration.Configuration;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPipeline;
+import redis.clients.jedis.ShardedJedisPool;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.SafeEncoder;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 计数命令的写后合并
+ * <p>
+ * incr/incrBy/decr/decrBy/hincrBy/zincrby不再同步发送，按key(和field/member)在本地累加，
+ * 由后台线程定时或在待发送key达到上限时合并成管道批量发送。累加缓冲按线程分段，每个计数用CAS更新，不加锁。
+ * <p>
+ * 配置项:
+ * <pre>
+ * writeBehind.enable=false
+ * writeBehind.flushMillis=100             定时刷新间隔
+ * writeBehind.maxKeys=10000               待发送的key达到该数量时提前刷新
+ * writeBehind.batchSize=500               单个管道最多命令数
+ * writeBehind.shutdownTimeoutMillis=5000  关闭时最后一次刷新的最长等待时间
+ * </pre>
+ * 开启后这些命令返回0而不是计数的新值；进程崩溃时会丢失未刷新的增量，借不到连接时增量放回缓冲区下次重试，
+ * 发送途中连接断开的批次不重试(避免重复累加)，只记录日志。逐条检查管道的回复: 集群中收到MOVED/ASK的增量
+ * 改由JedisCluster发送，WRONGTYPE等数据错误计入丢弃数并记录日志
+ */
+@Slf4j
+class WriteBehindBuffer implements Closeable {
+    private static final int INCR = 0;
+    private static final int HINCR = 1;
+    private static final int ZINCR = 2;
+    /**
+     * 已被刷新线程取走的计数，写入方看到后换一个新计数；double用加法不会产生的signaling NaN
+     */
+    private static final long SEALED = Long.MIN_VALUE;
+    private static final long SEALED_DOUBLE = 0x7ff0000000000001L;
+    private static final Long ZERO = 0L;
+    private static final Double ZERO_DOUBLE = 0.0;
+
+    private final ConcurrentHashMap<Target, AtomicLong>[] stripes;
+    private final int mask;
+    private final Sink sink;
+    private final int maxKeys;
+    private final int batchSize;
+    private final long shutdownTimeoutMillis;
+    private final ScheduledExecutorService flusher;
+    private final AtomicInteger pendingKeys = new AtomicInteger();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final LongAdder buffered = new LongAdder();
+    private final LongAdder flushed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+
+    @SuppressWarnings("unchecked") // 不能创建泛型数组，通配符数组里只放入ConcurrentHashMap<Target, AtomicLong>
+    WriteBehindBuffer(Sink sink, Configuration config, String name) {
+        this.sink = sink;
+        this.maxKeys = Math.max(1, config.getInt("writeBehind.maxKeys", 10000));
+        this.batchSize = Math.max(1, config.getInt("writeBehind.batchSize", 500));
+        this.shutdownTimeoutMillis = config.getLong("writeBehind.shutdownTimeoutMillis", 5000);
+        int size = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1);
+        this.stripes = (ConcurrentHashMap<Target, AtomicLong>[]) new ConcurrentHashMap<?, ?>[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ConcurrentHashMap<>();
+        }
+        this.mask = size - 1;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("redis-write-behind-" + name).build());
+        long flushMillis = Math.max(1, config.getLong("writeBehind.flushMillis", 100));
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 计数命令写入缓冲区后立即返回0，其他命令和关闭后的调用直接执行
+     *
+     * @param method
+     * @param args
+     * @param next
+     * @return
+     * @throws Throwable
+     */
+    Object execute(Method method, Object[] args, CommandInvoker next) throws Throwable {
+        if (closed || args == null || args.length == 0 || !(args[0] instanceof String || args[0] instanceof byte[])) {
+            return next.invoke(method, args);
+        }
+        byte[] key = bytes(args[0]);
+        switch (method.getName()) {
+            case "incr":
+                add(new Target(INCR, key, null), 1);
+                return ZERO;
+            case "decr":
+                add(new Target(INCR, key, null), -1);
+                return ZERO;
+            case "incrBy":
+                add(new Target(INCR, key, null), (Long) args[1]);
+                return ZERO;
+            case "decrBy":
+                add(new Target(INCR, key, null), -(Long) args[1]);
+                return ZERO;
+            case "hincrBy":
+                add(new Target(HINCR, key, bytes(args[1])), (Long) args[2]);
+                return ZERO;
+            case "zincrby":
+                if (args.length == 3) {
+                    addDouble(new Target(ZINCR, key, bytes(args[2])), (Double) args[1]);
+                    return ZERO_DOUBLE;
+                }
+                return next.invoke(method, args);
+            default:
+                return next.invoke(method, args);
+        }
+    }
+
+    private void add(Target target, long delta) {
+        ConcurrentHashMap<Target, AtomicLong> stripe = stripe();
+        for (; ; ) {
+            AtomicLong cell = cell(stripe, target);
+            long value = cell.get();
+            if (value == SEALED) {
+                stripe.remove(target, cell);
+            } else if (cell.compareAndSet(value, value + delta)) {
+                buffered.increment();
+                return;
+            }
+        }
+    }
+
+    private void addDouble(Target target, double delta) {
+        ConcurrentHashMap<Target, AtomicLong> stripe = stripe();
+        for (; ; ) {
+            AtomicLong cell = cell(stripe, target);
+            long bits = cell.get();
+            if (bits == SEALED_DOUBLE) {
+                stripe.remove(target, cell);
+            } else if (cell.compareAndSet(bits, Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + delta))) {
+                buffered.increment();
+                return;
+            }
+        }
+    }
+
+    private ConcurrentHashMap<Target, AtomicLong> stripe() {
+        return stripes[(int) Thread.currentThread().getId() & mask];
+    }
+
+    private AtomicLong cell(ConcurrentHashMap<Target, AtomicLong> stripe, Target target) {
+        AtomicLong cell = stripe.get(target);
+        if (cell != null) {
+            return cell;
+        }
+        // long的0和double的0.0位模式相同
+        AtomicLong created = new AtomicLong();
+        cell = stripe.putIfAbsent(target, created);
+        if (cell != null) {
+            return cell;
+        }
+        if (pendingKeys.incrementAndGet() >= maxKeys && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flushQuietly);
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false);
+            }
+        }
+        return created;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("cannot flush write-behind buffer", e);
+        }
+    }
+
+    /**
+     * 取走所有分段的计数，同一目标合并成一条命令后分批发送；只在刷新线程上执行
+     */
+    void flush() {
+        flushRequested.set(false);
+        Map<Target, Increment> merged = new LinkedHashMap<>();
+        for (ConcurrentHashMap<Target, AtomicLong> stripe : stripes) {
+            for (Map.Entry<Target, AtomicLong> entry : stripe.entrySet()) {
+                Target target = entry.getKey();
+                boolean isDouble = target.type == ZINCR;
+                long value = entry.getValue().getAndSet(isDouble ? SEALED_DOUBLE : SEALED);
+                stripe.remove(target, entry.getValue());
+                if (value == (isDouble ? SEALED_DOUBLE : SEALED)) {
+                    continue;
+                }
+                pendingKeys.decrementAndGet();
+                Increment increment = merged.computeIfAbsent(target, Increment::new);
+                if (isDouble) {
+                    increment.doubleDelta += Double.longBitsToDouble(value);
+                } else {
+                    increment.delta += value;
+                }
+            }
+        }
+        List<Increment> increments = new ArrayList<>(merged.size());
+        for (Increment increment : merged.values()) {
+            if (increment.delta != 0 || increment.doubleDelta != 0) {
+                increments.add(increment);
+            }
+        }
+        for (List<Increment> batch : Lists.partition(increments, batchSize)) {
+            sink.write(batch, this::requeue, this::drop);
+        }
+        flushed.add(increments.size());
+    }
+
+    /**
+     * 没有发出的增量放回缓冲区
+     */
+    private void requeue(Increment increment) {
+        flushed.decrement();
+        if (increment.target.type == ZINCR) {
+            addDouble(increment.target, increment.doubleDelta);
+        } else {
+            add(increment.target, increment.delta);
+        }
+        buffered.decrement();
+    }
+
+    /**
+     * 服务端拒绝的增量不再重试
+     */
+    private void drop(Increment increment, JedisException e) {
+        flushed.decrement();
+        dropped.increment();
+        log.warn("drop write-behind counter {}: {}", SafeEncoder.encode(increment.target.key), e.getMessage());
+    }
+
+    long getBufferedCount() {
+        return buffered.sum();
+    }
+
+    long getFlushedCount() {
+        return flushed.sum();
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    int getPendingKeys() {
+        return pendingKeys.get();
+    }
+
+    /**
+     * 停止接收新的增量，最多等待shutdownTimeoutMillis完成最后一次刷新
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Future<?> last;
+        try {
+            last = flusher.submit(this::flushQuietly);
+        } catch (RejectedExecutionException e) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            last.get(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("write-behind flush not finished in {}ms", shutdownTimeoutMillis);
+        }
+        flusher.shutdownNow();
+        int left = pendingKeys.get();
+        if (left > 0) {
+            dropped.add(left);
+            log.warn("drop {} write-behind counters on close", left);
+        }
+    }
+
+    private static byte[] bytes(Object value) {
+        return value instanceof byte[] ? (byte[]) value : SafeEncoder.encode((String) value);
+    }
+
+    /**
+     * 单节点: 一个管道发送整批
+     *
+     * @param pool
+     * @return
+     */
+    static Sink poolSink(JedisPool pool) {
+        return (batch, requeue, drop) -> write(pool, batch, requeue, drop);
+    }
+
+    private static void write(JedisPool pool, List<Increment> batch, Consumer<Increment> requeue,
+                              BiConsumer<Increment, JedisException> failed) {
+        Jedis borrowed = borrow(pool::getResource, batch, requeue);
+        if (borrowed != null) {
+            List<Response<?>> responses;
+            try (Jedis jedis = borrowed) {
+                Pipeline pipeline = jedis.pipelined();
+                responses = send(pipeline, batch);
+                pipeline.sync();
+            } catch (JedisException e) {
+                log.error("cannot flush {} write-behind counters", batch.size(), e);
+                return;
+            }
+            check(batch, responses, failed);
+        }
+    }
+
+    /**
+     * 分片模式: ShardedJedisPipeline按key分到各分片
+     *
+     * @param pool
+     * @return
+     */
+    static Sink shardedSink(ShardedJedisPool pool) {
+        return (batch, requeue, drop) -> {
+            ShardedJedis borrowed = borrow(pool::getResource, batch, requeue);
+            if (borrowed != null) {
+                List<Response<?>> responses;
+                try (ShardedJedis jedis = borrowed) {
+                    ShardedJedisPipeline pipeline = jedis.pipelined();
+                    responses = send(pipeline, batch);
+                    pipeline.sync();
+                } catch (JedisException e) {
+                    log.error("cannot flush {} write-behind counters", batch.size(), e);
+                    return;
+                }
+                check(batch, responses, drop);
+            }
+        };
+    }
+
+    /**
+     * 集群模式: 按slot所在master分组，每个master一个管道；slot未知或被重定向的命令由JedisCluster逐条发送
+     *
+     * @param cluster
+     * @param topology
+     * @return
+     */
+    static Sink clusterSink(JedisCluster cluster, ClusterTopology topology) {
+        return (batch, requeue, drop) -> {
+            Map<JedisPool, List<Increment>> groups = new LinkedHashMap<>();
+            for (Increment increment : batch) {
+                JedisPool pool = topology.getMaster(JedisClusterCRC16.getSlot(increment.target.key));
+                if (pool != null) {
+                    groups.computeIfAbsent(pool, k -> new ArrayList<>()).add(increment);
+                } else {
+                    send(cluster, increment, drop);
+                }
+            }
+            groups.forEach((pool, group) -> write(pool, group, requeue, (increment, e) -> {
+                if (e instanceof JedisRedirectionException) {
+                    // 节点没有执行被重定向的命令，重发不会重复累加
+                    topology.redirected((JedisRedirectionException) e);
+                    send(cluster, increment, drop);
+                } else {
+                    drop.accept(increment, e);
+                }
+            }));
+        };
+    }
+
+    private static <R> R borrow(Supplier<R> borrow, List<Increment> batch,
+                                Consumer<Increment> requeue) {
+        try {
+            return borrow.get();
+        } catch (JedisException e) {
+            log.warn("cannot get connection, retry {} write-behind counters later: {}", batch.size(), e.getMessage());
+            batch.forEach(requeue);
+            return null;
+        }
+    }
+
+    private static List<Response<?>> send(PipelineBase pipeline, List<Increment> batch) {
+        List<Response<?>> responses = new ArrayList<>(batch.size());
+        for (Increment increment : batch) {
+            Target target = increment.target;
+            switch (target.type) {
+                case INCR:
+                    responses.add(pipeline.incrBy(target.key, increment.delta));
+                    break;
+                case HINCR:
+                    responses.add(pipeline.hincrBy(target.key, target.field, increment.delta));
+                    break;
+                default:
+                    responses.add(pipeline.zincrby(target.key, increment.doubleDelta, target.field));
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * sync不抛出单条命令的错误回复，逐条取出
+     */
+    private static void check(List<Increment> batch, List<Response<?>> responses,
+                              BiConsumer<Increment, JedisException> failed) {
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                responses.get(i).get();
+            } catch (JedisDataException e) {
+                failed.accept(batch.get(i), e);
+            }
+        }
+    }
+
+    private static void send(JedisCluster cluster, Increment increment, BiConsumer<Increment, JedisException> drop) {
+        Target target = increment.target;
+        try {
+            switch (target.type) {
+                case INCR:
+                    cluster.incrBy(target.key, increment.delta);
+                    break;
+                case HINCR:
+                    cluster.hincrBy(target.key, target.field, increment.delta);
+                    break;
+                default:
+                    cluster.zincrby(target.key, increment.doubleDelta, target.field);
+            }
+        } catch (JedisDataException e) {
+            drop.accept(increment, e);
+        } catch (JedisException e) {
+            log.error("cannot flush write-behind counter", e);
+        }
+    }
+
+    /**
+     * 发送合并后的增量
+     */
+    @FunctionalInterface
+    interface Sink {
+        /**
+         * @param batch
+         * @param requeue 没有发出的增量交给它放回缓冲区
+         * @param drop    服务端返回错误的增量交给它计数并记录
+         */
+        void write(List<Increment> batch, Consumer<Increment> requeue, BiConsumer<Increment, JedisException> drop);
+    }
+
+    /**
+     * 计数的目标: key，以及hash的field或sorted set的member
+     */
+    private static final class Target {
+        private final int type;
+        private final byte[] key;
+        private final byte[] field;
+        private final int hash;
+
+        private Target(int type, byte[] key, byte[] field) {
+            this.type = type;
+            this.key = key;
+            this.field = field;
+            this.hash = 31 * (31 * type + Arrays.hashCode(key)) + Arrays.hashCode(field);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Target)) {
+                return false;
+            }
+            Target other = (Target) o;
+            return hash == other.hash && type == other.type && Arrays.equals(key, other.key)
+                    && Arrays.equals(field, other.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * 一次刷新中同一目标合并后的增量
+     */
+    static final class Increment {
+        private final Target target;
+        private long delta;
+        private double doubleDelta;
+
+        private Increment(Target target) {
+            this.target = target;
+        }
+    }
+}
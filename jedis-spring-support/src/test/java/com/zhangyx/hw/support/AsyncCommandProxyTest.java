@@ -0,0 +1,81 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.reflect.Reflection;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncCommandProxyTest {
+
+  private static AsyncMergeJedisCmd create(Executor executor) {
+    MergeJedisCmd sync = Reflection.newProxy(MergeJedisCmd.class, (proxy, method, args) -> {
+      if (method.getName().equals("get")) {
+        return "v:" + args[0];
+      }
+      throw new IllegalStateException("broken");
+    });
+    return Reflection.newProxy(AsyncMergeJedisCmd.class, new AsyncCommandProxy(AsyncMergeJedisCmd.class,
+        MergeJedisCmd.class, sync, new JedisPoolFactoryBean(), executor));
+  }
+
+  @Test
+  public void testInvoke() throws Exception {
+    AsyncMergeJedisCmd async = create(Runnable::run);
+    assertEquals("v:k", async.get("k").get());
+    assertEquals("v:k", async.submit(cmd -> cmd.get("k")).get());
+    // 与同步代理一致，失败时结果为null
+    assertNull(async.incr("k").get());
+  }
+
+  @Test
+  public void testRejected() throws Exception {
+    AsyncMergeJedisCmd async = create(command -> {
+      throw new RejectedExecutionException();
+    });
+    CompletableFuture<String> value = async.get("k");
+    assertEquals("", value.get());
+    assertEquals(Long.valueOf(0), async.incr("k").get());
+    assertNull(async.submit(cmd -> cmd.get("k")).get());
+  }
+
+  @Test
+  public void testPipelinedUsesBreaker() throws Exception {
+    AsyncJedisPoolFactoryBean factory;
+    try (RespServer server = new RespServer()) {
+      factory = TestFactories.async(TestFactories.servers(server) + "pipeline.enable=true\nbreaker.enable=true\n"
+          + "breaker.minCalls=4\nbreaker.openMillis=60000\n");
+      AsyncMergeJedisCmd async = factory.getObject();
+      assertEquals("OK", async.set("k", "v").get());
+    }
+    try {
+      // 节点不可用，管道上的失败使熔断器打开，之后直接返回默认值
+      AsyncMergeJedisCmd async = factory.getObject();
+      String value = null;
+      for (int i = 0; i < 20 && value == null; i++) {
+        value = async.get("k").get(5, TimeUnit.SECONDS);
+      }
+      assertEquals("", value);
+      DefaultRedisMetrics metrics = (DefaultRedisMetrics) factory.getProvider().getMetrics();
+      assertTrue(metrics.getFallbackCounts().get("get") > 0);
+    } finally {
+      factory.destroy();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownMethod() {
+    new AsyncCommandProxy(Broken.class, MergeJedisCmd.class,
+        Reflection.newProxy(MergeJedisCmd.class, (proxy, method, args) -> null), new JedisPoolFactoryBean(), Runnable::run);
+  }
+
+  interface Broken {
+    CompletableFuture<String> notACommand(String key);
+  }
+}
@@ -0,0 +1,100 @@
+package com.zhangyx.hw.support;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Test;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+  private static CircuitBreaker.Settings settings(long openMillis) {
+    BaseConfiguration config = new BaseConfiguration();
+    config.setProperty("breaker.minCalls", 4);
+    config.setProperty("breaker.errorRate", 0.5);
+    config.setProperty("breaker.slowCallMillis", 100);
+    config.setProperty("breaker.openMillis", openMillis);
+    config.setProperty("breaker.halfOpenCalls", 2);
+    return new CircuitBreaker.Settings(config);
+  }
+
+  @Test
+  public void testTripOnErrorRate() {
+    DefaultRedisMetrics metrics = new DefaultRedisMetrics();
+    CircuitBreaker breaker = new CircuitBreaker("a:6379/0", settings(60000), metrics);
+
+    breaker.onResult(1000, true);
+    breaker.onResult(1000, false);
+    breaker.onResult(1000, true);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+    breaker.onResult(1000, false);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire());
+    assertEquals("OPEN", metrics.getBreakerStates().get("a:6379/0"));
+    assertEquals(1L, (long) metrics.getBreakerOpenCounts().get("a:6379/0"));
+  }
+
+  @Test
+  public void testTripOnSlowCalls() {
+    CircuitBreaker breaker = new CircuitBreaker("a:6379/0", settings(60000), RedisMetrics.NOOP);
+    long slow = TimeUnit.MILLISECONDS.toNanos(200);
+    for (int i = 0; i < 4; i++) {
+      breaker.onResult(slow, true);
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpen() throws InterruptedException {
+    DefaultRedisMetrics metrics = new DefaultRedisMetrics();
+    CircuitBreaker breaker = new CircuitBreaker("a:6379/0", settings(50), metrics);
+    for (int i = 0; i < 4; i++) {
+      breaker.onResult(1000, false);
+    }
+    assertFalse(breaker.tryAcquire());
+
+    Thread.sleep(80);
+    assertTrue(breaker.tryAcquire());
+    assertTrue(breaker.tryAcquire());
+    assertFalse(breaker.tryAcquire());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+    breaker.onResult(1000, false);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(2L, (long) metrics.getBreakerOpenCounts().get("a:6379/0"));
+
+    Thread.sleep(80);
+    assertTrue(breaker.tryAcquire());
+    assertTrue(breaker.tryAcquire());
+    breaker.onResult(1000, true);
+    breaker.onResult(1000, true);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertEquals("CLOSED", metrics.getBreakerStates().get("a:6379/0"));
+
+    // 关闭后重新计数，之前的失败不再计入
+    breaker.onResult(1000, false);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testIsFailure() {
+    assertTrue(CircuitBreaker.isFailure(new JedisConnectionException("refused")));
+    assertFalse(CircuitBreaker.isFailure(new JedisDataException("WRONGTYPE")));
+  }
+
+  @Test
+  public void testRegistry() {
+    CircuitBreakers breakers = new CircuitBreakers(settings(50), RedisMetrics.NOOP);
+    assertNull(breakers.get(RedisMetrics.UNKNOWN_NODE));
+    assertNull(breakers.get(RedisMetrics.MULTI_NODE));
+    assertSame(breakers.get("a:6379/0"), breakers.get("a:6379/0"));
+  }
+}
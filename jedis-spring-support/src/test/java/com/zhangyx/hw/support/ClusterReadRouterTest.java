@@ -0,0 +1,137 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterReadRouterTest {
+
+  @Test
+  public void testReadFrom() {
+    assertEquals(ClusterReadRouter.ReadFrom.MASTER, ClusterReadRouter.ReadFrom.of(null));
+    assertEquals(ClusterReadRouter.ReadFrom.REPLICA, ClusterReadRouter.ReadFrom.of("replica"));
+    assertEquals(ClusterReadRouter.ReadFrom.REPLICA_PREFERRED, ClusterReadRouter.ReadFrom.of("replicaPreferred"));
+    assertEquals(ClusterReadRouter.ReadFrom.NEAREST, ClusterReadRouter.ReadFrom.of("NEAREST"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownReadFrom() {
+    ClusterReadRouter.ReadFrom.of("slave");
+  }
+
+  @Test
+  public void testNearestRemeasuresSlowNode() throws Exception {
+    List<RespServer> servers = RespServer.cluster(1);
+    RespServer replica = servers.get(0).addReplica();
+    JedisClusterFactoryBean factory = TestFactories.cluster("cluster_enable=true\ncluster.readFrom=nearest\n"
+        + TestFactories.servers(servers.get(0)));
+    try {
+      ClusterReadRouter router = factory.getBackend().getClusterReadRouter();
+      String master = servers.get(0).getHost() + ':' + servers.get(0).getPort();
+      String slow = replica.getHost() + ':' + replica.getPort();
+      router.record(master, 1000);
+      router.record(slow, 1000000);
+      assertFalse(router.select("key").replica);
+
+      // 副本恢复后只有偶尔的随机读能测到，平均耗时逐步下降后成为最近的节点
+      for (int i = 0; i < 4000; i++) {
+        ClusterReadRouter.Route route = router.select("key");
+        router.record(route.node, route.replica ? 100 : 1000);
+      }
+      int replicaReads = 0;
+      for (int i = 0; i < 100; i++) {
+        if (router.select("key").replica) {
+          replicaReads++;
+        }
+      }
+      assertTrue(replicaReads > 90);
+    } finally {
+      factory.destroy();
+      for (RespServer server : servers) {
+        server.close();
+      }
+      replica.close();
+    }
+  }
+
+  @Test
+  public void testReadFromReplica() throws Exception {
+    List<RespServer> servers = RespServer.cluster(2);
+    RespServer replica0 = servers.get(0).addReplica();
+    RespServer replica1 = servers.get(1).addReplica();
+    JedisClusterFactoryBean factory = TestFactories.cluster("cluster_enable=true\ncluster.readFrom=replica\n"
+        + TestFactories.servers(servers.get(0)));
+    try {
+      MergeJedisCmd cmd = factory.getObject();
+      for (int i = 0; i < 20; i++) {
+        cmd.set("key" + i, "v" + i);
+      }
+      long masterCommands = servers.get(0).getCommandCount() + servers.get(1).getCommandCount();
+      for (int i = 0; i < 20; i++) {
+        assertEquals("v" + i, cmd.get("key" + i));
+      }
+      assertEquals(masterCommands, servers.get(0).getCommandCount() + servers.get(1).getCommandCount());
+      assertTrue(replica0.getCommandCount() > 0);
+      assertTrue(replica1.getCommandCount() > 0);
+      assertFalse(((DefaultRedisMetrics) factory.getMetrics()).getCommandCounts().containsKey(
+          "get@127.0.0.1:" + servers.get(0).getPort()));
+    } finally {
+      factory.destroy();
+      for (RespServer server : servers) {
+        server.close();
+      }
+      replica0.close();
+      replica1.close();
+    }
+  }
+
+  @Test
+  public void testScanAndRemovedReplica() throws Exception {
+    List<RespServer> servers = RespServer.cluster(2);
+    RespServer replica0 = servers.get(0).addReplica();
+    RespServer replica1 = servers.get(1).addReplica();
+    JedisClusterFactoryBean factory = TestFactories.cluster("cluster_enable=true\ncluster.refreshMillis=0\n"
+        + "cluster.readFrom=replicaPreferred\n" + TestFactories.servers(servers.get(0)));
+    try {
+      MergeJedisCmd cmd = factory.getObject();
+      cmd.hset("h", "f", "v");
+      // 游标只在同一个节点上有效，SCAN系列读master
+      long replicaCommands = replica0.getCommandCount() + replica1.getCommandCount();
+      assertEquals("v", cmd.hscan("h", "0").getResult().get(0).getValue());
+      assertEquals(replicaCommands, replica0.getCommandCount() + replica1.getCommandCount());
+
+      for (int i = 0; i < 20; i++) {
+        assertNull(cmd.get("key" + i));
+      }
+      ClusterReadRouter router = factory.getBackend().getClusterReadRouter();
+      List<Pool<Jedis>> pools = new ArrayList<>(router.getReplicaPools());
+      assertEquals(2, pools.size());
+      servers.get(1).removeReplica(replica1);
+      factory.getBackend().getClusterTopology().refresh();
+      // 只关闭被移除的副本的连接池
+      assertEquals(1, router.getReplicaPools().size());
+      assertEquals(1, pools.stream().filter(Pool::isClosed).count());
+      assertFalse(router.getReplicaPools().iterator().next().isClosed());
+      long removedCommands = replica1.getCommandCount();
+      for (int i = 0; i < 20; i++) {
+        assertNull(cmd.get("key" + i));
+      }
+      assertEquals(removedCommands, replica1.getCommandCount());
+    } finally {
+      factory.destroy();
+      for (RespServer server : servers) {
+        server.close();
+      }
+      replica0.close();
+      replica1.close();
+    }
+  }
+}
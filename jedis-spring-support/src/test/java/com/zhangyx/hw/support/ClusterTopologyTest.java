@@ -0,0 +1,122 @@
+package com.zhangyx.hw.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.util.JedisClusterCRC16;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterTopologyTest {
+  private List<RespServer> servers;
+  private JedisClusterFactoryBean factory;
+
+  @Before
+  public void setUp() throws Exception {
+    servers = RespServer.cluster(2);
+    factory = TestFactories.cluster("cluster_enable=true\ncluster.refreshMillis=0\n" + TestFactories.servers(servers.get(0)));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    factory.destroy();
+    for (RespServer server : servers) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testMovedUpdatesSingleSlot() throws Exception {
+    MergeJedisCmd cmd = factory.getObject();
+    ClusterTopology topology = factory.getBackend().getClusterTopology();
+    String key = "key0";
+    int slot = JedisClusterCRC16.getSlot(key);
+    assertEquals("OK", cmd.set(key, "v"));
+
+    // 交换两个节点负责的slot，模拟迁移
+    RespServer.assignSlots(Arrays.asList(servers.get(1), servers.get(0)));
+    String owner = servers.get(slot < 8192 ? 1 : 0).getHost() + ':' + servers.get(slot < 8192 ? 1 : 0).getPort();
+
+    assertEquals("OK", cmd.set(key, "v2"));
+    assertEquals("v2", cmd.get(key));
+    assertEquals(owner, topology.getMasterName(slot));
+
+    DefaultRedisMetrics metrics = (DefaultRedisMetrics) factory.getMetrics();
+    assertEquals(Long.valueOf(1), metrics.getRedirectCounts().get("MOVED@" + owner));
+    // 后台刷新后整张表都已更新
+    for (int i = 0; i < 50 && metrics.getTopologyRefreshCount() < 2; i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(metrics.getTopologyRefreshCount() >= 2);
+    assertEquals(owner, topology.getMasterName(slot));
+  }
+
+  @Test
+  public void testScatterRetriesOnlyMovedSlots() throws Exception {
+    MergeJedisCmd cmd = factory.getObject();
+    String stay = key(8192, 10922);
+    String moved = key(10922, 16384);
+    assertEquals("OK", cmd.mset(stay, "1", moved, "1"));
+
+    // 第二个节点的后半段slot迁到新节点，同一管道里只有moved收到MOVED
+    try (RespServer added = new RespServer()) {
+      RespServer.assignSlots(Arrays.asList(servers.get(0), servers.get(1), added));
+      try (Jedis jedis = new Jedis(added.getHost(), added.getPort())) {
+        jedis.set(moved, "1");
+      }
+      assertEquals(Long.valueOf(2), cmd.del(stay, moved));
+      assertEquals(Long.valueOf(0), cmd.exists(stay, moved));
+    }
+  }
+
+  @Test
+  public void testUnknownNodeGetsItsOwnPool() throws Exception {
+    MergeJedisCmd cmd = factory.getObject();
+    ClusterTopology topology = factory.getBackend().getClusterTopology();
+    String moved = key(10922, 16384);
+    int slot = JedisClusterCRC16.getSlot(moved);
+    try (RespServer added = new RespServer()) {
+      String name = added.getHost() + ':' + added.getPort();
+      RespServer.assignSlots(Arrays.asList(servers.get(0), servers.get(1), added));
+      topology.refresh();
+
+      // JedisCluster还没有访问过新节点，slot仍然指向可用的连接池
+      JedisPool pool = topology.getMaster(slot);
+      assertNotNull(pool);
+      assertEquals(name, topology.getMasterName(slot));
+      try (Jedis jedis = pool.getResource()) {
+        assertEquals("OK", jedis.set(moved, "v"));
+      }
+      assertEquals(1, topology.getExtraPools().size());
+
+      // 命令直接发往自建的连接池；JedisCluster随后认识了新节点也继续使用，已经取到它的命令不受影响
+      assertEquals("v", cmd.get(moved));
+      assertEquals("v", factory.getBackend().getJedisCluster().get(moved));
+      topology.refresh();
+      assertSame(pool, topology.getMaster(slot));
+
+      // 缩容后关闭自建的连接池
+      RespServer.assignSlots(servers);
+      topology.refresh();
+      assertTrue(topology.getExtraPools().isEmpty());
+      assertTrue(pool.isClosed());
+    }
+  }
+
+  private static String key(int fromSlot, int toSlot) {
+    for (int i = 0; ; i++) {
+      int slot = JedisClusterCRC16.getSlot("key" + i);
+      if (slot >= fromSlot && slot < toSlot) {
+        return "key" + i;
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandBatchTest {
+
+  private static final String BATCH = "batch.pipelineSize=100\n";
+
+  private static void writeAndRead(ConfigruableProvider factory, List<Object> writes, List<Object> reads) {
+    assertEquals(1000, writes.size());
+    for (Object result : writes) {
+      assertEquals("OK", result);
+    }
+    assertEquals(2000, reads.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals("v" + i, reads.get(i * 2));
+      assertEquals(Long.valueOf(i + 1), reads.get(i * 2 + 1));
+    }
+  }
+
+  @Test
+  public void testPool() throws Exception {
+    try (RespServer server = new RespServer()) {
+      JedisPoolFactoryBean factory = TestFactories.pool(BATCH + TestFactories.servers(server));
+      try {
+        long before = server.getCommandCount();
+        List<Object> writes = factory.batch(cmd -> {
+          for (int i = 0; i < 1000; i++) {
+            cmd.set("key" + i, "v" + i);
+          }
+        });
+        List<Object> reads = factory.batch(cmd -> {
+          for (int i = 0; i < 1000; i++) {
+            cmd.get("key" + i);
+            cmd.incrBy("counter", 1);
+          }
+        });
+        writeAndRead(factory, writes, reads);
+        assertEquals(3000, server.getCommandCount() - before);
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testSharded() throws Exception {
+    try (RespServer a = new RespServer(); RespServer b = new RespServer()) {
+      JedisPoolFactoryBean factory = TestFactories.pool(BATCH + TestFactories.servers(a, b));
+      try {
+        List<Object> writes = factory.batch(cmd -> {
+          for (int i = 0; i < 1000; i++) {
+            cmd.set("key" + i, "v" + i);
+          }
+        });
+        List<Object> reads = factory.batch(cmd -> {
+          for (int i = 0; i < 1000; i++) {
+            cmd.get("key" + i);
+            cmd.incrBy("counter", 1);
+          }
+        });
+        writeAndRead(factory, writes, reads);
+        assertTrue(a.getCommandCount() > 500 && b.getCommandCount() > 500);
+        assertEquals("v7", factory.getObject().get("key7"));
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testClusterFollowsRedirect() throws Exception {
+    List<RespServer> servers = RespServer.cluster(3);
+    JedisClusterFactoryBean factory = TestFactories.cluster(BATCH + "cluster_enable=true\ncluster.refreshMillis=0\n"
+        + TestFactories.servers(servers.get(0)));
+    try {
+      List<Object> writes = factory.batch(cmd -> {
+        for (int i = 0; i < 1000; i++) {
+          cmd.set("key" + i, "v" + i);
+        }
+      });
+      // 交换slot，批量中的命令收到MOVED后由JedisCluster重试
+      RespServer.assignSlots(Arrays.asList(servers.get(2), servers.get(0), servers.get(1)));
+      List<Object> reads = factory.batch(cmd -> {
+        for (int i = 0; i < 1000; i++) {
+          cmd.set("key" + i, "v" + i);
+        }
+      });
+      for (Object result : reads) {
+        assertFalse(result instanceof JedisMovedDataException);
+        assertEquals("OK", result);
+      }
+      reads = factory.batch(cmd -> {
+        for (int i = 0; i < 1000; i++) {
+          cmd.get("key" + i);
+          cmd.incrBy("counter", 1);
+        }
+      });
+      writeAndRead(factory, writes, reads);
+    } finally {
+      factory.destroy();
+      for (RespServer server : servers) {
+        server.close();
+      }
+    }
+  }
+}
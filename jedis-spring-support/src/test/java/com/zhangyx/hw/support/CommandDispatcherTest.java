@@ -0,0 +1,97 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandDispatcherTest {
+
+  /**
+   * 不连接网络的Jedis，只用来验证分发结果
+   */
+  static class StubJedis extends Jedis {
+    @Override
+    public String get(String key) {
+      return "v:" + key;
+    }
+
+    @Override
+    public Long expire(String key, int seconds) {
+      return (long) seconds;
+    }
+
+    @Override
+    public Long del(String... keys) {
+      return (long) keys.length;
+    }
+
+    @Override
+    public Long incr(String key) {
+      throw new JedisDataException("ERR value is not an integer");
+    }
+
+    @Override
+    public String randomKey() {
+      return "random";
+    }
+
+    String[] subscribed;
+
+    @Override
+    public void subscribe(JedisPubSub jedisPubSub, String... channels) {
+      subscribed = channels;
+    }
+  }
+
+  @Test
+  public void testInvoke() throws Throwable {
+    CommandDispatcher dispatcher = CommandDispatcher.of(MergeJedisCmd.class, Jedis.class);
+    StubJedis jedis = new StubJedis();
+
+    Method get = MergeJedisCmd.class.getMethod("get", String.class);
+    assertTrue(dispatcher.supports(get));
+    assertEquals("v:k", dispatcher.invoke(jedis, get, new Object[]{"k"}));
+
+    Method expire = MergeJedisCmd.class.getMethod("expire", String.class, int.class);
+    assertEquals(30L, dispatcher.invoke(jedis, expire, new Object[]{"k", 30}));
+
+    Method del = MergeJedisCmd.class.getMethod("del", String[].class);
+    assertEquals(2L, dispatcher.invoke(jedis, del, new Object[]{new String[]{"a", "b"}}));
+
+    Method randomKey = MergeJedisCmd.class.getMethod("randomKey");
+    assertEquals("random", dispatcher.invoke(jedis, randomKey, null));
+    assertEquals("random", dispatcher.invoke(jedis, randomKey, new Object[0]));
+
+    // void方法走展开参数的MethodHandle
+    Method subscribe = MergeJedisCmd.class.getMethod("subscribe", JedisPubSub.class, String[].class);
+    assertEquals(null, dispatcher.invoke(jedis, subscribe, new Object[]{null, new String[]{"c"}}));
+    assertEquals("c", jedis.subscribed[0]);
+  }
+
+  @Test(expected = JedisDataException.class)
+  public void testExceptionNotWrapped() throws Throwable {
+    CommandDispatcher dispatcher = CommandDispatcher.of(MergeJedisCmd.class, Jedis.class);
+    dispatcher.invoke(new StubJedis(), MergeJedisCmd.class.getMethod("incr", String.class), new Object[]{"k"});
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testUnsupported() throws Throwable {
+    CommandDispatcher dispatcher = CommandDispatcher.of(MergeJedisCmd.class, ShardedJedis.class);
+    Method mget = MergeJedisCmd.class.getMethod("mget", String[].class);
+    assertFalse(dispatcher.supports(mget));
+    dispatcher.invoke(null, mget, new Object[]{new String[]{"a"}});
+  }
+
+  @Test
+  public void testCached() {
+    assertTrue(CommandDispatcher.of(MergeJedisCmd.class, Jedis.class) == CommandDispatcher.of(MergeJedisCmd.class, Jedis.class));
+  }
+}
@@ -0,0 +1,110 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigReloadTest {
+
+  @Test
+  public void testDrainDoesNotBlockDestroy() throws Exception {
+    try (RespServer a = new RespServer(); RespServer b = new RespServer()) {
+      String common = "reload.enable=true\nreload.intervalMillis=50\nreload.drainTimeoutMillis=60000\n";
+      File file = TestFactories.config(common + TestFactories.servers(a));
+      JedisPoolFactoryBean factory = TestFactories.init(new JedisPoolFactoryBean(), file);
+      JedisPool old = factory.getPool();
+      Jedis held = old.getResource();
+      try {
+        MergeJedisCmd cmd = factory.getObject();
+        try (FileWriter writer = new FileWriter(file)) {
+          writer.write(common + TestFactories.servers(b));
+        }
+        file.setLastModified(System.currentTimeMillis() + 1000);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (factory.getPool() == old && System.currentTimeMillis() < deadline) {
+          Thread.sleep(50);
+        }
+        assertNotSame(old, factory.getPool());
+        assertEquals("OK", cmd.set("k", "b"));
+        try (Jedis jedis = new Jedis(b.getHost(), b.getPort())) {
+          assertEquals("b", jedis.get("k"));
+        }
+
+        // 旧后端还在等借出的连接归还，连接仍然可用
+        Thread.sleep(200);
+        assertFalse(old.isClosed());
+        assertEquals("OK", held.set("k", "a"));
+
+        // 等待期间不持有锁，需要锁的调用不被阻塞
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+          Future<ScanIterator<String>> scan = executor.submit(
+              () -> factory.scanKeys(ScanOptions.builder().parallel(true).build()));
+          try (ScanIterator<String> keys = scan.get(2, TimeUnit.SECONDS)) {
+            assertEquals("k", keys.next());
+          }
+        } finally {
+          executor.shutdownNow();
+        }
+      } finally {
+        long start = System.currentTimeMillis();
+        factory.destroy();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+      }
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!old.isClosed() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      assertTrue(old.isClosed());
+      held.close();
+    }
+  }
+
+  @Test
+  public void testOldBackendServesInFlightCommands() throws Exception {
+    try (RespServer a = new RespServer(); RespServer b = new RespServer()) {
+      String common = "reload.enable=true\nreload.intervalMillis=50\nreload.drainTimeoutMillis=60000\n"
+          + "pipeline.enable=true\nnearCache.enable=true\n";
+      File file = TestFactories.config(common + TestFactories.servers(a));
+      JedisPoolFactoryBean factory = TestFactories.init(new JedisPoolFactoryBean(), file);
+      RedisBackend old = factory.getBackend();
+      Jedis held = old.getPool().getResource();
+      try {
+        assertEquals("OK", held.set("k", "a"));
+        try (FileWriter writer = new FileWriter(file)) {
+          writer.write(common + TestFactories.servers(b));
+        }
+        file.setLastModified(System.currentTimeMillis() + 1000);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (factory.getBackend() == old && System.currentTimeMillis() < deadline) {
+          Thread.sleep(50);
+        }
+        assertNotSame(old, factory.getBackend());
+        // 切换前读到旧后端的调用仍经过它的管道，等待归还期间不能失败
+        Thread.sleep(200);
+        assertEquals("a", old.getPipelineBatcher().submit(MergeJedisCmd.class.getMethod("get", String.class),
+            new Object[]{"k"}).get(5, TimeUnit.SECONDS));
+      } finally {
+        held.close();
+      }
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!old.getPool().isClosed() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      assertTrue(old.getPool().isClosed());
+      factory.destroy();
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.util.Hashing;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashRingTest {
+
+  private static List<ConsistentHashRing.Shard> shards(int... ports) {
+    List<ConsistentHashRing.Shard> shards = new ArrayList<>();
+    for (int port : ports) {
+      shards.add(new ConsistentHashRing.Shard(URI.create("redis://127.0.0.1:" + port), "127.0.0.1:" + port + "/0", 1));
+    }
+    return shards;
+  }
+
+  @Test
+  public void testIndexNamingMatchesShardedJedis() {
+    List<JedisShardInfo> legacy = new ArrayList<>();
+    for (int port = 7000; port < 7004; port++) {
+      legacy.add(new JedisShardInfo(URI.create("redis://127.0.0.1:" + port)));
+    }
+    ShardedJedis sharded = new ShardedJedis(legacy);
+    ConsistentHashRing ring = new ConsistentHashRing(shards(7000, 7001, 7002, 7003), 160, Hashing.MURMUR_HASH, false);
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(sharded.getShardInfo("key" + i).getPort(), ring.get("key" + i).getPort());
+    }
+  }
+
+  @Test
+  public void testAddressNamingMovesOnlyToNewShard() {
+    ConsistentHashRing before = new ConsistentHashRing(shards(7000, 7001, 7002), 160, Hashing.MURMUR_HASH, true);
+    // 新分片加在列表最前面，address命名与顺序无关
+    ConsistentHashRing after = new ConsistentHashRing(shards(7003, 7000, 7001, 7002), 160, Hashing.MURMUR_HASH, true);
+    int moved = 0;
+    for (int i = 0; i < 10000; i++) {
+      int from = before.get("key" + i).getPort();
+      int to = after.get("key" + i).getPort();
+      if (from != to) {
+        assertEquals(7003, to);
+        moved++;
+      }
+    }
+    assertTrue("moved " + moved, moved > 1500 && moved < 3500);
+
+    ConsistentHashRing indexAfter = new ConsistentHashRing(shards(7003, 7000, 7001, 7002), 160, Hashing.MURMUR_HASH, false);
+    ConsistentHashRing indexBefore = new ConsistentHashRing(shards(7000, 7001, 7002), 160, Hashing.MURMUR_HASH, false);
+    int indexMoved = 0;
+    for (int i = 0; i < 10000; i++) {
+      indexMoved += indexBefore.get("key" + i).getPort() != indexAfter.get("key" + i).getPort() ? 1 : 0;
+    }
+    assertTrue(indexMoved > moved * 2);
+  }
+
+  @Test
+  public void testWeight() {
+    List<ConsistentHashRing.Shard> shards = Arrays.asList(
+        new ConsistentHashRing.Shard(URI.create("redis://127.0.0.1:7000"), "127.0.0.1:7000/0", 3),
+        new ConsistentHashRing.Shard(URI.create("redis://127.0.0.1:7001"), "127.0.0.1:7001/0", 1));
+    ConsistentHashRing ring = new ConsistentHashRing(shards, 100, Hashing.MD5, true);
+    int heavy = 0;
+    for (int i = 0; i < 10000; i++) {
+      heavy += ring.get("key" + i).getPort() == 7000 ? 1 : 0;
+    }
+    assertTrue("heavy " + heavy, heavy > 6500 && heavy < 8500);
+  }
+
+  @Test
+  public void testDualReadAfterAddingShard() throws Exception {
+    try (RespServer a = new RespServer(); RespServer b = new RespServer(); RespServer c = new RespServer()) {
+      String common = "shard.naming=address\nshard.dualReadMillis=60000\nreload.enable=true\nreload.intervalMillis=50\n";
+      File file = TestFactories.config(common + TestFactories.servers(a, b));
+      JedisPoolFactoryBean factory = TestFactories.init(new JedisPoolFactoryBean(), file);
+      try {
+        MergeJedisCmd cmd = factory.getObject();
+        for (int i = 0; i < 200; i++) {
+          cmd.set("key" + i, "v" + i);
+        }
+        try (FileWriter writer = new FileWriter(file)) {
+          writer.write(common + TestFactories.servers(a, b, c));
+        }
+        file.setLastModified(System.currentTimeMillis() + 1000);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (factory.getShardMigrationStats().isEmpty() && System.currentTimeMillis() < deadline) {
+          Thread.sleep(50);
+        }
+        for (int i = 0; i < 200; i++) {
+          assertEquals("v" + i, cmd.get("key" + i));
+        }
+        assertTrue(factory.getShardMigrationStats().get("hits") > 0);
+        assertEquals(factory.getShardMigrationStats().get("reads"), factory.getShardMigrationStats().get("hits"));
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultRedisMetricsTest {
+
+  @Test
+  public void testHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 99; i++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+    }
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(50000, histogram.getMaxMicros());
+    assertEquals(128, histogram.getPercentileMicros(0.5));
+    assertEquals(128, histogram.getPercentileMicros(0.99));
+    assertEquals(50000, histogram.getPercentileMicros(1));
+    assertEquals((99 * 100 + 50000) / 100.0, histogram.getMeanMicros(), 0.001);
+
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentileMicros(0.99));
+  }
+
+  @Test
+  public void testBucket() {
+    assertEquals(0, LatencyHistogram.bucket(0));
+    assertEquals(1, LatencyHistogram.bucket(1));
+    assertEquals(2, LatencyHistogram.bucket(3));
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testRecord() {
+    DefaultRedisMetrics metrics = new DefaultRedisMetrics();
+    metrics.recordCommand("get", "127.0.0.1:6379/0", 1000, true);
+    metrics.recordCommand("get", "127.0.0.1:6379/0", 3000, false);
+    metrics.recordCommand("get", "127.0.0.1:6380/0", 1000, true);
+    metrics.recordBorrow(2000, true);
+    metrics.recordBorrow(3000000, false);
+    metrics.recordFallback("get");
+
+    assertEquals(Long.valueOf(2), metrics.getCommandCounts().get("get@127.0.0.1:6379/0"));
+    assertEquals(Long.valueOf(1), metrics.getCommandCounts().get("get@127.0.0.1:6380/0"));
+    assertEquals(Long.valueOf(1), metrics.getErrorCounts().get("get@127.0.0.1:6379/0"));
+    assertEquals(2.0, metrics.getMeanMicros().get("get@127.0.0.1:6379/0"), 0.001);
+    assertEquals(2, metrics.getBorrowCount());
+    assertEquals(1, metrics.getBorrowErrors());
+    assertEquals(3000, metrics.getBorrowMaxMicros());
+    assertEquals(Long.valueOf(1), metrics.getFallbackCounts().get("get"));
+    assertTrue(metrics.getLatency("get", "127.0.0.1:6380/0").getCount() == 1);
+
+    metrics.reset();
+    assertTrue(metrics.getCommandCounts().isEmpty());
+    assertNull(metrics.getLatency("get", "127.0.0.1:6380/0"));
+  }
+}
@@ -0,0 +1,115 @@
+package com.zhangyx.hw.support;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HotKeyDetectorTest {
+
+  private static JedisPoolFactoryBean factory(RespServer server, String extra) throws Exception {
+    return TestFactories.pool(TestFactories.servers(server) + "hotKey.enable=true\nhotKey.windowMillis=200\n" + extra);
+  }
+
+  @Test
+  public void testTopKeysPerNode() throws Exception {
+    try (RespServer server = new RespServer()) {
+      JedisPoolFactoryBean factory = factory(server, "hotKey.threshold=100\nhotKey.topN=2\n");
+      try {
+        MergeJedisCmd cmd = factory.getObject();
+        Map<String, Map<String, Long>> hotKeys = factory.getHotKeys();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (hotKeys.isEmpty() && System.currentTimeMillis() < deadline) {
+          for (int i = 0; i < 300; i++) {
+            cmd.get("hot");
+            cmd.hget("warm", "f");
+            cmd.get("cold" + i);
+          }
+          hotKeys = factory.getHotKeys();
+        }
+        Map<String, Long> keys = hotKeys.get("127.0.0.1:" + server.getPort() + "/0");
+        assertEquals(1, hotKeys.size());
+        assertEquals(2, keys.size());
+        assertTrue(keys.containsKey("hot"));
+        assertTrue(keys.containsKey("warm"));
+        assertTrue(factory.getHotKeyStats().get("sampled") > 0);
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testPromote() throws Exception {
+    try (RespServer server = new RespServer()) {
+      JedisPoolFactoryBean factory = factory(server, "hotKey.threshold=50\nhotKey.promote=true\nhotKey.promoteTtlMillis=5000\n");
+      try {
+        MergeJedisCmd cmd = factory.getObject();
+        cmd.set("hot", "v1");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (factory.getHotKeyStats().get("hotKeys") == 0 && System.currentTimeMillis() < deadline) {
+          cmd.get("hot");
+        }
+        cmd.get("hot");
+        long before = server.getCommandCount();
+        for (int i = 0; i < 100; i++) {
+          assertEquals("v1", cmd.get("hot"));
+        }
+        assertTrue(server.getCommandCount() - before < 10);
+        assertTrue(factory.getHotKeyStats().get("promotedHits") >= 90);
+
+        // 经过代理的写命令使本地结果失效
+        cmd.set("hot", "v2");
+        assertEquals("v2", cmd.get("hot"));
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testFallbackNotPromoted() throws Throwable {
+    BaseConfiguration config = new BaseConfiguration();
+    // 每次都计数，热点在后续窗口中不会因为没有采样而消失
+    config.setProperty("hotKey.sampleRate", 1);
+    config.setProperty("hotKey.threshold", 1);
+    config.setProperty("hotKey.windowMillis", 50);
+    config.setProperty("hotKey.promote", true);
+    config.setProperty("hotKey.promoteTtlMillis", 5000);
+    HotKeyDetector detector = new HotKeyDetector(config, "test", key -> "node");
+    try {
+      Method get = MergeJedisCmd.class.getMethod("get", String.class);
+      Object fallback = new ConfigruableProvider().findDefault(get);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (detector.getHotKeyCount() == 0 && System.currentTimeMillis() < deadline) {
+        detector.execute(get, new Object[]{"hot"}, (m, a) -> "v");
+        Thread.sleep(10);
+      }
+      assertEquals(1, detector.getHotKeyCount());
+      // 丢弃预热期间可能已缓存的结果
+      detector.written(MergeJedisCmd.class.getMethod("set", String.class, String.class), new Object[]{"hot", "v"});
+
+      // 熔断期间的默认值不进入本地缓存
+      AtomicInteger calls = new AtomicInteger();
+      for (int i = 0; i < 3; i++) {
+        assertSame(fallback, detector.execute(get, new Object[]{"hot"}, (m, a) -> {
+          calls.incrementAndGet();
+          return fallback;
+        }));
+      }
+      assertEquals(3, calls.get());
+      assertEquals("v", detector.execute(get, new Object[]{"hot"}, (m, a) -> "v"));
+      assertEquals("v", detector.execute(get, new Object[]{"hot"}, (m, a) -> {
+        throw new AssertionError("should be promoted");
+      }));
+    } finally {
+      detector.close();
+    }
+  }
+}
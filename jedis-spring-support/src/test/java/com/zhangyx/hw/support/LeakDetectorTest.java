@@ -0,0 +1,84 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LeakDetectorTest {
+
+  private static JedisPoolFactoryBean factory(RespServer server, String extra) throws Exception {
+    return TestFactories.pool(TestFactories.servers(server) + "pool.maxActive=1\npool.maxWaitMillis=200\n" + extra);
+  }
+
+  @Test
+  public void testObjectMethodsDoNotBorrow() throws Exception {
+    try (RespServer server = new RespServer()) {
+      JedisPoolFactoryBean factory = factory(server, "");
+      try {
+        MergeJedisCmd redis = factory.getObject();
+        Map<Object, String> map = new HashMap<>();
+        try (Jedis held = factory.getPool().getResource()) {
+          // 唯一的连接已借出，Object方法仍然可用
+          map.put(redis, redis.toString());
+          assertTrue(redis.equals(redis));
+          assertFalse(redis.equals(new Object()));
+          assertEquals(System.identityHashCode(redis), redis.hashCode());
+          assertTrue(redis.toString().contains(factory.getConfigFileName()));
+          assertTrue(held.isConnected());
+        }
+        assertEquals(0, factory.getPool().getNumActive());
+        assertEquals("OK", redis.set("k", "v"));
+        assertEquals(0, factory.getPool().getNumActive());
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testReportLongHeldConnection() throws Exception {
+    testReportLongHeldConnection("");
+  }
+
+  @Test
+  public void testReportWithTrace() throws Exception {
+    testReportLongHeldConnection("leak.trace=true\n");
+  }
+
+  private void testReportLongHeldConnection(String extra) throws Exception {
+    try (RespServer server = new RespServer()) {
+      JedisPoolFactoryBean factory = factory(server,
+          "leak.enable=true\nleak.thresholdMillis=100\nleak.intervalMillis=20\n" + extra);
+      try {
+        assertEquals(Long.valueOf(0), factory.getLeakStats().get("leaked"));
+        assertEquals("OK", factory.getObject().set("k", "v"));
+        Jedis held = factory.getPool().getResource();
+        long deadline = System.currentTimeMillis() + 3000;
+        while (factory.getLeakStats().get("held") == 0 && System.currentTimeMillis() < deadline) {
+          Thread.sleep(20);
+        }
+        assertEquals(Long.valueOf(1), factory.getLeakStats().get("held"));
+        Thread.sleep(100);
+        // 同一次借出只报告一次
+        assertEquals(Long.valueOf(1), factory.getLeakStats().get("leaked"));
+
+        held.close();
+        deadline = System.currentTimeMillis() + 3000;
+        while (factory.getLeakStats().get("held") > 0 && System.currentTimeMillis() < deadline) {
+          Thread.sleep(20);
+        }
+        assertEquals(Long.valueOf(0), factory.getLeakStats().get("held"));
+        assertEquals(Long.valueOf(1), factory.getLeakStats().get("leaked"));
+        assertEquals("OK", factory.getObject().set("k", "v"));
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+}
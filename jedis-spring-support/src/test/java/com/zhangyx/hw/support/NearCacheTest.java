@@ -0,0 +1,129 @@
+package com.zhangyx.hw.support;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Test;
+import redis.clients.util.JedisByteHashMap;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NearCacheTest {
+
+  private static NearCache local() {
+    BaseConfiguration config = new BaseConfiguration();
+    // 不订阅失效通知，只测试本地缓存
+    config.setProperty("nearCache.channel", "");
+    return new NearCache(config, "test", null, null);
+  }
+
+  @Test
+  public void testFallbackNotCached() throws Throwable {
+    NearCache cache = local();
+    Method get = MergeJedisCmd.class.getMethod("get", String.class);
+    Object fallback = new ConfigruableProvider().findDefault(get);
+    AtomicInteger calls = new AtomicInteger();
+    try {
+      // 熔断或后端不可用时的默认值原样返回，但不进入缓存
+      assertSame(fallback, cache.execute(get, new Object[]{"k"}, (m, a) -> {
+        calls.incrementAndGet();
+        return fallback;
+      }));
+      assertEquals(0, cache.size());
+      assertEquals("", cache.execute(get, new Object[]{"k"}, (m, a) -> {
+        calls.incrementAndGet();
+        return new String("");
+      }));
+      assertEquals(2, calls.get());
+      // 真实的空字符串可以缓存
+      assertEquals("", cache.execute(get, new Object[]{"k"}, (m, a) -> {
+        throw new AssertionError("should hit near cache");
+      }));
+      assertEquals(1, cache.getHitCount());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testWriteDuringReadNotCached() throws Throwable {
+    NearCache cache = local();
+    Method get = MergeJedisCmd.class.getMethod("get", String.class);
+    Method set = MergeJedisCmd.class.getMethod("set", String.class, String.class);
+    try {
+      // 读命令执行期间同一个key被写入，读到的旧值不能留在缓存里
+      assertEquals("old", cache.execute(get, new Object[]{"k"}, (m, a) -> {
+        cache.execute(set, new Object[]{"k", "new"}, (m2, a2) -> "OK");
+        return "old";
+      }));
+      assertEquals(0, cache.size());
+      assertEquals("new", cache.execute(get, new Object[]{"k"}, (m, a) -> "new"));
+      assertEquals("new", cache.execute(get, new Object[]{"k"}, (m, a) -> "other"));
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testBinaryHashKeepsByteKeyLookup() throws Throwable {
+    NearCache cache = local();
+    Method hgetAll = MergeJedisCmd.class.getMethod("hgetAll", byte[].class);
+    try {
+      JedisByteHashMap loaded = new JedisByteHashMap();
+      loaded.put("f".getBytes(), "v".getBytes());
+      byte[] key = "h".getBytes();
+      cache.execute(hgetAll, new Object[]{key}, (m, a) -> loaded);
+      // 缓存中的副本仍然按内容查找byte[] key
+      Map<byte[], byte[]> cached = (Map<byte[], byte[]>) cache.execute(hgetAll, new Object[]{key}, (m, a) -> {
+        throw new AssertionError("should hit near cache");
+      });
+      assertNotSame(loaded, cached);
+      assertArrayEquals("v".getBytes(), cached.get("f".getBytes()));
+    } finally {
+      cache.close();
+    }
+  }
+
+  private static JedisPoolFactoryBean factory(RespServer server) throws Exception {
+    return TestFactories.pool(TestFactories.servers(server) + "nearCache.enable=true\nnearCache.ttlMillis=60000\n");
+  }
+
+  @Test
+  public void testInvalidateOtherInstances() throws Exception {
+    try (RespServer server = new RespServer()) {
+      JedisPoolFactoryBean first = factory(server);
+      JedisPoolFactoryBean second = factory(server);
+      try {
+        MergeJedisCmd reader = first.getObject();
+        MergeJedisCmd writer = second.getObject();
+        assertEquals("OK", writer.set("k", "v1"));
+        // 订阅成功时会清空本地缓存，等到能命中再开始
+        long deadline = System.currentTimeMillis() + 5000;
+        while (first.getNearCacheStats().get("hits") == 0 && System.currentTimeMillis() < deadline) {
+          assertEquals("v1", reader.get("k"));
+          Thread.sleep(20);
+        }
+        assertTrue(first.getNearCacheStats().get("hits") > 0);
+
+        // 另一个实例的写入通过频道通知失效，不必等TTL
+        assertEquals("OK", writer.set("k", "v2"));
+        deadline = System.currentTimeMillis() + 5000;
+        while (!"v2".equals(reader.get("k")) && System.currentTimeMillis() < deadline) {
+          Thread.sleep(20);
+        }
+        assertEquals("v2", reader.get("k"));
+        assertEquals("v2", writer.get("k"));
+      } finally {
+        first.destroy();
+        second.destroy();
+      }
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NodeTasksTest {
+
+  @Test
+  public void testAbortWaitsForRunningTasks() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      CountDownLatch started = new CountDownLatch(1);
+      CountDownLatch aborted = new CountDownLatch(1);
+      AtomicBoolean finished = new AtomicBoolean();
+      AtomicBoolean queuedRan = new AtomicBoolean();
+      List<Callable<Object>> actions = Arrays.asList(
+          () -> {
+            started.await();
+            throw new IllegalStateException("node down");
+          },
+          () -> {
+            started.countDown();
+            // 模拟阻塞在socket上，直到abort关闭连接
+            aborted.await();
+            Thread.sleep(50);
+            finished.set(true);
+            return null;
+          },
+          () -> {
+            queuedRan.set(true);
+            return null;
+          });
+      try {
+        NodeTasks.run(executor, actions, 0, aborted::countDown);
+        fail();
+      } catch (IllegalStateException e) {
+        assertEquals("node down", e.getMessage());
+      }
+      assertTrue(finished.get());
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+      assertFalse(queuedRan.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      CountDownLatch aborted = new CountDownLatch(1);
+      List<Callable<Object>> actions = Arrays.asList(() -> null, () -> {
+        aborted.await();
+        return null;
+      });
+      long start = System.nanoTime();
+      try {
+        NodeTasks.run(executor, actions, 100, aborted::countDown);
+        fail();
+      } catch (TimeoutException e) {
+        assertEquals(0, aborted.getCount());
+      }
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
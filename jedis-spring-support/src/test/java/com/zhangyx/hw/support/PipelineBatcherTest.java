@@ -0,0 +1,157 @@
+package com.zhangyx.hw.support;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Test;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PipelineBatcherTest {
+
+  private static BaseConfiguration config(int connections, long maxDelayMicros) {
+    BaseConfiguration config = new BaseConfiguration();
+    config.setProperty("pipeline.connections", connections);
+    config.setProperty("pipeline.maxDelayMicros", maxDelayMicros);
+    return config;
+  }
+
+  private static Method method(String name, Class<?>... types) throws NoSuchMethodException {
+    return MergeJedisCmd.class.getMethod(name, types);
+  }
+
+  @Test
+  public void testConcurrentCallers() throws Exception {
+    try (RespServer server = new RespServer(); JedisPool pool = new JedisPool("127.0.0.1", server.getPort())) {
+      PipelineBatcher batcher = new PipelineBatcher(pool, MergeJedisCmd.class, config(2, 100), "test");
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      try {
+        Method set = method("set", String.class, String.class);
+        Method get = method("get", String.class);
+        List<Future<Object>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+          String key = "k" + i;
+          results.add(executor.submit(() -> {
+            batcher.submit(set, new Object[]{key, key}).get();
+            return batcher.submit(get, new Object[]{key}).get();
+          }));
+        }
+        for (int i = 0; i < 200; i++) {
+          assertEquals("k" + i, results.get(i).get(5, TimeUnit.SECONDS));
+        }
+        // 刷新线程各占一个连接
+        assertTrue(pool.getNumActive() + pool.getNumIdle() <= 2);
+      } finally {
+        executor.shutdownNow();
+        batcher.close();
+      }
+    }
+  }
+
+  @Test
+  public void testErrorOnlyFailsOwnCommand() throws Exception {
+    try (RespServer server = new RespServer(); JedisPool pool = new JedisPool("127.0.0.1", server.getPort())) {
+      // 单个刷新线程等待凑批，三条命令进入同一个管道
+      PipelineBatcher batcher = new PipelineBatcher(pool, MergeJedisCmd.class, config(1, 200000), "test");
+      try {
+        CompletableFuture<Object> set = batcher.submit(method("set", String.class, String.class), new Object[]{"k", "v"});
+        CompletableFuture<Object> unknown = batcher.submit(method("lpush", String.class, String[].class),
+            new Object[]{"list", new String[]{"a"}});
+        CompletableFuture<Object> get = batcher.submit(method("get", String.class), new Object[]{"k"});
+
+        assertEquals("OK", set.get(5, TimeUnit.SECONDS));
+        assertEquals("v", get.get(5, TimeUnit.SECONDS));
+        try {
+          unknown.get(5, TimeUnit.SECONDS);
+          fail();
+        } catch (ExecutionException e) {
+          assertTrue(e.getCause() instanceof JedisDataException);
+        }
+      } finally {
+        batcher.close();
+      }
+    }
+  }
+
+  @Test
+  public void testBlockingCommandsExcluded() throws Exception {
+    try (RespServer server = new RespServer(); JedisPool pool = new JedisPool("127.0.0.1", server.getPort())) {
+      PipelineBatcher batcher = new PipelineBatcher(pool, MergeJedisCmd.class, config(1, 0), "test");
+      try {
+        assertTrue(batcher.supports(method("get", String.class)));
+        assertFalse(batcher.supports(method("blpop", int.class, String.class)));
+        assertFalse(batcher.supports(method("brpop", int.class, String.class)));
+        assertFalse(batcher.supports(method("brpoplpush", String.class, String.class, int.class)));
+      } finally {
+        batcher.close();
+      }
+    }
+  }
+
+  @Test
+  public void testClosed() throws Throwable {
+    try (RespServer server = new RespServer(); JedisPool pool = new JedisPool("127.0.0.1", server.getPort())) {
+      PipelineBatcher batcher = new PipelineBatcher(pool, MergeJedisCmd.class, config(1, 0), "test");
+      Method get = method("get", String.class);
+      assertNull(batcher.execute(get, new Object[]{"k"}));
+      batcher.close();
+      try {
+        batcher.submit(get, new Object[]{"k"}).get(5, TimeUnit.SECONDS);
+        fail();
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof JedisException);
+      }
+      try {
+        batcher.execute(get, new Object[]{"k"});
+        fail();
+      } catch (JedisException e) {
+        assertEquals("pipeline is closed", e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void testCloseCompletesConcurrentSubmits() throws Exception {
+    try (RespServer server = new RespServer(); JedisPool pool = new JedisPool("127.0.0.1", server.getPort())) {
+      PipelineBatcher batcher = new PipelineBatcher(pool, MergeJedisCmd.class, config(2, 0), "test");
+      Method get = method("get", String.class);
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      List<CompletableFuture<Object>> futures = new CopyOnWriteArrayList<>();
+      try {
+        for (int i = 0; i < 4; i++) {
+          executor.submit(() -> {
+            for (int n = 0; n < 5000; n++) {
+              futures.add(batcher.submit(get, new Object[]{"k"}));
+            }
+          });
+        }
+        Thread.sleep(20);
+        batcher.close();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        // 与close并发入队的命令也要马上完成，不能留在队列里等到超时
+        for (CompletableFuture<Object> future : futures) {
+          assertTrue(future.isDone());
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+}
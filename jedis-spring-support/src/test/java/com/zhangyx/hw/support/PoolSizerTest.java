@@ -0,0 +1,63 @@
+package com.zhangyx.hw.support;
+
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PoolSizerTest {
+
+  @Test
+  public void testGrowAndShrink() throws Exception {
+    try (RespServer server = new RespServer()) {
+      JedisPoolFactoryBean factory = TestFactories.pool(TestFactories.servers(server)
+          + "pool.maxActive=2\npool.maxIdle=2\npool.minIdle=1\npool.maxWaitMillis=5000\n"
+          + "pool.adaptive.enable=true\npool.adaptive.intervalMillis=50\npool.adaptive.maxActive=8\npool.adaptive.shrinkChecks=2\n");
+      ExecutorService executor = Executors.newFixedThreadPool(3);
+      try {
+        GenericObjectPool<?> pool = PoolSizer.internal(factory.getPool());
+        List<Jedis> held = new ArrayList<>();
+        held.add(factory.getPool().getResource());
+        held.add(factory.getPool().getResource());
+
+        // 连接池已满，等待中的线程在扩容后拿到连接
+        List<Future<Jedis>> waiting = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+          waiting.add(executor.submit(() -> factory.getPool().getResource()));
+        }
+        for (Future<Jedis> future : waiting) {
+          held.add(future.get(3, TimeUnit.SECONDS));
+        }
+        assertTrue(pool.getMaxTotal() >= 5);
+        assertTrue(pool.getMaxTotal() <= 8);
+        assertTrue(factory.getPoolSizeStats().get("grown") > 0);
+        assertSame(pool, PoolSizer.internal(factory.getPool()));
+
+        for (Jedis jedis : held) {
+          jedis.close();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getMaxTotal() > 1 && System.currentTimeMillis() < deadline) {
+          Thread.sleep(50);
+        }
+        assertEquals(1, pool.getMaxTotal());
+        assertEquals(Long.valueOf(1), factory.getPoolSizeStats().get("maxTotal"));
+        assertTrue(factory.getPoolSizeStats().get("shrunk") > 0);
+        assertEquals("OK", factory.getObject().set("k", "v"));
+      } finally {
+        executor.shutdownNow();
+        factory.destroy();
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+
+import java.net.ServerSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PoolWarmUpTest {
+
+  private static JedisPoolFactoryBean factory(String servers, String extra) throws Exception {
+    return TestFactories.pool("redis.servers=" + servers + "\nwarmUp.enable=true\npool.minIdle=4\n" + extra);
+  }
+
+  /**
+   * 服务端在接受连接的线程里登记连接，客户端连上时可能还没登记
+   */
+  private static int connections(RespServer server, int expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 2000;
+    while (server.getConnectionCount() < expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    return server.getConnectionCount();
+  }
+
+  @Test
+  public void testPool() throws Exception {
+    try (RespServer server = new RespServer()) {
+      JedisPoolFactoryBean factory = factory("127.0.0.1:" + server.getPort(), "");
+      try {
+        assertEquals(4, connections(server, 4));
+        assertEquals(Long.valueOf(4), factory.getWarmUpStats().get("connections"));
+        assertNotNull(factory.getWarmUpStats().get("millis"));
+        assertEquals(4, factory.getPool().getNumIdle());
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testEveryShard() throws Exception {
+    try (RespServer a = new RespServer(); RespServer b = new RespServer()) {
+      JedisPoolFactoryBean factory = factory("127.0.0.1:" + a.getPort() + ";127.0.0.1:" + b.getPort(), "");
+      try {
+        assertEquals(4, connections(a, 4));
+        assertEquals(4, connections(b, 4));
+        assertEquals(Long.valueOf(8), factory.getWarmUpStats().get("connections"));
+        assertEquals(4, factory.getShardedPool().getNumIdle());
+        long before = a.getCommandCount() + b.getCommandCount();
+        factory.getObject().set("k", "v");
+        // 不需要再建立连接
+        assertEquals(8, a.getConnectionCount() + b.getConnectionCount());
+        assertEquals(1, a.getCommandCount() + b.getCommandCount() - before);
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testRequired() throws Exception {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    JedisPoolFactoryBean factory = factory("127.0.0.1:" + port, "warmUp.timeoutMillis=2000\n");
+    assertTrue(factory.getWarmUpStats().isEmpty());
+    factory.destroy();
+    try {
+      factory("127.0.0.1:" + port, "warmUp.timeoutMillis=2000\nwarmUp.required=true\n");
+      fail();
+    } catch (Exception e) {
+      // 预热失败时bean初始化失败
+    }
+  }
+}
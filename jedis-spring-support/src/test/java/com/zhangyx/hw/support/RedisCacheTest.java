@@ -0,0 +1,129 @@
+package com.zhangyx.hw.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RedisCacheTest {
+  private RespServer server;
+  private JedisPoolFactoryBean factory;
+  private RedisCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new RespServer();
+    factory = TestFactories.pool(TestFactories.servers(server));
+    cache = new RedisCache(factory.getObject());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    cache.close();
+    factory.destroy();
+    server.close();
+  }
+
+  private static Callable<String> slowLoader(AtomicInteger calls, String value) {
+    return () -> {
+      calls.incrementAndGet();
+      Thread.sleep(100);
+      return value;
+    };
+  }
+
+  @Test
+  public void testLoadOncePerKey() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    Callable<String> loader = slowLoader(calls, "db");
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(() -> cache.getOrLoad("user:1", 60, loader, RedisCodec.STRING)));
+      }
+      for (Future<String> result : results) {
+        assertEquals("db", result.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, calls.get());
+    assertEquals("db", cache.getOrLoad("user:1", 60, loader, RedisCodec.STRING));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void testNegativeResultIsCached() {
+    AtomicInteger calls = new AtomicInteger();
+    Callable<String> loader = () -> {
+      calls.incrementAndGet();
+      return null;
+    };
+    assertNull(cache.getOrLoad("missing", 60, loader, RedisCodec.STRING));
+    assertNull(cache.getOrLoad("missing", 60, loader, RedisCodec.STRING));
+    assertEquals(1, calls.get());
+
+    cache.invalidate("missing");
+    assertNull(cache.getOrLoad("missing", 60, loader, RedisCodec.STRING));
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void testEarlyRefresh() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    assertEquals("v1", cache.getOrLoad("config", 1, slowLoader(calls, "v1"), RedisCodec.STRING));
+    // 加载耗时100ms、有效期1秒，beta足够大时下一次读取必定触发提前刷新，调用方仍拿到旧值
+    cache.setBeta(1000);
+    assertEquals("v1", cache.getOrLoad("config", 1, slowLoader(calls, "v2"), RedisCodec.STRING));
+    for (int i = 0; i < 100 && calls.get() < 2; i++) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(200);
+    cache.setBeta(0);
+    assertEquals("v2", cache.getOrLoad("config", 1, slowLoader(calls, "v3"), RedisCodec.STRING));
+  }
+
+  @Test
+  public void testDistributedLock() throws Exception {
+    RedisCache other = new RedisCache(factory.getObject());
+    cache.setDistributedLock(true);
+    other.setDistributedLock(true);
+    AtomicInteger calls = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first = executor.submit(() -> cache.getOrLoad("report", 60, slowLoader(calls, "r"), RedisCodec.STRING));
+      Future<String> second = executor.submit(() -> other.getOrLoad("report", 60, slowLoader(calls, "r"), RedisCodec.STRING));
+      assertEquals("r", first.get());
+      assertEquals("r", second.get());
+    } finally {
+      executor.shutdownNow();
+      other.close();
+    }
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void testLockErrorLoadsDirectly() throws Exception {
+    cache.setDistributedLock(true);
+    cache.setLockMillis(5000);
+    server.close();
+    AtomicInteger calls = new AtomicInteger();
+    long start = System.currentTimeMillis();
+    // 加锁出错不能当作锁被别人持有，不等待lockMillis
+    assertEquals("db", cache.getOrLoad("down", 60, slowLoader(calls, "db"), RedisCodec.STRING));
+    assertTrue(System.currentTimeMillis() - start < 2000);
+    assertEquals(1, calls.get());
+  }
+}
@@ -0,0 +1,136 @@
+package com.zhangyx.hw.support;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RedisCodecsTest {
+  private static final RedisCodec<Point> POINT = RedisCodecs.binary(
+      (p, out) -> {
+        out.writeInt(p.x);
+        out.writeUTF(p.label);
+      },
+      in -> new Point(in.readInt(), in.readUTF()));
+
+  @Test
+  public void testRoundTrip() {
+    assertEquals(new Point(7, "a"), POINT.decode(POINT.encode(new Point(7, "a"))));
+    ArrayList<String> list = new ArrayList<>(Arrays.asList("x", "y"));
+    RedisCodec<ArrayList<String>> serializable = RedisCodecs.serializable();
+    assertEquals(list, serializable.decode(serializable.encode(list)));
+    RedisCodec<Integer> text = RedisCodecs.text(String::valueOf, Integer::valueOf);
+    assertEquals("42", new String(text.encode(42)));
+    assertEquals(Integer.valueOf(42), text.decode(text.encode(42)));
+  }
+
+  @Test
+  public void testDecodeRange() {
+    byte[] encoded = POINT.encode(new Point(1, "b"));
+    byte[] padded = new byte[encoded.length + 3];
+    System.arraycopy(encoded, 0, padded, 2, encoded.length);
+    assertEquals(new Point(1, "b"), POINT.decode(padded, 2, encoded.length));
+  }
+
+  @Test
+  public void testCompressAboveThreshold() {
+    RedisCodec<String> codec = RedisCodecs.compressed(RedisCodecs.text(s -> s, s -> s), 64);
+    byte[] small = codec.encode("short");
+    assertEquals(0, small[0]);
+    assertEquals("short", codec.decode(small));
+
+    String large = Strings.repeat("abcdefgh", 1000);
+    byte[] compressed = codec.encode(large);
+    assertEquals(1, compressed[0]);
+    assertTrue(compressed.length < large.length() / 10);
+    assertEquals(large, codec.decode(compressed));
+  }
+
+  @Test
+  public void testNestedCompression() {
+    RedisCodec<String> inner = RedisCodecs.compressed(RedisCodecs.text(s -> s, s -> s), 16);
+    RedisCodec<String> outer = RedisCodecs.compressed(inner, 16);
+    String value = Strings.repeat("nested", 200);
+    assertEquals(value, outer.decode(outer.encode(value)));
+    // 大于保留上限的缓冲区用完后丢弃，不影响后续编码
+    String huge = Strings.repeat("z", 3 << 20);
+    assertEquals(huge, outer.decode(outer.encode(huge)));
+    assertEquals(value, outer.decode(outer.encode(value)));
+  }
+
+  @Test
+  public void testTemplate() throws Exception {
+    try (RespServer server = new RespServer()) {
+      JedisPoolFactoryBean factory = TestFactories.pool(TestFactories.servers(server));
+      try {
+        TypedRedisTemplate<Point> points = new TypedRedisTemplate<>(factory.getObject(),
+            RedisCodecs.compressed(POINT, 128));
+        assertEquals("OK", points.set("p:1", new Point(1, "one")));
+        points.setex("p:2", 60, new Point(2, Strings.repeat("two", 100)));
+        assertEquals(new Point(1, "one"), points.get("p:1"));
+        List<Point> values = points.mget("p:1", "p:3", "p:2");
+        assertEquals(new Point(1, "one"), values.get(0));
+        assertNull(values.get(1));
+        assertEquals(2, values.get(2).x);
+
+        points.hset("h", "a", new Point(3, "c"));
+        assertEquals(new Point(3, "c"), points.hget("h", "a"));
+        Map<String, Point> all = points.hgetAll("h");
+        assertEquals(new Point(3, "c"), all.get("a"));
+
+        assertEquals(Long.valueOf(1), points.del("p:1"));
+        assertEquals(Boolean.FALSE, points.exists("p:1"));
+        assertArrayEquals(new byte[]{1, 2}, RedisCodecs.bytes().decode(new byte[]{1, 2}));
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testTemplateFallback() throws Exception {
+    JedisPoolFactoryBean factory = TestFactories.pool("redis.servers=127.0.0.1:1\nstartup=false\n");
+    try {
+      // 后端未启动时代理返回默认值(空数组、空列表)，按不存在处理
+      TypedRedisTemplate<Point> points = new TypedRedisTemplate<>(factory.getObject(),
+          RedisCodecs.compressed(POINT, 128));
+      assertNull(points.get("p:1"));
+      assertNull(points.hget("h", "a"));
+      List<Point> values = points.mget("p:1", "p:2");
+      assertEquals(2, values.size());
+      assertNull(values.get(0));
+      assertNull(values.get(1));
+      assertNull(new TypedRedisTemplate<>(factory.getObject(), POINT).get("p:1"));
+    } finally {
+      factory.destroy();
+    }
+  }
+
+  private static final class Point {
+    private final int x;
+    private final String label;
+
+    private Point(int x, String label) {
+      this.x = x;
+      this.label = label;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Point && ((Point) o).x == x && ((Point) o).label.equals(label);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * x + label.hashCode();
+    }
+  }
+}
@@ -0,0 +1,804 @@
+package com.zhangyx.hw.support;
+
+import redis.clients.util.JedisClusterCRC16;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * 进程内的RESP协议替身服务，用于离线测试和基准测试
+ * <p>
+ * 只实现常用的字符串、哈希、计数、发布订阅、SCAN和脚本命令，数据保存在内存中，不处理过期。
+ * 集群模式下按slot范围分配给若干个实例，CLUSTER SLOTS返回整个拓扑，不属于自己的key返回MOVED。
+ * 副本与master共享数据，连接执行READONLY后才处理master所负责slot的key。
+ */
+public class RespServer implements Closeable {
+    private static final int SLOTS = 16384;
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Object> data;
+    /**
+     * 副本所属的master，master自身为null
+     */
+    private final RespServer master;
+    private final List<RespServer> replicas = new CopyOnWriteArrayList<>();
+    private final Map<String, Set<Connection>> channels = new ConcurrentHashMap<>();
+    private final Map<String, String> scripts = new ConcurrentHashMap<>();
+    private final Set<Connection> connections = new CopyOnWriteArraySet<>();
+    private final AtomicLong commands = new AtomicLong();
+    /**
+     * 集群拓扑: slot起始位置 -> 负责该范围的实例，null表示单节点模式
+     */
+    private volatile TreeMap<Integer, SlotRange> topology;
+    private volatile boolean running = true;
+
+    public RespServer() throws IOException {
+        this(null);
+    }
+
+    private RespServer(RespServer master) throws IOException {
+        this.master = master;
+        this.data = master != null ? master.data : new ConcurrentHashMap<>();
+        this.serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "resp-server-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * 启动若干个实例组成的假集群，slot平均分配
+     *
+     * @param nodes
+     * @return
+     * @throws IOException
+     */
+    public static List<RespServer> cluster(int nodes) throws IOException {
+        List<RespServer> servers = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            servers.add(new RespServer());
+        }
+        assignSlots(servers);
+        return servers;
+    }
+
+    /**
+     * 重新平均分配slot，用于模拟扩缩容
+     *
+     * @param servers
+     */
+    public static void assignSlots(List<RespServer> servers) {
+        TreeMap<Integer, SlotRange> topology = new TreeMap<>();
+        int per = SLOTS / servers.size();
+        for (int i = 0; i < servers.size(); i++) {
+            int start = i * per;
+            int end = i == servers.size() - 1 ? SLOTS - 1 : start + per - 1;
+            topology.put(start, new SlotRange(start, end, servers.get(i)));
+        }
+        for (RespServer server : servers) {
+            server.topology = topology;
+            for (RespServer replica : server.replicas) {
+                replica.topology = topology;
+            }
+        }
+    }
+
+    /**
+     * 启动一个共享数据的副本，出现在CLUSTER SLOTS中该master负责的范围里
+     *
+     * @return
+     * @throws IOException
+     */
+    public RespServer addReplica() throws IOException {
+        RespServer replica = new RespServer(this);
+        replica.topology = topology;
+        replicas.add(replica);
+        return replica;
+    }
+
+    /**
+     * 从CLUSTER SLOTS中去掉副本，用于模拟副本下线
+     *
+     * @param replica
+     */
+    public void removeReplica(RespServer replica) {
+        replicas.remove(replica);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * 已处理的命令数，用于统计网络往返
+     *
+     * @return
+     */
+    public long getCommandCount() {
+        return commands.get();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    public void flushAll() {
+        data.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                Thread thread = new Thread(connection, "resp-conn-" + getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private RespServer owner(byte[] key) {
+        TreeMap<Integer, SlotRange> current = topology;
+        if (current == null) {
+            return this;
+        }
+        int slot = JedisClusterCRC16.getSlot(key);
+        return current.floorEntry(slot).getValue().server;
+    }
+
+    private static String str(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static final class SlotRange {
+        private final int start;
+        private final int end;
+        private final RespServer server;
+
+        private SlotRange(int start, int end, RespServer server) {
+            this.start = start;
+            this.end = end;
+            this.server = server;
+        }
+    }
+
+    /**
+     * 单个客户端连接，一个线程顺序处理请求
+     */
+    private final class Connection implements Runnable, Closeable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private boolean asking;
+        private boolean readonly;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    List<byte[]> request = readRequest();
+                    if (request == null) {
+                        break;
+                    }
+                    commands.incrementAndGet();
+                    synchronized (out) {
+                        handle(request);
+                        if (!socket.isClosed() && in.available() == 0) {
+                            out.flush();
+                        }
+                    }
+                }
+            } catch (EOFException | SocketException e) {
+                // 客户端断开
+            } catch (IOException e) {
+                if (running && !socket.isClosed()) {
+                    e.printStackTrace();
+                }
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            connections.remove(this);
+            for (Set<Connection> subscribers : channels.values()) {
+                subscribers.remove(this);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        private List<byte[]> readRequest() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                return null;
+            }
+            if (b != '*') {
+                throw new IOException("unexpected request type " + (char) b);
+            }
+            int count = (int) readLong();
+            List<byte[]> request = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                if (in.read() != '$') {
+                    throw new IOException("bulk string expected");
+                }
+                int len = (int) readLong();
+                byte[] buf = new byte[len];
+                int off = 0;
+                while (off < len) {
+                    int n = in.read(buf, off, len - off);
+                    if (n < 0) {
+                        throw new EOFException();
+                    }
+                    off += n;
+                }
+                in.read();
+                in.read();
+                request.add(buf);
+            }
+            return request;
+        }
+
+        private long readLong() throws IOException {
+            long value = 0;
+            boolean negative = false;
+            int b;
+            while ((b = in.read()) != '\r') {
+                if (b == -1) {
+                    throw new EOFException();
+                }
+                if (b == '-') {
+                    negative = true;
+                } else {
+                    value = value * 10 + (b - '0');
+                }
+            }
+            in.read();
+            return negative ? -value : value;
+        }
+
+        private void handle(List<byte[]> request) throws IOException {
+            String name = str(request.get(0)).toUpperCase();
+            boolean wasAsking = asking;
+            asking = false;
+            byte[] key = topology != null ? firstKey(name, request) : null;
+            if (key != null) {
+                RespServer owner = owner(key);
+                RespServer self = master != null && readonly ? master : RespServer.this;
+                if (owner != self && !wasAsking) {
+                    error("MOVED " + JedisClusterCRC16.getSlot(key) + " " + owner.getHost() + ":" + owner.getPort());
+                    return;
+                }
+            }
+            switch (name) {
+                case "PING":
+                    simple("PONG");
+                    break;
+                case "ECHO":
+                    bulk(request.get(1));
+                    break;
+                case "AUTH":
+                case "SELECT":
+                    simple("OK");
+                    break;
+                case "READONLY":
+                case "READWRITE":
+                    readonly = "READONLY".equals(name);
+                    simple("OK");
+                    break;
+                case "ASKING":
+                    asking = true;
+                    simple("OK");
+                    break;
+                case "QUIT":
+                    simple("OK");
+                    out.flush();
+                    close();
+                    break;
+                case "FLUSHALL":
+                case "FLUSHDB":
+                    data.clear();
+                    simple("OK");
+                    break;
+                case "DBSIZE":
+                    integer(data.size());
+                    break;
+                case "GET":
+                    bulk(string(request.get(1)));
+                    break;
+                case "SET":
+                    set(request);
+                    break;
+                case "SETEX":
+                case "PSETEX":
+                    data.put(str(request.get(1)), request.get(3));
+                    simple("OK");
+                    break;
+                case "GETSET":
+                    bulk((byte[]) data.put(str(request.get(1)), request.get(2)));
+                    break;
+                case "MGET":
+                    arrayHeader(request.size() - 1);
+                    for (int i = 1; i < request.size(); i++) {
+                        bulk(string(request.get(i)));
+                    }
+                    break;
+                case "MSET":
+                    for (int i = 1; i + 1 < request.size(); i += 2) {
+                        data.put(str(request.get(i)), request.get(i + 1));
+                    }
+                    simple("OK");
+                    break;
+                case "DEL":
+                case "UNLINK": {
+                    long removed = 0;
+                    for (int i = 1; i < request.size(); i++) {
+                        removed += data.remove(str(request.get(i))) != null ? 1 : 0;
+                    }
+                    integer(removed);
+                    break;
+                }
+                case "EXISTS":
+                    if (request.size() == 2) {
+                        integer(data.containsKey(str(request.get(1))) ? 1 : 0);
+                    } else {
+                        long exists = 0;
+                        for (int i = 1; i < request.size(); i++) {
+                            exists += data.containsKey(str(request.get(i))) ? 1 : 0;
+                        }
+                        integer(exists);
+                    }
+                    break;
+                case "INCR":
+                    incrBy(request.get(1), 1);
+                    break;
+                case "DECR":
+                    incrBy(request.get(1), -1);
+                    break;
+                case "INCRBY":
+                    incrBy(request.get(1), Long.parseLong(str(request.get(2))));
+                    break;
+                case "DECRBY":
+                    incrBy(request.get(1), -Long.parseLong(str(request.get(2))));
+                    break;
+                case "EXPIRE":
+                case "PEXPIRE":
+                case "EXPIREAT":
+                    integer(data.containsKey(str(request.get(1))) ? 1 : 0);
+                    break;
+                case "TTL":
+                case "PTTL":
+                    integer(data.containsKey(str(request.get(1))) ? -1 : -2);
+                    break;
+                case "HGET": {
+                    Map<String, byte[]> hash = hash(request.get(1), false);
+                    bulk(hash == null ? null : hash.get(str(request.get(2))));
+                    break;
+                }
+                case "HSET":
+                case "HMSET": {
+                    Map<String, byte[]> hash = hash(request.get(1), true);
+                    long added = 0;
+                    for (int i = 2; i + 1 < request.size(); i += 2) {
+                        added += hash.put(str(request.get(i)), request.get(i + 1)) == null ? 1 : 0;
+                    }
+                    if ("HSET".equals(name)) {
+                        integer(added);
+                    } else {
+                        simple("OK");
+                    }
+                    break;
+                }
+                case "HDEL": {
+                    Map<String, byte[]> hash = hash(request.get(1), false);
+                    long removed = 0;
+                    for (int i = 2; hash != null && i < request.size(); i++) {
+                        removed += hash.remove(str(request.get(i))) != null ? 1 : 0;
+                    }
+                    integer(removed);
+                    break;
+                }
+                case "HGETALL": {
+                    Map<String, byte[]> hash = hash(request.get(1), false);
+                    if (hash == null) {
+                        arrayHeader(0);
+                    } else {
+                        arrayHeader(hash.size() * 2);
+                        for (Map.Entry<String, byte[]> entry : hash.entrySet()) {
+                            bulk(bytes(entry.getKey()));
+                            bulk(entry.getValue());
+                        }
+                    }
+                    break;
+                }
+                case "HINCRBY": {
+                    Map<String, byte[]> hash = hash(request.get(1), true);
+                    synchronized (hash) {
+                        byte[] old = hash.get(str(request.get(2)));
+                        long value = (old == null ? 0 : Long.parseLong(str(old))) + Long.parseLong(str(request.get(3)));
+                        hash.put(str(request.get(2)), bytes(Long.toString(value)));
+                        integer(value);
+                    }
+                    break;
+                }
+                case "ZINCRBY": {
+                    Map<String, byte[]> zset = hash(request.get(1), true);
+                    synchronized (zset) {
+                        byte[] old = zset.get(str(request.get(3)));
+                        double value = (old == null ? 0 : Double.parseDouble(str(old))) + Double.parseDouble(str(request.get(2)));
+                        String formatted = value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+                        zset.put(str(request.get(3)), bytes(formatted));
+                        bulk(bytes(formatted));
+                    }
+                    break;
+                }
+                case "ZSCORE": {
+                    Map<String, byte[]> zset = hash(request.get(1), false);
+                    bulk(zset == null ? null : zset.get(str(request.get(2))));
+                    break;
+                }
+                case "SCAN":
+                    scan(request, 1, new ArrayList<>(data.keySet()), null);
+                    break;
+                case "HSCAN": {
+                    Map<String, byte[]> hash = hash(request.get(1), false);
+                    scan(request, 2, hash == null ? new ArrayList<>() : new ArrayList<>(hash.keySet()), hash);
+                    break;
+                }
+                case "PUBLISH":
+                    integer(publish(request.get(1), request.get(2)));
+                    break;
+                case "SUBSCRIBE":
+                    for (int i = 1; i < request.size(); i++) {
+                        channels.computeIfAbsent(str(request.get(i)), k -> new CopyOnWriteArraySet<>()).add(this);
+                        arrayHeader(3);
+                        bulk(bytes("subscribe"));
+                        bulk(request.get(i));
+                        integer(i);
+                    }
+                    break;
+                case "UNSUBSCRIBE":
+                    for (Set<Connection> subscribers : channels.values()) {
+                        subscribers.remove(this);
+                    }
+                    arrayHeader(3);
+                    bulk(bytes("unsubscribe"));
+                    bulk(request.size() > 1 ? request.get(1) : null);
+                    integer(0);
+                    break;
+                case "SCRIPT":
+                    script(request);
+                    break;
+                case "EVALSHA":
+                    if (!scripts.containsKey(str(request.get(1)))) {
+                        error("NOSCRIPT No matching script. Please use EVAL.");
+                    } else {
+                        eval(scripts.get(str(request.get(1))), request);
+                    }
+                    break;
+                case "EVAL":
+                    eval(str(request.get(1)), request);
+                    break;
+                case "CLUSTER":
+                    cluster(request);
+                    break;
+                case "INFO":
+                    bulk(bytes("# Server\r\nredis_version:3.2.0\r\nredis_mode:" + (topology == null ? "standalone" : "cluster") + "\r\n"));
+                    break;
+                default:
+                    error("ERR unknown command '" + name + "'");
+            }
+        }
+
+        /**
+         * 决定slot的key，没有key的命令返回null；脚本的key在numkeys之后
+         */
+        private byte[] firstKey(String name, List<byte[]> request) {
+            switch (name) {
+                case "PING":
+                case "ECHO":
+                case "AUTH":
+                case "SELECT":
+                case "READONLY":
+                case "READWRITE":
+                case "ASKING":
+                case "QUIT":
+                case "FLUSHALL":
+                case "FLUSHDB":
+                case "DBSIZE":
+                case "SCAN":
+                case "PUBLISH":
+                case "SUBSCRIBE":
+                case "UNSUBSCRIBE":
+                case "SCRIPT":
+                case "CLUSTER":
+                case "INFO":
+                    return null;
+                case "EVAL":
+                case "EVALSHA":
+                    return request.size() > 3 && Long.parseLong(str(request.get(2))) > 0 ? request.get(3) : null;
+                default:
+                    return request.size() > 1 ? request.get(1) : null;
+            }
+        }
+
+        private byte[] string(byte[] key) {
+            Object value = data.get(str(key));
+            return value instanceof byte[] ? (byte[]) value : null;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Map<String, byte[]> hash(byte[] key, boolean create) {
+            if (create) {
+                return (Map<String, byte[]>) data.computeIfAbsent(str(key), k -> new ConcurrentSkipListMap<String, byte[]>());
+            }
+            Object value = data.get(str(key));
+            return value instanceof Map ? (Map<String, byte[]>) value : null;
+        }
+
+        private void set(List<byte[]> request) throws IOException {
+            String key = str(request.get(1));
+            boolean nx = false;
+            boolean xx = false;
+            for (int i = 3; i < request.size(); i++) {
+                String option = str(request.get(i)).toUpperCase();
+                nx |= "NX".equals(option);
+                xx |= "XX".equals(option);
+            }
+            if (nx && data.putIfAbsent(key, request.get(2)) != null) {
+                bulk(null);
+                return;
+            }
+            if (xx && !data.containsKey(key)) {
+                bulk(null);
+                return;
+            }
+            data.put(key, request.get(2));
+            simple("OK");
+        }
+
+        private void incrBy(byte[] key, long delta) throws IOException {
+            long value;
+            synchronized (data) {
+                Object old = data.get(str(key));
+                if (old != null && !(old instanceof byte[])) {
+                    error("WRONGTYPE Operation against a key holding the wrong kind of value");
+                    return;
+                }
+                value = (old == null ? 0 : Long.parseLong(str((byte[]) old))) + delta;
+                data.put(str(key), bytes(Long.toString(value)));
+            }
+            integer(value);
+        }
+
+        private long publish(byte[] channel, byte[] message) throws IOException {
+            Set<Connection> subscribers = channels.get(str(channel));
+            if (subscribers == null) {
+                return 0;
+            }
+            for (Connection subscriber : subscribers) {
+                synchronized (subscriber.out) {
+                    subscriber.arrayHeader(3);
+                    subscriber.bulk(bytes("message"));
+                    subscriber.bulk(channel);
+                    subscriber.bulk(message);
+                    subscriber.out.flush();
+                }
+            }
+            return subscribers.size();
+        }
+
+        /**
+         * SCAN cursor [MATCH pattern] [COUNT count]，按key排序后以下标作为游标；HSCAN同时返回value
+         */
+        private void scan(List<byte[]> request, int cursorIndex, List<String> keys, Map<String, byte[]> values)
+                throws IOException {
+            int cursor = Integer.parseInt(str(request.get(cursorIndex)));
+            Pattern pattern = null;
+            int count = 10;
+            for (int i = cursorIndex + 1; i + 1 < request.size(); i += 2) {
+                String option = str(request.get(i)).toUpperCase();
+                if ("MATCH".equals(option)) {
+                    pattern = Pattern.compile(str(request.get(i + 1)).replace("?", ".").replace("*", ".*"));
+                } else if ("COUNT".equals(option)) {
+                    count = Integer.parseInt(str(request.get(i + 1)));
+                }
+            }
+            Collections.sort(keys);
+            int end = Math.min(keys.size(), cursor + count);
+            List<String> matched = new ArrayList<>();
+            for (int i = cursor; i < end; i++) {
+                if (pattern == null || pattern.matcher(keys.get(i)).matches()) {
+                    matched.add(keys.get(i));
+                }
+            }
+            arrayHeader(2);
+            bulk(bytes(end >= keys.size() ? "0" : Integer.toString(end)));
+            arrayHeader(values == null ? matched.size() : matched.size() * 2);
+            for (String key : matched) {
+                bulk(bytes(key));
+                if (values != null) {
+                    bulk(values.get(key));
+                }
+            }
+        }
+
+        private void script(List<byte[]> request) throws IOException {
+            String sub = str(request.get(1)).toUpperCase();
+            if ("LOAD".equals(sub)) {
+                String sha = sha1(str(request.get(2)));
+                scripts.put(sha, str(request.get(2)));
+                bulk(bytes(sha));
+            } else if ("EXISTS".equals(sub)) {
+                arrayHeader(request.size() - 2);
+                for (int i = 2; i < request.size(); i++) {
+                    integer(scripts.containsKey(str(request.get(i))) ? 1 : 0);
+                }
+            } else if ("FLUSH".equals(sub)) {
+                scripts.clear();
+                simple("OK");
+            } else {
+                error("ERR unknown SCRIPT subcommand");
+            }
+        }
+
+        /**
+         * 不执行Lua，只支持 return redis.call('GET', KEYS[1]) 这类单条GET脚本，其余返回第一个key
+         */
+        private void eval(String script, List<byte[]> request) throws IOException {
+            int numKeys = Integer.parseInt(str(request.get(2)));
+            if (numKeys > 0 && script.toUpperCase().contains("'GET'")) {
+                bulk(string(request.get(3)));
+            } else if (numKeys > 0) {
+                bulk(request.get(3));
+            } else {
+                bulk(null);
+            }
+        }
+
+        private void cluster(List<byte[]> request) throws IOException {
+            String sub = str(request.get(1)).toUpperCase();
+            TreeMap<Integer, SlotRange> current = topology;
+            if (current == null) {
+                error("ERR This instance has cluster support disabled");
+                return;
+            }
+            if ("SLOTS".equals(sub)) {
+                arrayHeader(current.size());
+                for (SlotRange range : current.values()) {
+                    arrayHeader(3 + range.server.replicas.size());
+                    integer(range.start);
+                    integer(range.end);
+                    arrayHeader(2);
+                    bulk(bytes(range.server.getHost()));
+                    integer(range.server.getPort());
+                    for (RespServer replica : range.server.replicas) {
+                        arrayHeader(2);
+                        bulk(bytes(replica.getHost()));
+                        integer(replica.getPort());
+                    }
+                }
+            } else if ("NODES".equals(sub)) {
+                StringBuilder sbd = new StringBuilder();
+                for (SlotRange range : current.values()) {
+                    sbd.append(Integer.toHexString(range.server.getPort())).append(' ')
+                            .append(range.server.getHost()).append(':').append(range.server.getPort())
+                            .append(range.server == RespServer.this ? " myself,master" : " master")
+                            .append(" - 0 0 1 connected ").append(range.start).append('-').append(range.end).append('\n');
+                }
+                bulk(bytes(sbd.toString()));
+            } else if ("KEYSLOT".equals(sub)) {
+                integer(JedisClusterCRC16.getSlot(request.get(2)));
+            } else {
+                error("ERR unknown CLUSTER subcommand");
+            }
+        }
+
+        private String sha1(String script) {
+            try {
+                StringBuilder sbd = new StringBuilder(40);
+                for (byte b : MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8))) {
+                    sbd.append(String.format("%02x", b));
+                }
+                return sbd.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void simple(String s) throws IOException {
+            out.write('+');
+            out.write(bytes(s));
+            out.write(CRLF);
+        }
+
+        private void error(String s) throws IOException {
+            out.write('-');
+            out.write(bytes(s));
+            out.write(CRLF);
+        }
+
+        private void integer(long value) throws IOException {
+            out.write(':');
+            out.write(bytes(Long.toString(value)));
+            out.write(CRLF);
+        }
+
+        private void bulk(byte[] value) throws IOException {
+            if (value == null) {
+                out.write(bytes("$-1"));
+                out.write(CRLF);
+                return;
+            }
+            out.write('$');
+            out.write(bytes(Integer.toString(value.length)));
+            out.write(CRLF);
+            out.write(value);
+            out.write(CRLF);
+        }
+
+        private void arrayHeader(int size) throws IOException {
+            out.write('*');
+            out.write(bytes(Integer.toString(size)));
+            out.write(CRLF);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+import redis.clients.jedis.ScanResult;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScanIteratorTest {
+
+  private static Set<String> drain(ScanIterator<String> keys) {
+    Set<String> result = new HashSet<>();
+    keys.forEachRemaining(result::add);
+    return result;
+  }
+
+  @Test
+  public void testSingle() throws Exception {
+    try (RespServer server = new RespServer()) {
+      JedisPoolFactoryBean factory = TestFactories.pool(TestFactories.servers(server));
+      try {
+        MergeJedisCmd cmd = factory.getObject();
+        for (int i = 0; i < 50; i++) {
+          cmd.set((i % 2 == 0 ? "user:" : "order:") + i, "v");
+          cmd.hset("hash", "f" + i, "v" + i);
+        }
+        assertEquals(51, drain(factory.scanKeys(ScanOptions.builder().count(7).build())).size());
+        Set<String> users = drain(factory.scanKeys(ScanOptions.builder().match("user:*").count(7).build()));
+        assertEquals(25, users.size());
+        assertTrue(users.stream().allMatch(key -> key.startsWith("user:")));
+
+        ScanIterator<Map.Entry<String, String>> fields = factory.scanHash("hash", ScanOptions.builder().count(9).build());
+        int count = 0;
+        while (fields.hasNext()) {
+          Map.Entry<String, String> entry = fields.next();
+          assertEquals("v" + entry.getKey().substring(1), entry.getValue());
+          count++;
+        }
+        assertEquals(50, count);
+        assertFalse(factory.scanHash("missing", ScanOptions.builder().build()).hasNext());
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testSharded() throws Exception {
+    try (RespServer server1 = new RespServer(); RespServer server2 = new RespServer()) {
+      JedisPoolFactoryBean factory = TestFactories.pool(TestFactories.servers(server1, server2));
+      try {
+        MergeJedisCmd cmd = factory.getObject();
+        for (int i = 0; i < 100; i++) {
+          cmd.set("key" + i, "v");
+        }
+        assertTrue(server1.getCommandCount() > 0 && server2.getCommandCount() > 0);
+        assertEquals(100, drain(factory.scanKeys(ScanOptions.builder().count(10).build())).size());
+        assertEquals(100, drain(factory.scanKeys(ScanOptions.builder().count(10).parallel(true).build())).size());
+        Map<String, Long> counts = ((DefaultRedisMetrics) factory.getMetrics()).getCommandCounts();
+        assertTrue(counts.containsKey("scan@127.0.0.1:" + server1.getPort() + "/0"));
+        assertTrue(counts.containsKey("scan@127.0.0.1:" + server2.getPort() + "/0"));
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testClusterParallel() throws Exception {
+    List<RespServer> servers = RespServer.cluster(3);
+    JedisClusterFactoryBean factory = TestFactories.cluster("cluster_enable=true\n" + TestFactories.servers(servers.get(0)));
+    try {
+      MergeJedisCmd cmd = factory.getObject();
+      for (int i = 0; i < 300; i++) {
+        cmd.set("key" + i, "v");
+      }
+      ScanOptions options = ScanOptions.builder().count(10).parallel(true).bufferPages(2).build();
+      try (Stream<String> keys = factory.scanKeys(options).stream()) {
+        assertEquals(300, keys.collect(Collectors.toSet()).size());
+      }
+      assertEquals(300, drain(factory.scanKeys(ScanOptions.builder().count(10).build())).size());
+
+      // 提前结束时关闭迭代器，后台线程停止扫描
+      long before = servers.stream().mapToLong(RespServer::getCommandCount).sum();
+      try (ScanIterator<String> keys = factory.scanKeys(options)) {
+        assertTrue(keys.hasNext());
+        keys.next();
+      }
+      Thread.sleep(100);
+      long scanned = servers.stream().mapToLong(RespServer::getCommandCount).sum() - before;
+      assertTrue("scanned " + scanned + " pages", scanned < 15);
+    } finally {
+      factory.destroy();
+      for (RespServer server : servers) {
+        server.close();
+      }
+    }
+  }
+
+  @Test
+  public void testParallelProducerError() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      ScanIterator.Cursor<String> ok = new ScanIterator.Cursor<>(cursor -> new ScanResult<>("0", Arrays.asList("a")));
+      ScanIterator.Cursor<String> broken = new ScanIterator.Cursor<>(cursor -> {
+        throw new StackOverflowError();
+      });
+      ScanIterator<String> keys = ScanIterator.parallel(Arrays.asList(ok, broken), executor, 4);
+      // 节点线程因Error退出时迭代器不能一直等待
+      Future<Set<String>> result = executor.submit(() -> drain(keys));
+      try {
+        result.get(5, TimeUnit.SECONDS);
+        fail();
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof StackOverflowError);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptRegistryTest {
+  private static final String GET = "return redis.call('GET', KEYS[1])";
+
+  private static boolean loaded(RespServer server, RedisScript script) {
+    try (Jedis jedis = new Jedis(server.getHost(), server.getPort())) {
+      return jedis.scriptExists(script.getSha1());
+    }
+  }
+
+  @Test
+  public void testEvalShaReloadsAfterFlush() throws Exception {
+    try (RespServer server = new RespServer(); Jedis jedis = new Jedis("127.0.0.1", server.getPort())) {
+      JedisPoolFactoryBean factory = TestFactories.pool(TestFactories.servers(server));
+      try {
+        factory.getObject().set("k", "v");
+        RedisScript script = factory.loadScript(GET);
+        assertTrue(loaded(server, script));
+        assertEquals(script, factory.loadScript(GET));
+        assertEquals("v", factory.evalScript(script, Collections.singletonList("k"), Collections.emptyList()));
+
+        jedis.scriptFlush();
+        assertEquals("v", factory.evalScript(script, Collections.singletonList("k"), Collections.emptyList()));
+        assertTrue(loaded(server, script));
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testShardedLoadsEveryShard() throws Exception {
+    try (RespServer a = new RespServer(); RespServer b = new RespServer()) {
+      JedisPoolFactoryBean factory = TestFactories.pool(TestFactories.servers(a, b));
+      try {
+        RedisScript script = factory.loadScript(GET);
+        assertTrue(loaded(a, script));
+        assertTrue(loaded(b, script));
+        for (int i = 0; i < 20; i++) {
+          factory.getObject().set("k" + i, "v" + i);
+          assertEquals("v" + i, factory.evalScript(script, Collections.singletonList("k" + i), Collections.emptyList()));
+        }
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testClusterLoadsNewNode() throws Exception {
+    List<RespServer> servers = new ArrayList<>(RespServer.cluster(2));
+    JedisClusterFactoryBean factory = TestFactories.cluster("cluster_enable=true\ncluster.refreshMillis=100\n"
+        + TestFactories.servers(servers.get(0)));
+    try {
+      RedisScript script = factory.loadScript(GET);
+      assertTrue(loaded(servers.get(0), script));
+      assertTrue(loaded(servers.get(1), script));
+
+      // 扩容: 新节点接管一部分slot
+      RespServer added = new RespServer();
+      servers.add(added);
+      RespServer.assignSlots(servers);
+      assertFalse(loaded(added, script));
+      MergeJedisCmd cmd = factory.getObject();
+      for (int i = 0; i < 20; i++) {
+        cmd.set("k" + i, "v" + i);
+      }
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!loaded(added, script) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      assertTrue(loaded(added, script));
+      for (int i = 0; i < 20; i++) {
+        assertEquals("v" + i, factory.evalScript(script, Collections.singletonList("k" + i), Collections.emptyList()));
+      }
+    } finally {
+      factory.destroy();
+      for (RespServer server : servers) {
+        server.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.JedisByteHashMap;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+  private final SingleFlight singleFlight = new SingleFlight();
+
+  @Test
+  public void testCoalesceConcurrentReads() throws Throwable {
+    Method get = Jedis.class.getMethod("get", String.class);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger calls = new AtomicInteger();
+    CommandInvoker backend = (m, a) -> {
+      calls.incrementAndGet();
+      release.await(5, TimeUnit.SECONDS);
+      return "v";
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Object>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(() -> {
+          try {
+            return singleFlight.execute(get, new Object[]{"hot"}, backend);
+          } catch (Throwable e) {
+            throw new IllegalStateException(e);
+          }
+        }));
+      }
+      while (singleFlight.getExecutedCount() + singleFlight.getCoalescedCount() < 8) {
+        Thread.sleep(5);
+      }
+      release.countDown();
+      for (Future<Object> result : results) {
+        assertEquals("v", result.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, calls.get());
+    assertEquals(7, singleFlight.getCoalescedCount());
+
+    // 完成后不缓存，再次调用重新执行
+    singleFlight.execute(get, new Object[]{"hot"}, backend);
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void testWritesAreNotCoalesced() throws Throwable {
+    Method set = Jedis.class.getMethod("set", String.class, String.class);
+    AtomicInteger calls = new AtomicInteger();
+    singleFlight.execute(set, new Object[]{"k", "v"}, (m, a) -> calls.incrementAndGet());
+    singleFlight.execute(set, new Object[]{"k", "v"}, (m, a) -> calls.incrementAndGet());
+    assertEquals(2, calls.get());
+    assertEquals(0, singleFlight.getExecutedCount());
+  }
+
+  @Test
+  public void testBinaryResultIsCopied() throws Throwable {
+    Method get = Jedis.class.getMethod("get", byte[].class);
+    byte[] value = {1, 2, 3};
+    Object result = singleFlight.execute(get, new Object[]{new byte[]{'k'}}, (m, a) -> value);
+    assertArrayEquals(value, (byte[]) result);
+    assertNotSame(value, result);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testBinaryHashKeepsByteKeyLookup() throws Throwable {
+    Method hgetAll = Jedis.class.getMethod("hgetAll", byte[].class);
+    JedisByteHashMap value = new JedisByteHashMap();
+    value.put("f".getBytes(), "v".getBytes());
+    Map<byte[], byte[]> result = (Map<byte[], byte[]>) singleFlight.execute(hgetAll, new Object[]{"h".getBytes()},
+        (m, a) -> value);
+    assertNotSame(value, result);
+    assertArrayEquals("v".getBytes(), result.get("f".getBytes()));
+  }
+
+  @Test
+  public void testErrorPropagates() throws Throwable {
+    Method get = Jedis.class.getMethod("get", String.class);
+    try {
+      singleFlight.execute(get, new Object[]{"k"}, (m, a) -> {
+        throw new IllegalStateException("down");
+      });
+      fail();
+    } catch (Throwable e) {
+      assertEquals("down", e.getMessage());
+    }
+    assertEquals("v", singleFlight.execute(get, new Object[]{"k"}, (m, a) -> "v"));
+  }
+}
@@ -0,0 +1,66 @@
+package com.zhangyx.hw.support;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.StringJoiner;
+
+/**
+ * 测试用的工厂: 配置写入临时文件后初始化，用完由调用方destroy
+ */
+final class TestFactories {
+
+    private TestFactories() {
+    }
+
+    /**
+     * redis.servers 配置行，多个实例时为分片，集群模式只需给一个节点
+     *
+     * @param servers
+     * @return
+     */
+    static String servers(RespServer... servers) {
+        StringJoiner joiner = new StringJoiner(";", "redis.servers=", "\n");
+        for (RespServer server : servers) {
+            joiner.add("127.0.0.1:" + server.getPort());
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * 写入临时配置文件，JVM退出时删除；需要改写配置的测试直接改这个文件
+     *
+     * @param content
+     * @return
+     * @throws IOException
+     */
+    static File config(String content) throws IOException {
+        File file = File.createTempFile("redis", ".properties");
+        file.deleteOnExit();
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+        return file;
+    }
+
+    static JedisPoolFactoryBean pool(String content) throws Exception {
+        return init(new JedisPoolFactoryBean(), config(content));
+    }
+
+    static JedisClusterFactoryBean cluster(String content) throws Exception {
+        return init(new JedisClusterFactoryBean(), config(content));
+    }
+
+    static AsyncJedisPoolFactoryBean async(String content) throws Exception {
+        AsyncJedisPoolFactoryBean factory = new AsyncJedisPoolFactoryBean();
+        factory.setConfigFileName(config(content).getAbsolutePath());
+        factory.afterPropertiesSet();
+        return factory;
+    }
+
+    static <T extends ConfigruableProvider> T init(T factory, File config) throws Exception {
+        factory.setConfigFileName(config.getAbsolutePath());
+        factory.afterPropertiesSet();
+        return factory;
+    }
+}
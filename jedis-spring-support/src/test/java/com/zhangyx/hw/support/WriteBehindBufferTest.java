@@ -0,0 +1,128 @@
+package com.zhangyx.hw.support;
+
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindBufferTest {
+
+  private static JedisPoolFactoryBean factory(RespServer server, String extra) throws Exception {
+    return TestFactories.pool(TestFactories.servers(server) + "writeBehind.enable=true\n" + extra);
+  }
+
+  @Test
+  public void testAggregate() throws Exception {
+    try (RespServer server = new RespServer(); Jedis jedis = new Jedis("127.0.0.1", server.getPort())) {
+      JedisPoolFactoryBean factory = factory(server, "writeBehind.flushMillis=20\n");
+      try {
+        MergeJedisCmd cmd = factory.getObject();
+        long before = server.getCommandCount();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+          futures.add(executor.submit(() -> {
+            for (int i = 0; i < 1000; i++) {
+              assertEquals(Long.valueOf(0), cmd.incr("counter:" + (i % 10)));
+              cmd.incrBy("total", 2);
+              cmd.hincrBy("hash", "f", 1);
+              cmd.zincrby("rank", 0.5, "m");
+            }
+          }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+        executor.shutdown();
+        Thread.sleep(200);
+
+        for (int i = 0; i < 10; i++) {
+          assertEquals("800", jedis.get("counter:" + i));
+        }
+        assertEquals("16000", jedis.get("total"));
+        assertEquals("8000", jedis.hget("hash", "f"));
+        assertEquals(Double.valueOf(4000), jedis.zscore("rank", "m"));
+        assertTrue(server.getCommandCount() - before < 8 * 4000 / 10);
+        assertEquals(Long.valueOf(0), factory.getWriteBehindStats().get("pending"));
+
+        cmd.set("plain", "v");
+        assertEquals("v", cmd.get("plain"));
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testFlushOnSizeAndDestroy() throws Exception {
+    try (RespServer server = new RespServer(); Jedis jedis = new Jedis("127.0.0.1", server.getPort())) {
+      JedisPoolFactoryBean factory = factory(server, "writeBehind.flushMillis=600000\nwriteBehind.maxKeys=5\n");
+      MergeJedisCmd cmd = factory.getObject();
+      for (int i = 0; i < 5; i++) {
+        cmd.incr("size:" + i);
+      }
+      Thread.sleep(200);
+      assertEquals("1", jedis.get("size:0"));
+
+      cmd.incrBy("last", 7);
+      cmd.decr("last");
+      factory.destroy();
+      assertEquals("6", jedis.get("last"));
+    }
+  }
+
+  @Test
+  public void testDropRejectedCounter() throws Exception {
+    try (RespServer server = new RespServer(); Jedis jedis = new Jedis("127.0.0.1", server.getPort())) {
+      jedis.hset("wrong", "f", "1");
+      JedisPoolFactoryBean factory = factory(server, "writeBehind.flushMillis=600000\n");
+      try {
+        MergeJedisCmd cmd = factory.getObject();
+        cmd.incr("wrong");
+        cmd.incr("right");
+        factory.getBackend().getWriteBehind().flush();
+
+        assertEquals("1", jedis.get("right"));
+        assertEquals(Long.valueOf(1), factory.getWriteBehindStats().get("flushed"));
+        assertEquals(Long.valueOf(1), factory.getWriteBehindStats().get("dropped"));
+      } finally {
+        factory.destroy();
+      }
+    }
+  }
+
+  @Test
+  public void testResendMovedCounter() throws Exception {
+    List<RespServer> servers = RespServer.cluster(2);
+    JedisClusterFactoryBean factory = TestFactories.cluster("cluster_enable=true\ncluster.refreshMillis=600000\n"
+        + "writeBehind.enable=true\nwriteBehind.flushMillis=600000\n" + TestFactories.servers(servers.get(0)));
+    try {
+      MergeJedisCmd cmd = factory.getObject();
+      // 交换两个节点负责的slot，缓冲的增量按旧拓扑发出后收到MOVED
+      RespServer.assignSlots(Arrays.asList(servers.get(1), servers.get(0)));
+      for (int i = 0; i < 10; i++) {
+        cmd.incrBy("moved:" + i, 3);
+      }
+      factory.getBackend().getWriteBehind().flush();
+
+      for (int i = 0; i < 10; i++) {
+        assertEquals("3", cmd.get("moved:" + i));
+      }
+      assertEquals(Long.valueOf(10), factory.getWriteBehindStats().get("flushed"));
+      assertEquals(Long.valueOf(0), factory.getWriteBehindStats().get("dropped"));
+    } finally {
+      factory.destroy();
+      for (RespServer server : servers) {
+        server.close();
+      }
+    }
+  }
+}